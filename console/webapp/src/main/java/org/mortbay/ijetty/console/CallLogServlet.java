@@ -17,10 +17,19 @@ package org.mortbay.ijetty.console;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.URLEncoder;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -28,18 +37,38 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.util.DateCache;
+
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.database.Cursor;
-import android.net.Uri;
 import android.provider.CallLog;
-import android.provider.Contacts;
 import android.util.Log;
 
+/**
+ * CallLogServlet
+ *
+ * Shows or exports the call log, most recent first.
+ *
+ *  /console/calls/[?format=html|csv|json|ndjson][&from=x][&to=y][&type=t][&number=n][&pgStart=s][&pgSize=z]
+ *
+ *  from, to: a date yyyy-MM-dd, to inclusive, or a time in ms
+ *  type: incoming, outgoing, missed or the number of a type, comma separated
+ *  number: calls with numbers containing the digits
+ *
+ * The filters are pushed down into the query, as is the page if the
+ * provider will take it. The html page shows 100 calls at a time, while
+ * the exports are of all the matching calls unless a pgSize is given.
+ * Calls are streamed from the cursor and flushed every {@link #__CHUNK}
+ * rows, so an export of a large log runs in constant memory.
+ *
+ * eg the missed calls of the first week of March as csv:
+ *  /console/calls/?format=csv&type=missed&from=2010-03-01&to=2010-03-07
+ */
 public class CallLogServlet extends HttpServlet
 {
-    private static final String TAG = "IJetty.Cnsl";
-    
     private static final long serialVersionUID = 1L;
+    private static final String TAG = "IJetty.Cnsl";
     public static final String __ACKNOWLEDGED = "Acknowledged";
     public static final String __DURATION = "Duration (secs)";
     public static final String __INCOMING = "incoming";
@@ -50,294 +79,630 @@ public class CallLogServlet extends HttpServlet
 
     public static final String __CSV_DELIM = ",";
 
+    public static final String __FORMAT_PARAM = "format";
+    public static final String __FROM_PARAM = "from";
+    public static final String __TO_PARAM = "to";
+    public static final String __TYPE_PARAM = "type";
+    public static final String __NUMBER_PARAM = "number";
+    public static final String __PG_START_PARAM = "pgStart";
+    public static final String __PG_SIZE_PARAM = "pgSize";
+    public static final int __DEFAULT_PG_SIZE = 100;
+
+    /**
+     * The rows written between flushes, whose contact names are looked up together
+     */
+    public static final int __CHUNK = 100;
+
+    public enum Format { HTML, CSV, JSON, NDJSON };
+
+    /**
+     * The columns of the call log, with the index of each in the cursor
+     */
+    private static final String[] __PROJECTION = new String[]
+                                                 {
+                                                  CallLog.Calls.DATE,
+                                                  CallLog.Calls.TYPE,
+                                                  CallLog.Calls.DURATION,
+                                                  CallLog.Calls.NEW,
+                                                  CallLog.Calls.NUMBER,
+                                                  CallLog.Calls.CACHED_NUMBER_TYPE,
+                                                  CallLog.Calls.CACHED_NAME
+                                                 };
+    private static final int __DATE_IDX = 0;
+    private static final int __TYPE_IDX = 1;
+    private static final int __DURATION_IDX = 2;
+    private static final int __NEW_IDX = 3;
+    private static final int __NUMBER_IDX = 4;
+    private static final int __NUMBER_TYPE_IDX = 5;
+    private static final int __NAME_IDX = 6;
+
+    /**
+     * Formats the same second once, and is synchronized, so it is shared by all requests
+     */
+    private static final DateCache __dateCache = new DateCache("dd/MM/yyyy HH:mm:ss");
+
     public Map<Integer, String> _logTypeMap = new HashMap<Integer, String>();
     private ContentResolver resolver;
-    private SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-    private String[] _projection = new String[]
-                                         {
-                                          CallLog.Calls.DATE,
-                                          CallLog.Calls.TYPE,
-                                          CallLog.Calls.DURATION,
-                                          CallLog.Calls.NEW,
-                                          CallLog.Calls.NUMBER,
-                                          CallLog.Calls.CACHED_NUMBER_TYPE,
-                                          CallLog.Calls.CACHED_NAME
-                                         };
 
-    public CallLogServlet ()
+
+    /**
+     * CallCollection
+     *
+     * A page of the calls that match a filter.
+     */
+    public static class CallCollection extends DatabaseCollection
     {
-        _logTypeMap.put(Integer.valueOf(CallLog.Calls.INCOMING_TYPE), __INCOMING);
-        _logTypeMap.put(Integer.valueOf(CallLog.Calls.OUTGOING_TYPE), __OUTGOING);
-        _logTypeMap.put(Integer.valueOf(CallLog.Calls.MISSED_TYPE), __MISSED);
+        public CallCollection(ContentResolver resolver, CallFilter filter)
+        {
+            super(resolver, CallLog.Calls.CONTENT_URI, __PROJECTION, filter.selection, filter.selectionArgs,
+                  CallLog.Calls.DEFAULT_SORT_ORDER, filter.pgStart, filter.pgSize);
+        }
+
+        @Override
+        public ContentValues cursorToValues(Cursor cursor)
+        {
+            ContentValues values = new ContentValues();
+            for (int i=0;i<__PROJECTION.length;i++)
+                values.put(__PROJECTION[i], cursor.getString(i));
+            return values;
+        }
     }
 
 
-    @Override
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    /**
+     * CallFilter
+     *
+     * The filters and page of a request, as a query selection.
+     */
+    public static class CallFilter
     {
-        PrintWriter writer = response.getWriter();
+        final String from;
+        final String to;
+        final String type;
+        final String number;
+        final int pgStart;
+        final int pgSize;
+        final String selection;
+        final String[] selectionArgs;
 
-        String csv = request.getParameter("csv");
-        if ((csv != null) && (Integer.parseInt(csv.trim()) >= 1))
+        /**
+         * @param request
+         * @param defaultPgSize the page size if none is given, or -1 for all rows
+         * @throws IllegalArgumentException if a filter is not understood
+         */
+        public CallFilter (HttpServletRequest request, int defaultPgSize)
         {
-            String date = new SimpleDateFormat("yyyyMMdd").format(new Date());
-            response.setContentType("text/csv");
-            response.setHeader("Content-Disposition", "attachment; filename=call-log-" + date + ".csv");
-            response.setStatus(HttpServletResponse.SC_OK);
-            doContent(writer, request, response);
+            from = trim(request.getParameter(__FROM_PARAM));
+            to = trim(request.getParameter(__TO_PARAM));
+            type = trim(request.getParameter(__TYPE_PARAM));
+            number = trim(request.getParameter(__NUMBER_PARAM));
+
+            String tmp = trim(request.getParameter(__PG_START_PARAM));
+            pgStart = (tmp == null ? 0 : Math.max(0, Integer.parseInt(tmp)));
+            tmp = trim(request.getParameter(__PG_SIZE_PARAM));
+            int size = (tmp == null ? defaultPgSize : Integer.parseInt(tmp));
+            pgSize = (size <= 0 ? -1 : size);
+
+            StringBuilder where = new StringBuilder();
+            List<String> args = new ArrayList<String>();
+            if (from != null)
+            {
+                where.append(CallLog.Calls.DATE).append(" >= ?");
+                args.add(String.valueOf(parseDate(from, false)));
+            }
+            if (to != null)
+            {
+                where.append(where.length() == 0 ? "" : " AND ").append(CallLog.Calls.DATE).append(" < ?");
+                args.add(String.valueOf(parseDate(to, true)));
+            }
+            if (type != null)
+            {
+                StringTokenizer tok = new StringTokenizer(type, ", ");
+                int count = 0;
+                while (tok.hasMoreTokens())
+                {
+                    args.add(String.valueOf(parseType(tok.nextToken())));
+                    count++;
+                }
+                if (count > 0)
+                    where.append(where.length() == 0 ? "" : " AND ").append(DatabaseCollection.toInSelection(CallLog.Calls.TYPE, count));
+            }
+            if (number != null)
+            {
+                //only the characters of a number, so there is nothing to escape in the LIKE
+                StringBuilder digits = new StringBuilder();
+                for (int i = 0; i < number.length(); i++)
+                {
+                    char c = number.charAt(i);
+                    if (Character.isDigit(c) || c == '+' || c == '*' || c == '#')
+                        digits.append(c);
+                }
+                if (digits.length() == 0)
+                    throw new IllegalArgumentException("Bad number "+number);
+                where.append(where.length() == 0 ? "" : " AND ").append(CallLog.Calls.NUMBER).append(" LIKE ?");
+                args.add("%"+digits+"%");
+            }
+
+            selection = (where.length() == 0 ? null : where.toString());
+            selectionArgs = (args.isEmpty() ? null : args.toArray(new String[args.size()]));
         }
-        else
+
+        /**
+         * @return the filters as query parameters, to link to other pages and formats
+         * @throws IOException
+         */
+        public String toQuery () throws IOException
         {
-            response.setContentType("text/html");
-            response.setStatus(HttpServletResponse.SC_OK);
-            HTMLHelper.doHeader (writer, request, response);
-            HTMLHelper.doMenuBar(writer, request, response);
-            doContent(writer, request, response);
-            HTMLHelper.doFooter (writer, request, response);
+            StringBuilder query = new StringBuilder();
+            append(query, __FROM_PARAM, from);
+            append(query, __TO_PARAM, to);
+            append(query, __TYPE_PARAM, type);
+            append(query, __NUMBER_PARAM, number);
+            return query.toString();
         }
-    }
 
+        private static void append (StringBuilder query, String name, String value) throws IOException
+        {
+            if (value != null)
+                query.append('&').append(name).append('=').append(URLEncoder.encode(value, "UTF-8"));
+        }
 
-    protected void doContent(PrintWriter writer, HttpServletRequest request,
-                             HttpServletResponse response) throws ServletException, IOException
-    {
-        Cursor cursor = null;
-        try
+        private static String trim (String value)
         {
-            cursor = getContentResolver().query(CallLog.Calls.CONTENT_URI, _projection, null, null, null);
-            String[] cols = cursor.getColumnNames();
+            if (value == null || value.trim().length() == 0)
+                return null;
+            return value.trim();
+        }
 
-            String csv = request.getParameter("csv");
-            if ((csv != null) && (Integer.parseInt(csv.trim()) >= 1))
+        /**
+         * @param value a date yyyy-MM-dd, or a time in ms
+         * @param end true for the end of the date
+         */
+        private static long parseDate (String value, boolean end)
+        {
+            if (value.length() > 10 && value.matches("[0-9]+"))
+                return Long.parseLong(value);
+            try
             {
-                formatCSV(cols, cursor, writer);
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+                format.setLenient(false);
+                Calendar calendar = Calendar.getInstance();
+                calendar.setTime(format.parse(value));
+                if (end)
+                    calendar.add(Calendar.DAY_OF_MONTH, 1);
+                return calendar.getTimeInMillis();
             }
-            else
+            catch (ParseException e)
             {
-                writer.println("<h1 class='pageheader'>Call Log</h1><div id='content'>");
-                formatCallLog(cols, cursor, writer);
-                writer.println("<p><small><a href='?csv=1'>Download as CSV</a></small></p>");
-                writer.println("</div>");
-                writer.flush();
+                throw new IllegalArgumentException("Bad date "+value);
             }
         }
-        finally
+
+        private static int parseType (String value)
+        {
+            if (__INCOMING.equalsIgnoreCase(value))
+                return CallLog.Calls.INCOMING_TYPE;
+            if (__OUTGOING.equalsIgnoreCase(value))
+                return CallLog.Calls.OUTGOING_TYPE;
+            if (__MISSED.equalsIgnoreCase(value))
+                return CallLog.Calls.MISSED_TYPE;
+            return Integer.parseInt(value);
+        }
+    }
+
+
+    /**
+     * CallWriter
+     *
+     * Writes the calls in a format, a row at a time.
+     */
+    private abstract class CallWriter
+    {
+        protected final PrintWriter writer;
+        protected final CallFilter filter;
+
+        protected CallWriter (PrintWriter writer, CallFilter filter)
         {
-            if (cursor != null)
-                cursor.close();
+            this.writer = writer;
+            this.filter = filter;
         }
+
+        public abstract void start (CallCollection calls) throws IOException;
+
+        /**
+         * @param cursor at the call
+         * @param name the cached name of the call
+         * @param contactId the id of the contact of the name, or null
+         */
+        public abstract void row (Cursor cursor, String name, Long contactId) throws IOException;
+
+        /**
+         * @param rows the number of calls written
+         */
+        public abstract void end (int rows) throws IOException;
     }
 
-    private void formatCallLog (String[] colNames, Cursor cursor, PrintWriter writer)
+
+    private class HtmlCallWriter extends CallWriter
     {
-        if ((colNames!=null) && (cursor!=null) && (writer!=null))
+        private int row;
+
+        HtmlCallWriter (PrintWriter writer, CallFilter filter)
         {
+            super(writer, filter);
+        }
+
+        public void start (CallCollection calls)
+        {
+            writer.println("<h1 class='pageheader'>Call Log</h1><div id='content'>");
             writer.println("<table>");
             writer.println("<thead>");
-            writer.println("<tr>");
-
-            for (int i=0;i<colNames.length;i++)
+            writer.print("<tr>");
+            for (int i=0;i<__PROJECTION.length;i++)
             {
-                String cname=null;
-
-                if (colNames[i].equals(CallLog.Calls.NEW))
-                {
+                String cname;
+                if (i == __NEW_IDX)
                     cname=__ACKNOWLEDGED;
-                }
-                else if (colNames[i].equals(CallLog.Calls.DURATION))
-                {
+                else if (i == __DURATION_IDX)
                     cname=__DURATION;
-                }
                 else
-                {
-                    cname=colNames[i];
-                }
-
-                writer.println("<th>"+cname+"</th>");
+                    cname=__PROJECTION[i];
+                writer.print("<th>"+cname+"</th>");
             }
             writer.println("</tr>");
             writer.println("</thead><tbody>");
-            int row = 0;
-            while (cursor.moveToNext())
-            {
-                String style = HTMLHelper.getRowStyle(row);
-                writer.println("<tr>");
-                for (int i=0;i<colNames.length;i++)
-                {
-                    writer.println("<td"+style+">");
-                    if (colNames[i].equals(CallLog.Calls.DATE))
-                    {
-                        String date = dateFormat.format(new java.util.Date (cursor.getLong(i)));
-                        writer.println(date);
-                    }
-                    else if (colNames[i].equals(CallLog.Calls.NEW))
-                    {
-                        if (cursor.getInt(i)>0)
-                        {
-                            writer.println(__YES);
-                        }
-                        else
-                        {
-                            writer.println(__NO);
-                        }
-                    }
-                    else if (colNames[i].equals(CallLog.Calls.TYPE))
-                    {
-                        writer.println(_logTypeMap.get(cursor.getInt(i)));
-                    }
-                    else if (colNames[i].equals(CallLog.Calls.CACHED_NAME))
-                    {
-                        String name = cursor.getString(i);
-                        if (name != null && (!"".equals(name.trim())))
-                        {
-                            Cursor pcursor = null;
-                            try
-                            {
-                                Uri uri = Uri.withAppendedPath(Contacts.People.CONTENT_FILTER_URI, name);
-                                Log.i(TAG, uri.toString());
-                                pcursor = resolver.query(uri, new String[] {Contacts.People._ID}, null, null, null);
-                                if (pcursor != null && pcursor.moveToFirst())
-                                {
-                                    Integer id = pcursor.getInt(pcursor.getColumnIndex(Contacts.People._ID));
-                                    writer.println(name==null?"&nbsp;":"<a href='/console/contacts/?id="+id+"'>"+name+"</a>");
-                                }
-                                else
-                                    writer.println(name==null?"&nbsp;":"<a href='/console/contacts/'>"+name+"</a>");
-                            }
-                            finally
-                            {
-                                if (pcursor != null)
-                                    pcursor.close();
-                            }          
-                        }
-                        else
-                        {
-                            writer.println("&nbsp;");
-                        }
-                    }
-                    else
-                    {
-                        String val = cursor.getString(i);
-                        writer.println((val==null?"&nbsp;":val));
-                    }
-                    writer.println("</td>");
-                }
-                writer.println("</tr>");
-                ++row;
-            }
+        }
+
+        public void row (Cursor cursor, String name, Long contactId)
+        {
+            String style = HTMLHelper.getRowStyle(row++);
+            writer.print("<tr>");
+            cell(style, __dateCache.format(cursor.getLong(__DATE_IDX)));
+            cell(style, getTypeName(cursor.getInt(__TYPE_IDX)));
+            cell(style, HTMLHelper.escape(cursor.getString(__DURATION_IDX)));
+            cell(style, cursor.getInt(__NEW_IDX) > 0 ? __YES : __NO);
+            cell(style, HTMLHelper.escape(cursor.getString(__NUMBER_IDX)));
+            cell(style, HTMLHelper.escape(cursor.getString(__NUMBER_TYPE_IDX)));
+            if (name == null || "".equals(name.trim()))
+                cell(style, null);
+            else if (contactId != null)
+                cell(style, "<a href='/console/contacts/?id="+contactId+"'>"+HTMLHelper.escape(name)+"</a>");
+            else
+                cell(style, "<a href='/console/contacts/'>"+HTMLHelper.escape(name)+"</a>");
+            writer.println("</tr>");
+        }
+
+        private void cell (String style, String html)
+        {
+            writer.print("<td");
+            writer.print(style);
+            writer.print(">");
+            writer.print(html == null ? "&nbsp;" : html);
+            writer.print("</td>");
+        }
+
+        public void end (int rows) throws IOException
+        {
             writer.println("</tbody>");
             writer.println("</table>");
 
+            String query = HTMLHelper.escape(filter.toQuery());
+            writer.print("<p><small>");
+            if (filter.pgStart > 0 && filter.pgSize > 0)
+                writer.print("<a href='?"+__PG_START_PARAM+"="+Math.max(0, filter.pgStart - filter.pgSize)+"&amp;"+__PG_SIZE_PARAM+"="+filter.pgSize+query+"'>Previous</a> ");
+            if (filter.pgSize > 0 && rows == filter.pgSize)
+                writer.print("<a href='?"+__PG_START_PARAM+"="+(filter.pgStart + rows)+"&amp;"+__PG_SIZE_PARAM+"="+filter.pgSize+query+"'>Next</a> ");
+            writer.print("<a href='?"+__FORMAT_PARAM+"=csv"+query+"'>Download as CSV</a> ");
+            writer.print("<a href='?"+__FORMAT_PARAM+"=json"+query+"'>JSON</a>");
+            writer.println("</small></p>");
+            writer.println("</div>");
         }
     }
 
 
-    private void formatCSV (String[] colNames, Cursor cursor, PrintWriter writer)
+    private class CsvCallWriter extends CallWriter
     {
-        if ((colNames!=null) && (cursor!=null) && (writer!=null))
+        CsvCallWriter (PrintWriter writer, CallFilter filter)
         {
-            for (int i=0;i<colNames.length;i++)
+            super(writer, filter);
+        }
+
+        public void start (CallCollection calls)
+        {
+            // Since we provide the contact's *name* and their ID,
+            // the "contactid" column is an imaginary column after the name
+            for (int i=0;i<__PROJECTION.length;i++)
             {
-                String cname=colNames[i];
+                writer.print(__PROJECTION[i]);
+                writer.print(__CSV_DELIM);
+            }
+            writer.print("contactid\r\n");
+        }
 
-                // We do +1 for the length because the "contactid" column
-                // is an imaginary column we add at the end
-                printCSV(i, colNames.length + 1, writer, cname);
+        public void row (Cursor cursor, String name, Long contactId)
+        {
+            value(__dateCache.format(cursor.getLong(__DATE_IDX)));
+            value(getTypeName(cursor.getInt(__TYPE_IDX)));
+            value(cursor.getString(__DURATION_IDX));
+            value(cursor.getInt(__NEW_IDX) > 0 ? __YES : __NO);
+            value(cursor.getString(__NUMBER_IDX));
+            value(cursor.getString(__NUMBER_TYPE_IDX));
+            value(name);
+            if (contactId != null)
+                writer.print(contactId.longValue());
+            writer.print("\r\n");
+        }
 
-                // Since we provide the contact's *name* and their ID,
-                // we always do both at the same time, so we should do the
-                // same here.
-                if (colNames[i].equals(CallLog.Calls.CACHED_NAME))
+        /**
+         * Write a value and its delimiter, quoted only if it needs to be
+         */
+        private void value (String value)
+        {
+            if (value != null)
+            {
+                boolean quote = false;
+                for (int i = 0; !quote && i < value.length(); i++)
                 {
-                    printCSV(i + 1, colNames.length + 1, writer, "contactid");
+                    char c = value.charAt(i);
+                    quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
                 }
-            }
 
-            int row = 0;
-            while (cursor.moveToNext())
-            {
-                // FIXME: String style = HTMLHelper.getRowStyle(row);
-                for (int i=0;i<colNames.length;i++)
+                if (!quote)
+                    writer.print(value);
+                else
                 {
-                    String val=cursor.getString(i);
-                    if (colNames[i].equals(CallLog.Calls.DATE))
+                    writer.print('"');
+                    int start = 0;
+                    int quoteAt;
+                    while ((quoteAt = value.indexOf('"', start)) >= 0)
                     {
-                        printCSV(i, colNames.length, writer, val);
-                    }
-                    else if (colNames[i].equals(CallLog.Calls.NEW))
-                    {
-                        if (cursor.getInt(i)>0)
-                        {
-                            printCSV(i, colNames.length, writer, __YES);
-                        }
-                        else
-                        {
-                            printCSV(i, colNames.length, writer, __NO);
-                        }
-                    }
-                    else if (colNames[i].equals(CallLog.Calls.TYPE))
-                    {
-                        printCSV(i, colNames.length, writer, _logTypeMap.get(cursor.getInt(i)).toString());
-                    }
-                    else if (colNames[i].equals(CallLog.Calls.CACHED_NAME))
-                    {
-                        String name = cursor.getString(i);
-                        if (name != null)
-                        {
-                            printCSV(i, colNames.length, writer, "\"" + name + "\"" + __CSV_DELIM +  row);
-                        }
-                        else
-                        {
-                            // Empty pair of commas (no data)
-                            printCSV(i, colNames.length, writer, __CSV_DELIM);
-                        }
-                    }
-                    else
-                    {
-                        printCSV(i, colNames.length, writer, (val==null?"":val));
+                        writer.write(value, start, quoteAt + 1 - start);
+                        writer.print('"');
+                        start = quoteAt + 1;
                     }
+                    writer.write(value, start, value.length() - start);
+                    writer.print('"');
                 }
-                ++row;
             }
+            writer.print(__CSV_DELIM);
+        }
+
+        public void end (int rows)
+        {
         }
     }
 
 
-    public ContentResolver getContentResolver()
+    private class JsonCallWriter extends CallWriter
     {
-        return resolver;
+        protected final JSONWriter json;
+
+        JsonCallWriter (PrintWriter writer, CallFilter filter)
+        {
+            super(writer, filter);
+            json = new JSONWriter(writer);
+        }
+
+        public void start (CallCollection calls) throws IOException
+        {
+            json.startObject();
+            json.name("total").value(calls.getTotal());
+            json.name("pgStart").value(filter.pgStart);
+            json.name("calls").startArray();
+        }
+
+        public void row (Cursor cursor, String name, Long contactId) throws IOException
+        {
+            json.startObject();
+            json.name("date").longColumn(cursor, __DATE_IDX);
+            json.name("type").value(getTypeName(cursor.getInt(__TYPE_IDX)));
+            json.name("duration").longColumn(cursor, __DURATION_IDX);
+            json.name("new").booleanColumn(cursor, __NEW_IDX);
+            json.name("number").column(cursor, __NUMBER_IDX);
+            json.name("numbertype").longColumn(cursor, __NUMBER_TYPE_IDX);
+            json.name("name").value(name);
+            json.name("contactid");
+            if (contactId == null)
+                json.nullValue();
+            else
+                json.value(contactId.longValue());
+            json.endObject();
+        }
+
+        public void end (int rows) throws IOException
+        {
+            json.endArray();
+            json.endObject();
+            writer.println();
+        }
     }
 
-    @Override
-    public void init(ServletConfig config) throws ServletException
+
+    /**
+     * A call per line, with nothing around them
+     */
+    private class NdjsonCallWriter extends JsonCallWriter
     {
-        super.init(config);
-        resolver = (ContentResolver)getServletContext().getAttribute("org.mortbay.ijetty.contentResolver");
+        NdjsonCallWriter (PrintWriter writer, CallFilter filter)
+        {
+            super(writer, filter);
+        }
+
+        public void start (CallCollection calls)
+        {
+        }
+
+        public void row (Cursor cursor, String name, Long contactId) throws IOException
+        {
+            super.row(cursor, name, contactId);
+            writer.print('\n');
+        }
+
+        public void end (int rows)
+        {
+        }
+    }
+
+
+    public CallLogServlet ()
+    {
+        _logTypeMap.put(Integer.valueOf(CallLog.Calls.INCOMING_TYPE), __INCOMING);
+        _logTypeMap.put(Integer.valueOf(CallLog.Calls.OUTGOING_TYPE), __OUTGOING);
+        _logTypeMap.put(Integer.valueOf(CallLog.Calls.MISSED_TYPE), __MISSED);
     }
 
-    private void printCSV(int col, int length, PrintWriter writer, String value)
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
     {
-        if (col != (length - 1))
+        Format format = Format.HTML;
+        String tmp = request.getParameter(__FORMAT_PARAM);
+        String csv = request.getParameter("csv");
+        CallFilter filter;
+        try
         {
-            if ((value.length() > 1) && (value != __CSV_DELIM) && !value.startsWith ("\""))
-            {
-                writer.print("\"" + value + "\"" + __CSV_DELIM);
-            }
-            else
-            {
-                writer.print(value + __CSV_DELIM);
-            }
+            if (tmp != null)
+                format = Format.valueOf(tmp.trim().toUpperCase());
+            else if ((csv != null) && (Integer.parseInt(csv.trim()) >= 1))
+                format = Format.CSV;
+            filter = new CallFilter(request, (format == Format.HTML ? __DEFAULT_PG_SIZE : -1));
+        }
+        catch (IllegalArgumentException e)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        String date = new SimpleDateFormat("yyyyMMdd").format(new Date());
+        switch (format)
+        {
+            case CSV:
+                response.setContentType("text/csv; charset=utf-8");
+                response.setHeader("Content-Disposition", "attachment; filename=call-log-" + date + ".csv");
+                break;
+            case JSON:
+                response.setContentType("application/json; charset=utf-8");
+                break;
+            case NDJSON:
+                response.setContentType("application/x-ndjson; charset=utf-8");
+                break;
+            default:
+                response.setContentType("text/html; charset=utf-8");
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        PrintWriter writer = response.getWriter();
+
+        if (format == Format.HTML)
+        {
+            HTMLHelper.doHeader (writer, request, response);
+            HTMLHelper.doMenuBar(writer, request, response);
+            doContent(writer, format, filter);
+            HTMLHelper.doFooter (writer, request, response);
         }
         else
+            doContent(writer, format, filter);
+    }
+
+
+    /**
+     * Stream the calls, a chunk at a time. Each chunk is read once for its
+     * names, whose contacts are looked up together, then read again to be
+     * written and flushed. The time taken, the part of it spent looking up
+     * names and the number of provider queries made are logged.
+     *
+     * @param writer
+     * @param format
+     * @param filter
+     * @throws IOException
+     */
+    protected void doContent(PrintWriter writer, Format format, CallFilter filter) throws IOException
+    {
+        CallWriter out;
+        switch (format)
         {
-            if ((value.length() > 1) && !value.startsWith ("\""))
-            {
-                writer.println("\"" + value + "\"");
-            }
-            else
+            case CSV:
+                out = new CsvCallWriter(writer, filter);
+                break;
+            case JSON:
+                out = new JsonCallWriter(writer, filter);
+                break;
+            case NDJSON:
+                out = new NdjsonCallWriter(writer, filter);
+                break;
+            default:
+                out = new HtmlCallWriter(writer, filter);
+        }
+
+        long start = System.currentTimeMillis();
+        int queries = DatabaseCollection.getQueries();
+        long lookup = 0;
+        CallCollection calls = new CallCollection(getContentResolver(), filter);
+        try
+        {
+            out.start(calls);
+
+            Set<String> names = new HashSet<String>();
+            Cursor cursor;
+            int rows = 0;
+            int chunk;
+            do
             {
-                writer.println(value);
+                int mark = calls.mark();
+                names.clear();
+                for (chunk = 0; chunk < __CHUNK && (cursor = calls.nextRow()) != null; chunk++)
+                {
+                    String name = cursor.getString(__NAME_IDX);
+                    if (name != null && (!"".equals(name.trim())))
+                        names.add(name);
+                }
+
+                Map<String, Long> contactIds = Collections.emptyMap();
+                if (!names.isEmpty())
+                {
+                    long started = System.currentTimeMillis();
+                    contactIds = ContactNameCache.getIds(getContentResolver(), names);
+                    lookup += System.currentTimeMillis() - started;
+                }
+
+                calls.reset(mark);
+                for (int i = 0; i < chunk && (cursor = calls.nextRow()) != null; i++)
+                {
+                    String name = cursor.getString(__NAME_IDX);
+                    out.row(cursor, name, (name == null ? null : contactIds.get(name)));
+                }
+                rows += chunk;
+                writer.flush();
             }
+            while (chunk == __CHUNK);
+
+            out.end(rows);
+            writer.flush();
+            Log.i(TAG, "Wrote "+rows+" calls as "+format+" in "+(System.currentTimeMillis()-start)+"ms ("+lookup+"ms looking up names) with "+
+                  (DatabaseCollection.getQueries()-queries)+" provider queries");
+        }
+        finally
+        {
+            calls.close();
         }
     }
+
+
+    private String getTypeName (int type)
+    {
+        String name = _logTypeMap.get(Integer.valueOf(type));
+        return (name == null ? String.valueOf(type) : name);
+    }
+
+
+    public ContentResolver getContentResolver()
+    {
+        return resolver;
+    }
+
+    @Override
+    public void init(ServletConfig config) throws ServletException
+    {
+        super.init(config);
+        resolver = (ContentResolver)getServletContext().getAttribute("org.mortbay.ijetty.contentResolver");
+    }
 }
@@ -65,6 +65,11 @@ public class Contact
         {
             super(cursor, startPosition, limit);
         }
+        
+        public ContactCollection(ContentResolver resolver, String selection, String[] selectionArgs, int startPosition, int limit)
+        {
+            super(resolver, Contacts.People.CONTENT_URI, baseProjection, selection, selectionArgs, __DEFAULT_SORT_ORDER, startPosition, limit);
+        }
 
         @Override
         public ContentValues cursorToValues(Cursor cursor)
@@ -198,7 +203,45 @@ public class Contact
     
     public static ContactCollection getContacts (ContentResolver resolver, int pgStart, int limit)
     {
-        return new ContactCollection(resolver.query(Contacts.People.CONTENT_URI, baseProjection, null, null, __DEFAULT_SORT_ORDER), pgStart, limit);
+        return new ContactCollection(resolver, null, null, pgStart, limit);
+    }
+    
+    
+    /**
+     * getContacts
+     * 
+     * Get the Contacts with the given ids, in order of id, with one query.
+     *
+     * @param resolver
+     * @param ids
+     * @return
+     */
+    public static ContactCollection getContacts (ContentResolver resolver, String[] ids)
+    {
+        return new ContactCollection(resolver.query(Contacts.People.CONTENT_URI,baseProjection,
+                                                    DatabaseCollection.toInSelection("people." + android.provider.BaseColumns._ID, ids.length),
+                                                    ids,__DEFAULT_SORT_ORDER));
+    }
+    
+    
+    /**
+     * getContactsAfter
+     * 
+     * Get a page of Contacts by keyset: as they are sorted by id, the
+     * page after the last id of the previous page can be selected directly,
+     * without the provider counting off the rows before it. Nor are the
+     * rows after it counted, so the total of the page is -1.
+     *
+     * @param resolver
+     * @param afterId the last id of the previous page
+     * @param limit
+     * @return
+     */
+    public static ContactCollection getContactsAfter (ContentResolver resolver, String afterId, int limit)
+    {
+        ContactCollection contacts = new ContactCollection(resolver, "people." + android.provider.BaseColumns._ID + " > ?", new String[] { afterId }, 0, limit);
+        contacts.setCounted(false);
+        return contacts;
     }
 
     /**
@@ -63,6 +63,12 @@ public class ContactMethod
             android.provider.Contacts.ContactMethodsColumns.KIND, android.provider.Contacts.ContactMethodsColumns.LABEL,
             android.provider.Contacts.ContactMethodsColumns.TYPE, android.provider.Contacts.ContactMethodsColumns.ISPRIMARY };
 
+    static final String[] batchContactMethodsProjection = new String[]
+    { android.provider.BaseColumns._ID, android.provider.Contacts.ContactMethods.PERSON_ID, android.provider.Contacts.ContactMethodsColumns.DATA, 
+            android.provider.Contacts.ContactMethodsColumns.AUX_DATA, android.provider.Contacts.ContactMethodsColumns.KIND, 
+            android.provider.Contacts.ContactMethodsColumns.LABEL, android.provider.Contacts.ContactMethodsColumns.TYPE, 
+            android.provider.Contacts.ContactMethodsColumns.ISPRIMARY };
+
     public static void addContactMethod(ContentResolver resolver, ContentValues contactMethod, String userId)
     {
         Uri peopleUri = Uri.withAppendedPath(Contacts.People.CONTENT_URI,userId);
@@ -100,6 +106,28 @@ public class ContactMethod
                 Contacts.ContactMethodsColumns.KIND + " DESC"));
     }
 
+    /**
+     * getContactMethods
+     *
+     * Get the ContactMethods of many Contacts with one query, ordered by
+     * Contact so that they can be merged with a query of the Contacts.
+     *
+     * @param resolver
+     * @param userIds
+     * @return
+     */
+    public static ContactMethodsCollection getContactMethods(ContentResolver resolver, String[] userIds)
+    {
+        if (userIds == null || userIds.length == 0)
+        {
+            return null;
+        }
+
+        return new ContactMethodsCollection(resolver.query(Contacts.ContactMethods.CONTENT_URI,batchContactMethodsProjection,
+                                                           DatabaseCollection.toInSelection(Contacts.ContactMethods.PERSON_ID,userIds.length),userIds,
+                                                           Contacts.ContactMethods.PERSON_ID + " ASC, " + Contacts.ContactMethodsColumns.KIND + " DESC"));
+    }
+
     public static void saveContactMethod(ContentResolver resolver, ContentValues contactMethod, String id, String userId)
     {
         Uri uri = Uri.withAppendedPath(Contacts.ContactMethods.CONTENT_URI,id);
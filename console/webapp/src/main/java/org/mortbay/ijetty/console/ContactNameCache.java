@@ -0,0 +1,166 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.console;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.Contacts;
+import android.util.Log;
+
+/**
+ * ContactNameCache
+ *
+ * The ids of the Contacts with given names, eg to link the cached names of
+ * the call log to the Contacts. The names a page needs that are not cached
+ * are looked up together, rather than with a query per name. The cache is
+ * shared by all requests, holds the most recently used names, and is
+ * cleared when the provider notifies a change to the Contacts.
+ */
+public class ContactNameCache
+{
+    private static final String TAG = "IJetty.Cnsl";
+
+    private static final int __MAX_NAMES = 512;
+
+    /**
+     * sqlite allows at most 999 parameters in a statement
+     */
+    private static final int __MAX_PARAMS = 500;
+
+    private static final Long __UNKNOWN = Long.valueOf(-1);
+
+    private static final Map<String, Long> __ids = new LinkedHashMap<String, Long>(64, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+        {
+            return size() > __MAX_NAMES;
+        }
+    };
+    private static boolean __observed;
+
+
+    /**
+     * @param resolver
+     * @param names
+     * @return the id of each name that is the name of a Contact
+     */
+    public static Map<String, Long> getIds (ContentResolver resolver, Collection<String> names)
+    {
+        Map<String, Long> ids = new HashMap<String, Long>();
+        List<String> missing = new ArrayList<String>();
+        synchronized (__ids)
+        {
+            for (String name : names)
+            {
+                Long id = __ids.get(name);
+                if (id == null)
+                    missing.add(name);
+                else if (id.longValue() >= 0)
+                    ids.put(name, id);
+            }
+        }
+        if (missing.isEmpty())
+            return ids;
+
+        observe(resolver);
+        for (int i = 0; i < missing.size(); i += __MAX_PARAMS)
+        {
+            List<String> batch = missing.subList(i, Math.min(missing.size(), i + __MAX_PARAMS));
+            Map<String, Long> found = query(resolver, batch);
+            if (found == null)
+                continue;
+            ids.putAll(found);
+            synchronized (__ids)
+            {
+                //remember the names that are not Contacts too, so they are not looked up again
+                for (String name : batch)
+                {
+                    Long id = found.get(name);
+                    __ids.put(name, id == null ? __UNKNOWN : id);
+                }
+            }
+        }
+        return ids;
+    }
+
+
+    private static Map<String, Long> query (ContentResolver resolver, List<String> names)
+    {
+        Map<String, Long> found = new HashMap<String, Long>();
+        Cursor cursor = null;
+        try
+        {
+            DatabaseCollection.queried();
+            cursor = resolver.query(Contacts.People.CONTENT_URI,
+                                    new String[] { Contacts.People._ID, Contacts.PeopleColumns.NAME },
+                                    DatabaseCollection.toInSelection(Contacts.PeopleColumns.NAME, names.size()),
+                                    names.toArray(new String[names.size()]),
+                                    Contacts.People._ID + " ASC");
+            if (cursor == null)
+                return null;
+            int idIdx = cursor.getColumnIndex(Contacts.People._ID);
+            int nameIdx = cursor.getColumnIndex(Contacts.PeopleColumns.NAME);
+            while (cursor.moveToNext())
+            {
+                //the first of Contacts with the same name
+                String name = cursor.getString(nameIdx);
+                if (!found.containsKey(name))
+                    found.put(name, Long.valueOf(cursor.getLong(idIdx)));
+            }
+            return found;
+        }
+        catch (RuntimeException e)
+        {
+            Log.w(TAG, "Unable to look up "+names.size()+" contact names", e);
+            return null;
+        }
+        finally
+        {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+
+    private static void observe (ContentResolver resolver)
+    {
+        synchronized (__ids)
+        {
+            if (__observed)
+                return;
+            __observed = true;
+        }
+
+        resolver.registerContentObserver(Contacts.People.CONTENT_URI, true, new ContentObserver(null)
+        {
+            public void onChange(boolean selfChange)
+            {
+                synchronized (__ids)
+                {
+                    __ids.clear();
+                }
+            }
+        });
+    }
+}
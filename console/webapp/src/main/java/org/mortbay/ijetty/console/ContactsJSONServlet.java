@@ -41,6 +41,7 @@ import org.eclipse.jetty.util.URIUtil;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.net.Uri;
 import android.provider.Contacts;
 import android.util.Log;
@@ -76,11 +77,21 @@ import android.util.Log;
  *   /rest/contacts?action=1&id=123
  *   
  * eg request to retrieve 10 contacts starting at Contact 25:
- *   /rest/contacts?start=25&pg=10
+ *   /rest/contacts?pgStart=25&pgSize=10
+ *   
+ * eg request to retrieve the 10 contacts after the one with id 123, whose
+ * total is -1 as the contacts are not counted:
+ *   /rest/contacts?pgAfter=123&pgSize=10
  *   
  * eg request to retrieve all contacts:
  *   /rest/contacts/
  *   
+ * eg request to retrieve the details of Contacts 123, 124 and 200 at once:
+ *   /rest/contacts/batch?ids=123,124,200
+ *   
+ * eg request to retrieve the details of 20 contacts starting at Contact 40:
+ *   /rest/contacts/batch?pgStart=40&pgSize=20
+ *   
  * 
  */
 public class ContactsJSONServlet extends HttpServlet
@@ -102,6 +113,14 @@ public class ContactsJSONServlet extends HttpServlet
     public static final String __ACTION_PARAM = "action";
     public static final String __PG_START_PARAM = "pgStart";
     public static final String __PG_SIZE_PARAM = "pgSize";
+    public static final String __PG_AFTER_PARAM = "pgAfter";
+    public static final String __IDS_PARAM = "ids";
+    public static final String __BATCH = "batch";
+    
+    /**
+     * The most contacts whose details are fetched in one batch
+     */
+    public static final int __MAX_BATCH = 100;
     
     private ContentResolver resolver;
     
@@ -169,7 +188,12 @@ public class ContactsJSONServlet extends HttpServlet
             {
                 case __ACTION_NONE:
                 {
-                    if (who != null)
+                    if (__BATCH.equals(who))
+                    {
+                        //the details of many contacts
+                        handleGetContactsBatch(request,response);
+                    }
+                    else if (who != null)
                     {
                         //a specific contact is being requested
                         if (isPhoto)
@@ -184,8 +208,12 @@ public class ContactsJSONServlet extends HttpServlet
                         int pgStart = (str == null ? -1 : Integer.parseInt(str.trim()));
                         str = request.getParameter(__PG_SIZE_PARAM);
                         int pgSize = (str == null ? -1 : Integer.parseInt(str.trim()));
+                        String pgAfter = request.getParameter(__PG_AFTER_PARAM);
                         
-                        handleGetContacts(request,response, pgStart, pgSize);
+                        if (pgAfter != null)
+                            handleGetContactsAfter(request,response, pgAfter.trim(), pgSize);
+                        else
+                            handleGetContacts(request,response, pgStart, pgSize);
                     }
                     break;
                 }
@@ -245,77 +273,123 @@ public class ContactsJSONServlet extends HttpServlet
         writer.println("{ \"status\": \"OK\" }");
     }
 
-    private void getContactMethods(String who, ContactMethod.ContactMethodsCollection contactMethods, PrintWriter writer)
+    private int[] getContactMethodColumns(DatabaseCollection contactMethods)
     {
-        writer.print("[");
-        ContentValues contactMethod;
-        StringBuffer buff = new StringBuffer();
-        while (contactMethods != null && (contactMethod = contactMethods.next()) != null)
+        return new int[]
         {
-            String id = contactMethod.getAsString(android.provider.BaseColumns._ID);
-            String data = contactMethod.getAsString(Contacts.ContactMethodsColumns.DATA);
-            String auxData = contactMethod.getAsString(Contacts.ContactMethodsColumns.AUX_DATA);
-            String label = contactMethod.getAsString(Contacts.ContactMethodsColumns.LABEL);
-            int isPrimary = contactMethod.getAsInteger(Contacts.ContactMethodsColumns.ISPRIMARY).intValue();
-            int kind = contactMethod.getAsInteger(Contacts.ContactMethodsColumns.KIND).intValue();
-            int type = contactMethod.getAsInteger(Contacts.ContactMethodsColumns.TYPE).intValue();
-            buff.append("{ \"data\": \"" + data + "\", \"aux\": \"" + auxData + "\",  \"label\": \"" + (label == null?"\"":label + "\"") + ", \"primary\": "
-                    + isPrimary + ", \"kind\": " + kind + ", \"type\": " + type + ", \"id\": \"" + id + "\"}");
-            if (contactMethods.hasNext())
-            {
-                buff.append(",");
-            }
+            contactMethods.getColumnIndex(android.provider.BaseColumns._ID),
+            contactMethods.getColumnIndex(Contacts.ContactMethodsColumns.DATA),
+            contactMethods.getColumnIndex(Contacts.ContactMethodsColumns.AUX_DATA),
+            contactMethods.getColumnIndex(Contacts.ContactMethodsColumns.LABEL),
+            contactMethods.getColumnIndex(Contacts.ContactMethodsColumns.ISPRIMARY),
+            contactMethods.getColumnIndex(Contacts.ContactMethodsColumns.KIND),
+            contactMethods.getColumnIndex(Contacts.ContactMethodsColumns.TYPE)
+        };
+    }
+
+    private void writeContactMethod(JSONWriter json, Cursor cursor, int[] columns) throws IOException
+    {
+        json.startObject();
+        json.name("data").column(cursor,columns[1]);
+        json.name("aux").column(cursor,columns[2]);
+        json.name("label").column(cursor,columns[3],"");
+        json.name("primary").longColumn(cursor,columns[4]);
+        json.name("kind").longColumn(cursor,columns[5]);
+        json.name("type").longColumn(cursor,columns[6]);
+        json.name("id").column(cursor,columns[0]);
+        json.endObject();
+    }
+
+    private void getContactMethods(String who, ContactMethod.ContactMethodsCollection contactMethods, JSONWriter json) throws IOException
+    {
+        json.startArray();
+        if (contactMethods != null)
+        {
+            //resolve the columns once, not for every row
+            int[] columns = getContactMethodColumns(contactMethods);
+            Cursor cursor;
+            while ((cursor = contactMethods.nextRow()) != null)
+                writeContactMethod(json,cursor,columns);
         }
-        writer.print(buff.toString());
-        writer.print("]");
+        json.endArray();
     }
 
-    private void getPhones(String who, Phone.PhoneCollection phones, PrintWriter writer)
+    private int[] getPhoneColumns(DatabaseCollection phones)
     {
-        ContentValues phone;
-        writer.print("[ ");
-        StringBuffer buff = new StringBuffer();
-        while (phones != null && (phone = phones.next()) != null)
+        return new int[]
         {
-            String id = phone.getAsString(android.provider.BaseColumns._ID);
-            String label = phone.getAsString(Contacts.PhonesColumns.LABEL);
-            String number = phone.getAsString(Contacts.PhonesColumns.NUMBER);
-            int type = phone.getAsInteger(Contacts.PhonesColumns.TYPE).intValue();
-            buff.append("{\"number\": \"" + number + "\", \"label\" : \"" + (label == null?"":label.replace("\'","\\'")) + "\", \"type\" : " + type
-                    + ", \"id\": \"" + id + "\" }");
-            if (phones.hasNext())
-            {
-                buff.append(", ");
-            }
+            phones.getColumnIndex(android.provider.BaseColumns._ID),
+            phones.getColumnIndex(Contacts.PhonesColumns.NUMBER),
+            phones.getColumnIndex(Contacts.PhonesColumns.LABEL),
+            phones.getColumnIndex(Contacts.PhonesColumns.TYPE)
+        };
+    }
+
+    private void writePhone(JSONWriter json, Cursor cursor, int[] columns) throws IOException
+    {
+        json.startObject();
+        json.name("number").column(cursor,columns[1]);
+        json.name("label").column(cursor,columns[2],"");
+        json.name("type").longColumn(cursor,columns[3]);
+        json.name("id").column(cursor,columns[0]);
+        json.endObject();
+    }
+
+    private void getPhones(String who, Phone.PhoneCollection phones, JSONWriter json) throws IOException
+    {
+        json.startArray();
+        if (phones != null)
+        {
+            int[] columns = getPhoneColumns(phones);
+            Cursor cursor;
+            while ((cursor = phones.nextRow()) != null)
+                writePhone(json,cursor,columns);
         }
-        writer.print(buff.toString());
-        writer.print(" ]");
+        json.endArray();
     }
 
-    private void getSummary(ContentValues values, PrintWriter writer)
+    private int[] getSummaryColumns(DatabaseCollection users)
     {
-        if ((values != null) && (writer != null))
+        return new int[]
+        {
+            users.getColumnIndex(android.provider.BaseColumns._ID),
+            users.getColumnIndex(Contacts.PeopleColumns.DISPLAY_NAME),
+            users.getColumnIndex(Contacts.PeopleColumns.STARRED),
+            users.getColumnIndex(Contacts.PeopleColumns.SEND_TO_VOICEMAIL),
+            users.getColumnIndex(Contacts.PeopleColumns.NOTES)
+        };
+    }
+
+    private void writeSummary(JSONWriter json, Cursor cursor, int[] columns) throws IOException
+    {
+        json.startObject();
+        json.name("name").column(cursor,columns[1]);
+        json.name("id").column(cursor,columns[0]);
+        json.name("starred").booleanColumn(cursor,columns[2]);
+        json.name("voicemail").booleanColumn(cursor,columns[3]);
+        if (columns[4] >= 0 && !cursor.isNull(columns[4]))
+            json.name("notes").column(cursor,columns[4]);
+        json.endObject();
+    }
+
+    private void getSummary(ContentValues values, JSONWriter json) throws IOException
+    {
+        if ((values != null) && (json != null))
         {
-            String id = values.getAsString(android.provider.BaseColumns._ID);
-            String name = values.getAsString(Contacts.PeopleColumns.DISPLAY_NAME);
-            String notes = values.getAsString(Contacts.PeopleColumns.NOTES);
             Integer i = values.getAsInteger(Contacts.PeopleColumns.STARRED);
             boolean starred = (i == null?false:i.intValue() > 0);
             i = values.getAsInteger(Contacts.PeopleColumns.SEND_TO_VOICEMAIL);
             boolean voicemail = (i == null?false:i.intValue() > 0);
+            String notes = values.getAsString(Contacts.PeopleColumns.NOTES);
 
-            writer.print("{\"name\": \"" + name.replace("\'","\\'") + "\", ");
-            writer.print("\"id\": \"" + id + "\", ");
-            writer.print("\"starred\": " + Boolean.toString(starred) + ", ");
-            writer.print("\"voicemail\": " + Boolean.toString(voicemail));
-           
-
+            json.startObject();
+            json.name("name").value(values.getAsString(Contacts.PeopleColumns.DISPLAY_NAME));
+            json.name("id").value(values.getAsString(android.provider.BaseColumns._ID));
+            json.name("starred").value(starred);
+            json.name("voicemail").value(voicemail);
             if (notes != null)
-            {
-                writer.print(", \"notes\": \"" + notes.replace("'","\\'") + "\"");
-            }
-
-            writer.print(" }");
+                json.name("notes").value(notes);
+            json.endObject();
         }
     }
 
@@ -377,65 +451,150 @@ public class ContactsJSONServlet extends HttpServlet
             writer.println("{\"error\": \"No such user.\"}");
         else
         {
-            writer.print("{ \"summary\" : ");
-            getSummary(values,writer);
-
-            writer.print(", \"phones\" : ");
+            JSONWriter json = new JSONWriter(writer);
+            json.startObject();
+            json.name("summary");
+            getSummary(values,json);
 
             //query for all phone details
+            json.name("phones");
             Phone.PhoneCollection phones = Phone.getPhones(getContentResolver(),who);
-            getPhones(who,phones,writer);
+            getPhones(who,phones,json);
             phones.close();
 
-            writer.print(", \"contacts\" : ");
-
             //query for all contact details
+            json.name("contacts");
             ContactMethod.ContactMethodsCollection contactMethods = ContactMethod.getContactMethods(getContentResolver(),who);
-            getContactMethods(who,contactMethods,writer);
+            getContactMethods(who,contactMethods,json);
             contactMethods.close();
 
-            writer.print(", \"version\": " + __VERSION);
-
-            writer.print(" }");
+            json.name("version").value(__VERSION);
+            json.endObject();
         }
     }
 
-    private void getContacts (Contact.ContactCollection users, PrintWriter writer, int pgSize)
+    private void getContacts (Contact.ContactCollection users, PrintWriter writer, int pgSize) throws IOException
     {        
-        writer.println("{\"version\": " + __VERSION+", ");
-        writer.println("\"total\": "+users.getTotal()+", ");
-        writer.println("\"contacts\": ");
-        writer.println("[");
+        JSONWriter json = new JSONWriter(writer);
+        json.startObject();
+        json.name("version").value(__VERSION);
+        json.name("total").value(users == null ? 0 : users.getTotal());
+        json.name("contacts").startArray();
         if (users != null)
         {
-            ContentValues user = null;
+            //resolve the columns once, then stream each row straight from the cursor
+            int idIdx = users.getColumnIndex(android.provider.BaseColumns._ID);
+            int nameIdx = users.getColumnIndex(Contacts.PeopleColumns.DISPLAY_NAME);
+            int starredIdx = users.getColumnIndex(Contacts.PeopleColumns.STARRED);
+            Cursor cursor = null;
             int count = pgSize;
-           
             
-            while ((pgSize <= 0 || count-- > 0) && (user = users.next()) != null)
+            while ((pgSize <= 0 || count-- > 0) && (cursor = users.nextRow()) != null)
             {
-                writer.println("{");
-                String id = user.getAsString(android.provider.BaseColumns._ID);
-                String name = user.getAsString(Contacts.PeopleColumns.DISPLAY_NAME);
-                Integer i = user.getAsInteger(Contacts.PeopleColumns.STARRED);
-                boolean starred = (i == null?false:i.intValue() > 0);
-                writer.println("\"id\" : \"" + id + "\", ");
-                writer.println("\"name\" : \"" + name + "\", ");
-                writer.println("\"starred\": " + starred);
-                writer.println("}");
-                if (users.hasNext())
-                {
-                    writer.println(",");
-                }
+                json.startObject();
+                json.name("id").column(cursor,idIdx);
+                json.name("name").column(cursor,nameIdx);
+                json.name("starred").booleanColumn(cursor,starredIdx);
+                json.endObject();
             }
         }
-        writer.println("]");
-        writer.println("}");
+        json.endArray();
+        json.endObject();
+        writer.println();
     }
 
   
 
 
+    /**
+     * Generate a JSON document of many Contacts, each as for
+     * {@link #getContact(PrintWriter, HttpServletRequest, HttpServletResponse, String)},
+     * in order of id: eg.
+     * 
+     * <pre>
+     * {
+     *   version: 3,
+     *   contacts: [ { summary: {...}, phones: [...], contacts: [...] }, ... ]
+     * }
+     * </pre>
+     * 
+     * The phones and contact methods of all of the Contacts are queried at
+     * once, ordered by Contact, and merged with the Contacts as they are
+     * written, so there are 3 queries however many Contacts there are.
+     * 
+     * @param users the Contacts, in order of id
+     * @param ids the ids of the Contacts
+     * @param writer
+     * @throws IOException
+     */
+    private void getContactsBatch (Contact.ContactCollection users, String[] ids, PrintWriter writer) throws IOException
+    {
+        Phone.PhoneCollection phones = null;
+        ContactMethod.ContactMethodsCollection contactMethods = null;
+        try
+        {
+            JSONWriter json = new JSONWriter(writer);
+            json.startObject();
+            json.name("version").value(__VERSION);
+            json.name("contacts").startArray();
+            if (users != null && ids.length > 0)
+            {
+                phones = Phone.getPhones(getContentResolver(),ids);
+                contactMethods = ContactMethod.getContactMethods(getContentResolver(),ids);
+
+                int idIdx = users.getColumnIndex(android.provider.BaseColumns._ID);
+                int[] summaryColumns = getSummaryColumns(users);
+                int phonePersonIdx = (phones == null ? -1 : phones.getColumnIndex(Contacts.Phones.PERSON_ID));
+                int[] phoneColumns = (phones == null ? null : getPhoneColumns(phones));
+                int methodPersonIdx = (contactMethods == null ? -1 : contactMethods.getColumnIndex(Contacts.ContactMethods.PERSON_ID));
+                int[] methodColumns = (contactMethods == null ? null : getContactMethodColumns(contactMethods));
+
+                Cursor phone = (phonePersonIdx < 0 ? null : phones.nextRow());
+                Cursor contactMethod = (methodPersonIdx < 0 ? null : contactMethods.nextRow());
+                Cursor user;
+                while ((user = users.nextRow()) != null)
+                {
+                    long id = user.getLong(idIdx);
+                    json.startObject();
+                    json.name("summary");
+                    writeSummary(json,user,summaryColumns);
+
+                    json.name("phones").startArray();
+                    while (phone != null && phone.getLong(phonePersonIdx) < id)
+                        phone = phones.nextRow();
+                    while (phone != null && phone.getLong(phonePersonIdx) == id)
+                    {
+                        writePhone(json,phone,phoneColumns);
+                        phone = phones.nextRow();
+                    }
+                    json.endArray();
+
+                    json.name("contacts").startArray();
+                    while (contactMethod != null && contactMethod.getLong(methodPersonIdx) < id)
+                        contactMethod = contactMethods.nextRow();
+                    while (contactMethod != null && contactMethod.getLong(methodPersonIdx) == id)
+                    {
+                        writeContactMethod(json,contactMethod,methodColumns);
+                        contactMethod = contactMethods.nextRow();
+                    }
+                    json.endArray();
+                    json.endObject();
+                }
+            }
+            json.endArray();
+            json.endObject();
+            writer.println();
+        }
+        finally
+        {
+            if (phones != null)
+                phones.close();
+            if (contactMethods != null)
+                contactMethods.close();
+        }
+    }
+
+
     public void handleDefault(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException
     {
@@ -477,6 +636,92 @@ public class ContactsJSONServlet extends HttpServlet
         getContacts(users,writer, pgSize);
         users.close();
     }
+    
+    
+    public void handleGetContactsAfter(HttpServletRequest request, HttpServletResponse response,
+                                       String afterId, int pgSize)
+    throws ServletException, IOException
+    {
+        PrintWriter writer = response.getWriter();
+        response.setContentType("text/json; charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+        Contact.ContactCollection users = Contact.getContactsAfter(getContentResolver(), afterId, pgSize);
+
+        getContacts(users,writer, pgSize);
+        users.close();
+    }
+
+ 
+    public void handleGetContactsBatch(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException
+    {
+        Contact.ContactCollection users = null;
+        String[] ids = null;
+        
+        String idList = request.getParameter(__IDS_PARAM);
+        if (idList != null)
+        {
+            //the given ids, which must be numbers
+            List<String> list = new ArrayList<String>();
+            StringTokenizer tok = new StringTokenizer(idList,", ");
+            try
+            {
+                while (tok.hasMoreTokens())
+                    list.add(String.valueOf(Long.parseLong(tok.nextToken())));
+            }
+            catch (NumberFormatException e)
+            {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,"Bad contact id");
+                return;
+            }
+            if (list.size() > __MAX_BATCH)
+            {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,"More than "+__MAX_BATCH+" contacts");
+                return;
+            }
+            ids = list.toArray(new String[list.size()]);
+            if (ids.length > 0)
+                users = Contact.getContacts(getContentResolver(),ids);
+        }
+        else
+        {
+            //a page of contacts, at most a batch
+            String str = request.getParameter(__PG_START_PARAM);
+            int pgStart = (str == null ? 0 : Math.max(0,Integer.parseInt(str.trim())));
+            str = request.getParameter(__PG_SIZE_PARAM);
+            int pgSize = (str == null ? __MAX_BATCH : Integer.parseInt(str.trim()));
+            if (pgSize <= 0 || pgSize > __MAX_BATCH)
+                pgSize = __MAX_BATCH;
+            String pgAfter = request.getParameter(__PG_AFTER_PARAM);
+            
+            if (pgAfter != null)
+                users = Contact.getContactsAfter(getContentResolver(),pgAfter.trim(),pgSize);
+            else
+                users = Contact.getContacts(getContentResolver(),pgStart,pgSize);
+            
+            //the ids of the page are needed to query the phones and contact methods
+            List<String> list = new ArrayList<String>();
+            int idIdx = users.getColumnIndex(android.provider.BaseColumns._ID);
+            Cursor cursor;
+            while (idIdx >= 0 && (cursor = users.nextRow()) != null)
+                list.add(cursor.getString(idIdx));
+            users.rewind();
+            ids = list.toArray(new String[list.size()]);
+        }
+        
+        response.setContentType("text/json; charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+        PrintWriter writer = response.getWriter();
+        try
+        {
+            getContactsBatch(users,ids,writer);
+        }
+        finally
+        {
+            if (users != null)
+                users.close();
+        }
+    }
 
  
     public void handleSaveContact(HttpServletRequest request, HttpServletResponse response, String who) throws ServletException, IOException
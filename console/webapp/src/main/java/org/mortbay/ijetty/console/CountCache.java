@@ -0,0 +1,138 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.console;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+/**
+ * CountCache
+ *
+ * The number of rows a query matches, so that a paged listing need not
+ * count every row on every page. The count is made with a query of just the
+ * ids, and is kept until the provider notifies a change to the uri. Only
+ * the {@link #__MAX_COUNTS} most recently used counts are kept.
+ */
+public class CountCache
+{
+    private static final String TAG = "IJetty.Cnsl";
+
+    public static final int __MAX_COUNTS = 64;
+
+    private static final Map<String, Long> __counts = new LinkedHashMap<String, Long>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry (Map.Entry<String, Long> eldest)
+        {
+            return size() > __MAX_COUNTS;
+        }
+    };
+    private static final Set<Uri> __observed = new HashSet<Uri>();
+
+
+    /**
+     * @param resolver
+     * @param uri
+     * @param selection
+     * @param selectionArgs
+     * @return the number of rows, or -1 if they cannot be counted
+     */
+    public static long getCount (ContentResolver resolver, Uri uri, String selection, String[] selectionArgs)
+    {
+        String key = toKey(uri, selection, selectionArgs);
+        synchronized (__counts)
+        {
+            Long count = __counts.get(key);
+            if (count != null)
+                return count.longValue();
+        }
+
+        observe(resolver, uri);
+        long count = -1;
+        Cursor cursor = null;
+        try
+        {
+            DatabaseCollection.queried();
+            cursor = resolver.query(uri, new String[] { BaseColumns._ID }, selection, selectionArgs, null);
+            if (cursor != null)
+                count = cursor.getCount();
+        }
+        catch (RuntimeException e)
+        {
+            Log.w(TAG, "Unable to count "+uri, e);
+        }
+        finally
+        {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        if (count >= 0)
+        {
+            synchronized (__counts)
+            {
+                __counts.put(key, Long.valueOf(count));
+            }
+        }
+        return count;
+    }
+
+
+    private static void observe (ContentResolver resolver, final Uri uri)
+    {
+        synchronized (__counts)
+        {
+            if (!__observed.add(uri))
+                return;
+        }
+
+        resolver.registerContentObserver(uri, true, new ContentObserver(null)
+        {
+            public void onChange(boolean selfChange)
+            {
+                String prefix = uri.toString()+"|";
+                synchronized (__counts)
+                {
+                    Iterator<String> iter = __counts.keySet().iterator();
+                    while (iter.hasNext())
+                    {
+                        if (iter.next().startsWith(prefix))
+                            iter.remove();
+                    }
+                }
+            }
+        });
+    }
+
+
+    private static String toKey (Uri uri, String selection, String[] selectionArgs)
+    {
+        StringBuilder key = new StringBuilder();
+        key.append(uri).append('|').append(selection);
+        for (int i=0; selectionArgs != null && i<selectionArgs.length; i++)
+            key.append('|').append(selectionArgs[i]);
+        return key.toString();
+    }
+}
@@ -15,26 +15,57 @@
 
 package org.mortbay.ijetty.console;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
 
 
 
 /**
  * DatabaseCollection
  * 
- * Ideally this would use a sqlite select with limit, but
- * unfortunately Android ContentProvider does not support
- * that.
+ * ContentProvider has no api for a select with limit, but the
+ * providers backed by sqlite append the sort order to their
+ * query, so a LIMIT and OFFSET can be pushed down to them in 
+ * the sort order. If a provider will not take them, all the
+ * rows are queried and the collection skips to the page.
  */
 public abstract class DatabaseCollection
 {
+    private static final String TAG = "IJetty.Cnsl";
+    private static final AtomicInteger __queries = new AtomicInteger();
+    
     protected Cursor cursor;
     protected int startPos = 0;
     protected int limit = -1;
     protected int count = 0;
     
     protected boolean inited = false;
+    
+    /**
+     * the position of the cursor before the first row of the page
+     */
+    protected int base = -1;
+    
+    /**
+     * true if the cursor holds just the page, so there is no need to skip
+     */
+    protected boolean paged = false;
+    
+    /**
+     * false if the total is not counted, eg for a page selected by keyset,
+     * whose selection is different for every page
+     */
+    protected boolean counted = true;
+    
+    protected ContentResolver resolver;
+    protected Uri uri;
+    protected String selection;
+    protected String[] selectionArgs;
 
     public DatabaseCollection(Cursor cursor)
     {
@@ -52,6 +83,81 @@ public abstract class DatabaseCollection
         this.startPos = startPos;
         this.limit = limit;
     }
+    
+    /**
+     * Query a page of rows, pushing the page down into the query if the
+     * provider will take it.
+     * 
+     * @param resolver
+     * @param uri
+     * @param projection
+     * @param selection
+     * @param selectionArgs
+     * @param sortOrder must not be null if the page is to be pushed down
+     * @param startPos number of rows to skip
+     * @param limit number of rows to return
+     */
+    public DatabaseCollection(ContentResolver resolver, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder, int startPos, int limit)
+    {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        this.startPos = startPos;
+        this.limit = limit;
+        
+        if (limit > 0 && startPos >= 0 && sortOrder != null)
+        {
+            try
+            {
+                queried();
+                cursor = resolver.query(uri, projection, selection, selectionArgs, sortOrder+" LIMIT "+limit+" OFFSET "+startPos);
+                if (cursor != null)
+                {
+                    //a provider that ignores the limit gives every row, which are skipped as before
+                    int rows = cursor.getCount();
+                    if (rows > limit)
+                        paged = false;
+                    else if (startPos == 0)
+                        paged = true;
+                    else
+                    {
+                        //a page can be all the rows there are, so only then is the count needed
+                        long total = CountCache.getCount(resolver, uri, selection, selectionArgs);
+                        paged = (total < 0 || rows != total);
+                    }
+                    return;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                Log.d(TAG, "No LIMIT for "+uri+": "+e);
+            }
+        }
+        
+        queried();
+        cursor = resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+    }
+    
+    
+    /**
+     * Count a query of a content provider made by the console.
+     */
+    static void queried ()
+    {
+        __queries.incrementAndGet();
+    }
+    
+    
+    /**
+     * @return the number of content provider queries the console has made, 
+     * so that a servlet can log how many it took to serve a request. The 
+     * count includes those of any requests served at the same time.
+     */
+    public static int getQueries ()
+    {
+        return __queries.get();
+    }
 
     public void close()
     {
@@ -62,8 +168,31 @@ public abstract class DatabaseCollection
     public abstract ContentValues cursorToValues(Cursor cursor);
 
     
+    /**
+     * @param counted false if {@link #getTotal()} should not count the rows
+     */
+    public void setCounted (boolean counted)
+    {
+        this.counted = counted;
+    }
+    
+    /**
+     * @return the number of rows the query matches, or -1 if that is not
+     * known or not counted
+     */
     public long getTotal ()
     {
+        if (!counted)
+            return -1;
+        
+        //a paged cursor only has the page, so count the rows separately
+        if (resolver != null)
+        {
+            long total = CountCache.getCount(resolver, uri, selection, selectionArgs);
+            if (total >= 0 || paged)
+                return total;
+        }
+        
         if (cursor != null)
             return cursor.getCount();
         
@@ -90,14 +219,85 @@ public abstract class DatabaseCollection
     {
         ContentValues values = null;
 
+        Cursor row = nextRow();
+        if (row != null)
+            return cursorToValues(row);
+
+        return values;
+    }
+    
+    /**
+     * Move to the next row without copying it to ContentValues, so that
+     * it can be streamed straight from the cursor.
+     * 
+     * @return the cursor positioned at the row, or null if there are no more
+     */
+    public Cursor nextRow()
+    {
         init();
-        if ((limit < 0 || (count < limit)) && cursor.moveToNext())
+        if (cursor != null && (limit < 0 || (count < limit)) && cursor.moveToNext())
         {
             ++count;
-            return cursorToValues(cursor);
+            return cursor;
         }
-
-        return values;
+        return null;
+    }
+    
+    /**
+     * Go back to before the first row of the page, so it can be read again.
+     */
+    public void rewind()
+    {
+        if (cursor != null)
+            cursor.moveToPosition(-1);
+        inited = false;
+    }
+    
+    /**
+     * @return a mark of the rows read so far, to go back to with {@link #reset(int)}
+     */
+    public int mark()
+    {
+        init();
+        return count;
+    }
+    
+    /**
+     * Go back to a mark, so the rows after it can be read again.
+     * @param mark
+     */
+    public void reset(int mark)
+    {
+        init();
+        if (cursor != null)
+            cursor.moveToPosition(base + mark);
+        count = mark;
+    }
+    
+    /**
+     * @param column
+     * @param count the number of values
+     * @return a selection of the column IN count ? parameters
+     */
+    public static String toInSelection (String column, int count)
+    {
+        StringBuilder selection = new StringBuilder();
+        selection.append(column).append(" IN (");
+        for (int i = 0; i < count; i++)
+            selection.append(i == 0 ? "?" : ",?");
+        selection.append(')');
+        return selection.toString();
+    }
+    
+    /**
+     * @param column
+     * @return the index of the column, or -1 if there is no such column
+     */
+    public int getColumnIndex (String column)
+    {
+        if (cursor == null)
+            return -1;
+        return cursor.getColumnIndex(column);
     }
     
     private void init ()
@@ -105,7 +305,7 @@ public abstract class DatabaseCollection
         if (!inited)
         {
             count = 0;
-            if (cursor != null)      
+            if (cursor != null && !paged)      
             {
                 //we need to skip forward a number of rows
                 if (startPos > 0)
@@ -123,6 +323,8 @@ public abstract class DatabaseCollection
                     cursor.moveToLast(); // don't return any rows as we've gone negative
                 }
             }
+            if (cursor != null)
+                base = cursor.getPosition();
             inited = true;
         }
     }
@@ -0,0 +1,106 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.console;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * FieldSelection
+ *
+ * The fields of a rest response that a client asked for with a
+ * fields=a,b,c parameter, and the projection of columns that the query
+ * needs to produce them. Each endpoint names the fields it can return,
+ * and the column that each of them comes from.
+ */
+public class FieldSelection
+{
+    public static final String __FIELDS_PARAM = "fields";
+
+    private final String[] _fields;
+    private final String[] _columns;
+    private final boolean[] _selected;
+
+
+    /**
+     * @param request
+     * @param fields the names of the fields the endpoint can return
+     * @param columns the column of each field, or null for a field not
+     * read from the cursor
+     */
+    public FieldSelection (HttpServletRequest request, String[] fields, String[] columns)
+    {
+        _fields = fields;
+        _columns = columns;
+        _selected = new boolean[fields.length];
+
+        String param = request.getParameter(__FIELDS_PARAM);
+        if (param == null || param.trim().length() == 0)
+        {
+            //all of them
+            for (int i = 0; i < _selected.length; i++)
+                _selected[i] = true;
+            return;
+        }
+
+        //unknown fields are ignored
+        StringTokenizer tok = new StringTokenizer(param, ", ");
+        while (tok.hasMoreTokens())
+        {
+            String field = tok.nextToken();
+            for (int i = 0; i < _fields.length; i++)
+            {
+                if (_fields[i].equalsIgnoreCase(field))
+                    _selected[i] = true;
+            }
+        }
+    }
+
+
+    public boolean isSelected (String field)
+    {
+        for (int i = 0; i < _fields.length; i++)
+        {
+            if (_fields[i].equals(field))
+                return _selected[i];
+        }
+        return false;
+    }
+
+
+    /**
+     * @param extra columns needed whatever the fields, or null
+     * @return the columns of the selected fields, and the extra ones
+     */
+    public String[] getProjection (String[] extra)
+    {
+        List<String> projection = new ArrayList<String>();
+        for (int i = 0; i < _fields.length; i++)
+        {
+            if (_selected[i] && _columns[i] != null && !projection.contains(_columns[i]))
+                projection.add(_columns[i]);
+        }
+        for (int i = 0; extra != null && i < extra.length; i++)
+        {
+            if (!projection.contains(extra[i]))
+                projection.add(extra[i]);
+        }
+        return projection.toArray(new String[projection.size()]);
+    }
+}
@@ -139,6 +139,43 @@ public class HTMLHelper
         }
     }
 
+    /**
+     * @param text
+     * @return the text with the html special characters escaped
+     */
+    public static String escape(String text)
+    {
+        if (text == null)
+            return null;
+
+        StringBuilder builder = null;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            String entity = null;
+            switch (c)
+            {
+                case '<': entity = "&lt;"; break;
+                case '>': entity = "&gt;"; break;
+                case '&': entity = "&amp;"; break;
+                case '"': entity = "&quot;"; break;
+                case '\'': entity = "&#39;"; break;
+            }
+            if (entity == null)
+            {
+                if (builder != null)
+                    builder.append(c);
+            }
+            else
+            {
+                if (builder == null)
+                    builder = new StringBuilder(text.length() + 16).append(text, 0, i);
+                builder.append(entity);
+            }
+        }
+        return builder == null ? text : builder.toString();
+    }
+
     public static String getRowStyle(int row)
     {
         if (row % 2 == 0)
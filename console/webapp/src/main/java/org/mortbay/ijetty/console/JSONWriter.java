@@ -0,0 +1,333 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.console;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * JSONWriter
+ *
+ * Streams JSON to a Writer, keeping track of where commas go, and escaping
+ * strings as it writes them. String columns of a Cursor are copied into a
+ * buffer that is reused for every cell, and numbers are written digit by 
+ * digit into another, so writing rows straight from a cursor allocates 
+ * nothing per row.
+ *
+ * eg
+ * <pre>
+ * json.startObject().name("total").value(10).name("rows").startArray();
+ * while (cursor.moveToNext())
+ *     json.startObject().name("name").column(cursor, nameIndex).endObject();
+ * json.endArray().endObject();
+ * </pre>
+ */
+public class JSONWriter
+{
+    private static final char[] __HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer _out;
+    private final CharArrayBuffer _buffer = new CharArrayBuffer(128);
+    private final char[] _digits = new char[20];
+    private boolean[] _first = new boolean[8];
+    private int _depth;
+    private boolean _afterName;
+
+
+    public JSONWriter (Writer out)
+    {
+        _out = out;
+    }
+
+
+    public JSONWriter startObject () throws IOException
+    {
+        separate();
+        _out.write('{');
+        push();
+        return this;
+    }
+
+
+    public JSONWriter endObject () throws IOException
+    {
+        _depth--;
+        _out.write('}');
+        return this;
+    }
+
+
+    public JSONWriter startArray () throws IOException
+    {
+        separate();
+        _out.write('[');
+        push();
+        return this;
+    }
+
+
+    public JSONWriter endArray () throws IOException
+    {
+        _depth--;
+        _out.write(']');
+        return this;
+    }
+
+
+    /**
+     * The name of the next member of an object.
+     * @param name
+     */
+    public JSONWriter name (String name) throws IOException
+    {
+        separate();
+        quote(name);
+        _out.write(':');
+        _afterName = true;
+        return this;
+    }
+
+
+    public JSONWriter value (String value) throws IOException
+    {
+        if (value == null)
+            return nullValue();
+        separate();
+        quote(value);
+        return this;
+    }
+
+
+    public JSONWriter value (long value) throws IOException
+    {
+        separate();
+        if (value == Long.MIN_VALUE)
+        {
+            //has no positive to negate
+            _out.write("-9223372036854775808");
+            return this;
+        }
+        
+        //the digits go into a reused buffer rather than a new String
+        boolean negative = value < 0;
+        if (negative)
+            value = -value;
+        int start = _digits.length;
+        do
+        {
+            _digits[--start] = (char)('0' + (int)(value % 10));
+            value /= 10;
+        }
+        while (value != 0);
+        if (negative)
+            _digits[--start] = '-';
+        _out.write(_digits, start, _digits.length - start);
+        return this;
+    }
+
+
+    public JSONWriter value (boolean value) throws IOException
+    {
+        separate();
+        _out.write(value ? "true" : "false");
+        return this;
+    }
+
+
+    public JSONWriter nullValue () throws IOException
+    {
+        separate();
+        _out.write("null");
+        return this;
+    }
+
+
+    /**
+     * Write a column of the current row as a string.
+     * @param cursor
+     * @param index the index of the column, or -1 to write null
+     */
+    public JSONWriter column (Cursor cursor, int index) throws IOException
+    {
+        if (index < 0 || cursor.isNull(index))
+            return nullValue();
+
+        separate();
+        cursor.copyStringToBuffer(index, _buffer);
+        quote(_buffer.data, _buffer.sizeCopied);
+        return this;
+    }
+
+
+    /**
+     * Write a column of the current row as a string.
+     * @param cursor
+     * @param index the index of the column
+     * @param ifNull the value to write if the column is null
+     */
+    public JSONWriter column (Cursor cursor, int index, String ifNull) throws IOException
+    {
+        if (index < 0 || cursor.isNull(index))
+            return value(ifNull);
+        return column(cursor, index);
+    }
+
+
+    /**
+     * Write a column of the current row as a number.
+     * @param cursor
+     * @param index the index of the column, or -1 to write null
+     */
+    public JSONWriter longColumn (Cursor cursor, int index) throws IOException
+    {
+        if (index < 0 || cursor.isNull(index))
+            return nullValue();
+        return value(cursor.getLong(index));
+    }
+
+
+    /**
+     * Write a column of the current row as true if it is greater than 0.
+     * @param cursor
+     * @param index the index of the column, or -1 to write false
+     */
+    public JSONWriter booleanColumn (Cursor cursor, int index) throws IOException
+    {
+        return value(index >= 0 && cursor.getInt(index) > 0);
+    }
+
+
+    public void flush () throws IOException
+    {
+        _out.flush();
+    }
+
+
+    private void separate () throws IOException
+    {
+        if (_afterName)
+        {
+            _afterName = false;
+            return;
+        }
+        if (_depth > 0)
+        {
+            if (!_first[_depth])
+                _out.write(',');
+            _first[_depth] = false;
+        }
+    }
+
+
+    private void push ()
+    {
+        _depth++;
+        if (_depth == _first.length)
+        {
+            boolean[] first = new boolean[_first.length*2];
+            System.arraycopy(_first, 0, first, 0, _first.length);
+            _first = first;
+        }
+        _first[_depth] = true;
+    }
+
+
+    private void quote (String s) throws IOException
+    {
+        _out.write('"');
+        int start = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = s.charAt(i);
+            if (isSafe(c))
+                continue;
+            if (i > start)
+                _out.write(s, start, i - start);
+            escape(c);
+            start = i + 1;
+        }
+        if (length > start)
+            _out.write(s, start, length - start);
+        _out.write('"');
+    }
+
+
+    private void quote (char[] chars, int length) throws IOException
+    {
+        _out.write('"');
+        int start = 0;
+        for (int i = 0; i < length; i++)
+        {
+            char c = chars[i];
+            if (isSafe(c))
+                continue;
+            if (i > start)
+                _out.write(chars, start, i - start);
+            escape(c);
+            start = i + 1;
+        }
+        if (length > start)
+            _out.write(chars, start, length - start);
+        _out.write('"');
+    }
+
+
+    private static boolean isSafe (char c)
+    {
+        //also escape / so that </script> cannot end an embedding script element,
+        //and the line separators that javascript does not allow in strings
+        return c >= 0x20 && c != '"' && c != '\\' && c != '/' && c != '\u2028' && c != '\u2029';
+    }
+
+
+    private void escape (char c) throws IOException
+    {
+        _out.write('\\');
+        switch (c)
+        {
+            case '"':
+            case '\\':
+            case '/':
+                _out.write(c);
+                break;
+            case '\b':
+                _out.write('b');
+                break;
+            case '\f':
+                _out.write('f');
+                break;
+            case '\n':
+                _out.write('n');
+                break;
+            case '\r':
+                _out.write('r');
+                break;
+            case '\t':
+                _out.write('t');
+                break;
+            default:
+                _out.write('u');
+                _out.write(__HEX[(c >> 12) & 0xf]);
+                _out.write(__HEX[(c >> 8) & 0xf]);
+                _out.write(__HEX[(c >> 4) & 0xf]);
+                _out.write(__HEX[c & 0xf]);
+        }
+    }
+}
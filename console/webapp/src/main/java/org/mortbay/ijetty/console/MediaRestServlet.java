@@ -38,6 +38,9 @@ import android.util.Log;
  *  /console/rest/media/[type]/[location]/[id]?action=embed
  *  Generates html page that embeds a media player for the media
  *  
+ *  /console/rest/media/audio/external?fields=id,title,artist
+ *  Retrieves just the given fields, and queries just their columns
+ *  
  */
 public class MediaRestServlet extends HttpServlet
 {
@@ -46,6 +49,21 @@ public class MediaRestServlet extends HttpServlet
     public static final String __PG_SIZE_PARAM = "pgSize";
     public static final int __DEFAULT_PG_START = 0;
     public static final int __DEFAULT_PG_SIZE = 10;
+    
+    /**
+     * The fields of a media item, and the column of each. Only audio has an artist and album.
+     */
+    private static final String[] __FIELDS = 
+    { "type", "location", "id", "title", "displayname", "mimetype", "size", "artist", "album" };
+    private static final String[] __COLUMNS = 
+    { null, null, BaseColumns._ID, MediaStore.MediaColumns.TITLE, MediaStore.MediaColumns.DISPLAY_NAME, 
+      MediaStore.MediaColumns.MIME_TYPE, MediaStore.MediaColumns.SIZE, null, null };
+    private static final String[] __AUDIO_COLUMNS = 
+    { null, null, BaseColumns._ID, MediaStore.MediaColumns.TITLE, MediaStore.MediaColumns.DISPLAY_NAME, 
+      MediaStore.MediaColumns.MIME_TYPE, MediaStore.MediaColumns.SIZE, MediaStore.Audio.AudioColumns.ARTIST, MediaStore.Audio.AudioColumns.ALBUM };
+    private static final String[] __ID_COLUMN = { BaseColumns._ID };
+    private static final String[] __MUSIC_COLUMNS = { BaseColumns._ID, MediaStore.Audio.AudioColumns.IS_MUSIC };
+    
     private ContentResolver resolver;
     private Context context;
     
@@ -68,16 +86,27 @@ public class MediaRestServlet extends HttpServlet
             super(cursor, startPos, limit);
         }
         
+        /**
+         * @param uri the media to query
+         * @param projection the columns to query, or null for all of them
+         * @param startPos number of rows to skip
+         * @param limit number of rows to return
+         */
+        public MediaCollection(Uri uri, String[] projection, int startPos, int limit)
+        {
+            super(resolver, uri, projection, null, null, MediaStore.MediaColumns.TITLE+" ASC", startPos, limit);
+        }
+        
 
         @Override
         public ContentValues cursorToValues(Cursor cursor)
         {
             ContentValues values = new ContentValues();
-            String val;
-            val = cursor.getString(cursor.getColumnIndex(android.provider.BaseColumns._ID));
-            values.put(android.provider.BaseColumns._ID,val);
-
             int idx = -1;
+            idx = cursor.getColumnIndex(android.provider.BaseColumns._ID);
+            if (idx > -1)
+                values.put(android.provider.BaseColumns._ID,cursor.getString(idx));
+
             idx = cursor.getColumnIndex(MediaStore.MediaColumns.TITLE);
             if (idx > -1)
                 values.put(MediaStore.MediaColumns.TITLE, cursor.getString(idx));
@@ -220,90 +249,74 @@ public class MediaRestServlet extends HttpServlet
             int pgSize = (tmp == null ? -1 : Integer.parseInt(tmp.trim()));
                 
             Uri mediaUri = MediaType.getContentUriByType(type, location);           
-            StringBuilder builder = new StringBuilder();
+            boolean isAudio = (mediaUri == MediaStore.Audio.Media.EXTERNAL_CONTENT_URI) || (mediaUri == MediaStore.Audio.Media.INTERNAL_CONTENT_URI);
+            
+            //only query the columns of the fields asked for
+            FieldSelection fields = new FieldSelection(request, __FIELDS, (isAudio ? __AUDIO_COLUMNS : __COLUMNS));
+            boolean wantType = fields.isSelected("type");
+            boolean wantLocation = fields.isSelected("location");
+            boolean wantArtist = isAudio && fields.isSelected("artist");
+            boolean wantAlbum = isAudio && fields.isSelected("album");
+            String[] projection = fields.getProjection(wantArtist || wantAlbum ? __MUSIC_COLUMNS : __ID_COLUMN);
 
             //Get all of the applicable collections (ie both internal and external for a given type)            
             MediaCollection collection = null;
-            
-            writer.println ("{");
+            JSONWriter json = new JSONWriter(writer);
             try
             {
-                collection = new MediaCollection (resolver.query(mediaUri,null,null,null, MediaStore.MediaColumns.TITLE+" ASC"), pgStart, pgSize);
-                writer.println("\"total\": "+collection.getTotal()+", ");
-                writer.println("\"media\": ");
-                writer.print("[ ");
-
-                ContentValues media = null;
+                collection = new MediaCollection (mediaUri, projection, pgStart, pgSize);
+                json.startObject();
+                json.name("total").value(collection.getTotal());
+                json.name("media").startArray();
+
+                //resolve the columns once, then stream each row straight from the cursor
+                int idIdx = (fields.isSelected("id") ? collection.getColumnIndex(BaseColumns._ID) : -1);
+                int titleIdx = (fields.isSelected("title") ? collection.getColumnIndex(MediaStore.MediaColumns.TITLE) : -1);
+                int displayNameIdx = (fields.isSelected("displayname") ? collection.getColumnIndex(MediaStore.MediaColumns.DISPLAY_NAME) : -1);
+                int mimeTypeIdx = (fields.isSelected("mimetype") ? collection.getColumnIndex(MediaStore.MediaColumns.MIME_TYPE) : -1);
+                int sizeIdx = (fields.isSelected("size") ? collection.getColumnIndex(MediaStore.MediaColumns.SIZE) : -1);
+                int musicIdx = (wantArtist || wantAlbum ? collection.getColumnIndex(MediaStore.Audio.AudioColumns.IS_MUSIC) : -1);
+                int artistIdx = (wantArtist ? collection.getColumnIndex(MediaStore.Audio.AudioColumns.ARTIST) : -1);
+                int albumIdx = (wantAlbum ? collection.getColumnIndex(MediaStore.Audio.AudioColumns.ALBUM) : -1);
+
+                Cursor cursor = null;
                 int count = pgSize;
 
-                while ((pgSize <= 0 || count-- > 0) && (media = collection.next()) != null)
+                while ((pgSize <= 0 || count-- > 0) && (cursor = collection.nextRow()) != null)
                 {
-                    builder.setLength(0); // clear buffer
-                    toJson(media, mediaUri, builder, type, location);
-                    Log.d(TAG,builder.toString());
-                    writer.print(builder.toString());
-
-                    if (collection.hasNext())
+                    json.startObject();
+                    if (wantType)
+                        json.name("type").value(type == null ? "" : type);
+                    if (wantLocation)
+                        json.name("location").value(location == null ? "" : location);
+                    if (idIdx >= 0)
+                        json.name("id").longColumn(cursor, idIdx);
+                    if (titleIdx >= 0)
+                        json.name("title").column(cursor, titleIdx, "");
+                    if (displayNameIdx >= 0)
+                        json.name("displayname").column(cursor, displayNameIdx, "");
+                    if (mimeTypeIdx >= 0)
+                        json.name("mimetype").column(cursor, mimeTypeIdx, "");
+                    if (sizeIdx >= 0)
+                        json.name("size").column(cursor, sizeIdx, "");
+                    if (musicIdx >= 0 && cursor.getInt(musicIdx) > 0)
                     {
-                        writer.print(",");
+                        if (artistIdx >= 0 && !cursor.isNull(artistIdx))
+                            json.name("artist").column(cursor, artistIdx);
+                        if (albumIdx >= 0 && !cursor.isNull(albumIdx))
+                            json.name("album").column(cursor, albumIdx);
                     }
+                    json.endObject();
                 }
-                writer.print(" ]");
+                json.endArray();
+                json.endObject();
+                writer.println();
             }
             finally
             {
-                writer.println("}");
-                collection.close();
+                if (collection != null)
+                    collection.close();
             }
         }
     }
-
-
-
-    private void toJson(ContentValues media, Uri contenturi, StringBuilder builder, String type, String location)
-    {
-        builder.append("{");
-        builder.append(" \"type\":").append(safeJson(type));
-        builder.append(",\"location\":").append(safeJson(location));
-        builder.append(",\"id\":").append(safeJson(media.getAsInteger(BaseColumns._ID)));
-        builder.append(",\"title\":").append(safeJson(media.getAsString(MediaStore.MediaColumns.TITLE)));
-        builder.append(",\"displayname\":").append(safeJson(media.getAsString(MediaStore.MediaColumns.DISPLAY_NAME)));
-        builder.append(",\"mimetype\":").append(safeJson(media.getAsString(MediaStore.MediaColumns.MIME_TYPE)));
-        builder.append(",\"size\":").append(safeJson(media.getAsString(MediaStore.MediaColumns.SIZE)));
-
-        if ((contenturi == MediaStore.Audio.Media.EXTERNAL_CONTENT_URI) || (contenturi == MediaStore.Audio.Media.INTERNAL_CONTENT_URI))
-        {
-            String tmp = media.getAsString(MediaStore.Audio.AudioColumns.ARTIST);
-            if (tmp != null)
-                builder.append(",\"artist\":").append(safeJson(tmp));
-
-            tmp = media.getAsString(MediaStore.Audio.AudioColumns.ALBUM);
-            if (tmp != null)
-                builder.append(",\"album\":").append(safeJson(tmp));
-        }
-
-        builder.append("}");
-    }
-
-
-
-
-
-    private String safeJson(Number num)
-    {
-        if (num == null)
-        {
-            return "";
-        }
-        return num.toString();
-    }
-
-    private String safeJson(String str)
-    {
-        if (str == null)
-        {
-            return "\"\"";
-        }
-        return "\"" + str.replaceAll("'","\\'") + "\"";
-    }
 }
@@ -42,6 +42,10 @@ public class Phone
     { android.provider.BaseColumns._ID, android.provider.Contacts.PhonesColumns.LABEL, android.provider.Contacts.PhonesColumns.NUMBER,
             android.provider.Contacts.PhonesColumns.NUMBER_KEY, android.provider.Contacts.PhonesColumns.TYPE };
 
+    static final String[] batchPhonesProjection = new String[]
+    { android.provider.BaseColumns._ID, android.provider.Contacts.Phones.PERSON_ID, android.provider.Contacts.PhonesColumns.LABEL, 
+            android.provider.Contacts.PhonesColumns.NUMBER, android.provider.Contacts.PhonesColumns.TYPE };
+
     public static void addPhone(ContentResolver resolver, ContentValues phone, String userId)
     {
         Uri peopleUri = Uri.withAppendedPath(Contacts.People.CONTENT_URI,userId);
@@ -109,6 +113,35 @@ public class Phone
         }
     }
 
+    /**
+     * getPhones
+     *
+     * Get the phone numbers of many Contacts with one query, ordered by
+     * Contact so that they can be merged with a query of the Contacts.
+     *
+     * @param resolver
+     * @param userIds
+     *            the Contacts whose phones to return
+     * @return
+     */
+    public static PhoneCollection getPhones(ContentResolver resolver, String[] userIds)
+    {
+        if (userIds == null || userIds.length == 0)
+            return null;
+
+        try
+        {
+            return new PhoneCollection(resolver.query(Contacts.Phones.CONTENT_URI,batchPhonesProjection,
+                                                      DatabaseCollection.toInSelection(Contacts.Phones.PERSON_ID,userIds.length),userIds,
+                                                      Contacts.Phones.PERSON_ID + " ASC, " + Contacts.PhonesColumns.TYPE + " ASC"));
+        }
+        catch (Exception e)
+        {
+            Log.e("IJetty.Cnsl", "Error retrieving phones for "+userIds.length+" contacts", e);
+            return null;
+        }
+    }
+
     public static int savePhone(ContentResolver resolver, ContentValues phone, String phoneId, String userId)
     {
         Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_URI,phoneId);
@@ -28,50 +28,55 @@ import android.content.ContentResolver;
 import android.database.Cursor;
 import android.provider.Settings;
 
+/**
+ * SettingsServlet
+ *
+ * Dumps the system settings as json, eg
+ * <pre>
+ *   /console/rest/settings?fields=name,value
+ * </pre>
+ * The fields are the columns to return, by default all of them.
+ */
 public class SettingsServlet extends HttpServlet
 {
+    private static final String[] __COLUMNS = 
+    { Settings.System._ID, Settings.System.NAME, Settings.System.VALUE };
+    
     private ContentResolver resolver;
     android.content.Context androidContext;
     
 
     protected void doJSON (PrintWriter writer, HttpServletRequest request,
-            HttpServletResponse response) 
+            HttpServletResponse response) throws IOException
     {
         Cursor cursor = null;
         try
         {
-            writer.println("{ \"settings\": {");
-            writer.println("    \"headings\": [");
-            cursor = getContentResolver().query(Settings.System.CONTENT_URI, null, null, null, Settings.System.NAME+" ASC");
-            if (cursor != null && cursor.getColumnNames() != null)
-            {
-                for (int i=0;i<cursor.getColumnNames().length; i++)
-                {
-                    writer.print("\""+cursor.getColumnNames()[i]+"\"");
-                    if (i<cursor.getColumnNames().length -1)
-                        writer.println(",");
-                }
-            }
-            writer.println("              ],");
-            writer.println("    \"rows\": [");
+            JSONWriter json = new JSONWriter(writer);
+            json.startObject().name("settings").startObject();
+            json.name("headings").startArray();
+            String[] projection = new FieldSelection(request, __COLUMNS, __COLUMNS).getProjection(null);
+            if (projection.length == 0)
+                projection = __COLUMNS;
+            cursor = getContentResolver().query(Settings.System.CONTENT_URI, projection, null, null, Settings.System.NAME+" ASC");
+            
+            //the columns are in the order of the projection, so there is nothing to look up per row
+            int columnCount = (cursor == null ? 0 : projection.length);
+            for (int i=0;i<columnCount; i++)
+                json.value(projection[i]);
+            json.endArray();
+            
+            json.name("rows").startArray();
             while (cursor != null && cursor.moveToNext())
             {
-                writer.println("        [");
-                for (int i = 0; i < cursor.getColumnNames().length; i++)
-                {
-                    String val = cursor.getString(i);
-                    writer.print("\""+val+"\"");
-                    if (i < cursor.getColumnNames().length-1)
-                        writer.println(",");
-                }
-                writer.println("        ]");
-                if (!cursor.isLast())
-                    writer.println(",");
+                json.startArray();
+                for (int i = 0; i < columnCount; i++)
+                    json.column(cursor, i);
+                json.endArray();
             }
-            writer.println("          ]");
-            
-            writer.println("         }");
-            writer.println("}");
+            json.endArray();
+            json.endObject().endObject();
+            writer.println();
         }
         finally
         {
@@ -0,0 +1,40 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package android.database;
+
+/**
+ * CharArrayBuffer
+ *
+ * Stands in for the android CharArrayBuffer when the tests run on the jvm,
+ * where the android jar only has stubs.
+ */
+public final class CharArrayBuffer
+{
+    public char[] data;
+    public int sizeCopied;
+
+
+    public CharArrayBuffer (int size)
+    {
+        data = new char[size];
+    }
+
+
+    public CharArrayBuffer (char[] buf)
+    {
+        data = buf;
+    }
+}
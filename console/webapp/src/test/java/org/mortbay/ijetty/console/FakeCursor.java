@@ -0,0 +1,258 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.console;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * FakeCursor
+ *
+ * A Cursor over rows of strings held in memory. Like a database cursor, it
+ * makes a new String for each getString, but copies into a CharArrayBuffer
+ * without creating one.
+ */
+class FakeCursor implements Cursor
+{
+    private final String[] _columns;
+    private final String[][] _rows;
+    private int _position = -1;
+    private boolean _closed;
+
+
+    /**
+     * @param columns
+     * @param rows a value for every column of each row, or null for a null value
+     */
+    FakeCursor (String[] columns, String[][] rows)
+    {
+        _columns = columns;
+        _rows = rows;
+    }
+
+
+    public int getCount ()
+    {
+        return _rows.length;
+    }
+
+    public int getPosition ()
+    {
+        return _position;
+    }
+
+    public boolean move (int offset)
+    {
+        return moveToPosition(_position + offset);
+    }
+
+    public boolean moveToPosition (int position)
+    {
+        _position = Math.max(-1, Math.min(position, _rows.length));
+        return _position >= 0 && _position < _rows.length;
+    }
+
+    public boolean moveToFirst ()
+    {
+        return moveToPosition(0);
+    }
+
+    public boolean moveToLast ()
+    {
+        return moveToPosition(_rows.length - 1);
+    }
+
+    public boolean moveToNext ()
+    {
+        return moveToPosition(_position + 1);
+    }
+
+    public boolean moveToPrevious ()
+    {
+        return moveToPosition(_position - 1);
+    }
+
+    public boolean isFirst ()
+    {
+        return _rows.length > 0 && _position == 0;
+    }
+
+    public boolean isLast ()
+    {
+        return _rows.length > 0 && _position == _rows.length - 1;
+    }
+
+    public boolean isBeforeFirst ()
+    {
+        return _rows.length == 0 || _position == -1;
+    }
+
+    public boolean isAfterLast ()
+    {
+        return _rows.length == 0 || _position == _rows.length;
+    }
+
+    public int getColumnIndex (String columnName)
+    {
+        for (int i = 0; i < _columns.length; i++)
+        {
+            if (_columns[i].equals(columnName))
+                return i;
+        }
+        return -1;
+    }
+
+    public int getColumnIndexOrThrow (String columnName)
+    {
+        int index = getColumnIndex(columnName);
+        if (index < 0)
+            throw new IllegalArgumentException("No column "+columnName);
+        return index;
+    }
+
+    public String getColumnName (int columnIndex)
+    {
+        return _columns[columnIndex];
+    }
+
+    public String[] getColumnNames ()
+    {
+        return _columns;
+    }
+
+    public int getColumnCount ()
+    {
+        return _columns.length;
+    }
+
+    public byte[] getBlob (int columnIndex)
+    {
+        String value = getString(columnIndex);
+        return (value == null ? null : value.getBytes());
+    }
+
+    public String getString (int columnIndex)
+    {
+        String value = _rows[_position][columnIndex];
+        return (value == null ? null : new String(value.toCharArray()));
+    }
+
+    public void copyStringToBuffer (int columnIndex, CharArrayBuffer buffer)
+    {
+        String value = _rows[_position][columnIndex];
+        if (value == null)
+        {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        if (buffer.data == null || buffer.data.length < value.length())
+            buffer.data = new char[value.length()];
+        value.getChars(0, value.length(), buffer.data, 0);
+        buffer.sizeCopied = value.length();
+    }
+
+    public short getShort (int columnIndex)
+    {
+        return (short)getLong(columnIndex);
+    }
+
+    public int getInt (int columnIndex)
+    {
+        return (int)getLong(columnIndex);
+    }
+
+    public long getLong (int columnIndex)
+    {
+        String value = _rows[_position][columnIndex];
+        return (value == null ? 0 : Long.parseLong(value));
+    }
+
+    public float getFloat (int columnIndex)
+    {
+        return (float)getDouble(columnIndex);
+    }
+
+    public double getDouble (int columnIndex)
+    {
+        String value = _rows[_position][columnIndex];
+        return (value == null ? 0 : Double.parseDouble(value));
+    }
+
+    public boolean isNull (int columnIndex)
+    {
+        return _rows[_position][columnIndex] == null;
+    }
+
+    public void deactivate ()
+    {
+    }
+
+    public boolean requery ()
+    {
+        _position = -1;
+        return true;
+    }
+
+    public void close ()
+    {
+        _closed = true;
+    }
+
+    public boolean isClosed ()
+    {
+        return _closed;
+    }
+
+    public void registerContentObserver (ContentObserver observer)
+    {
+    }
+
+    public void unregisterContentObserver (ContentObserver observer)
+    {
+    }
+
+    public void registerDataSetObserver (DataSetObserver observer)
+    {
+    }
+
+    public void unregisterDataSetObserver (DataSetObserver observer)
+    {
+    }
+
+    public void setNotificationUri (ContentResolver cr, Uri uri)
+    {
+    }
+
+    public boolean getWantsAllOnMoveCalls ()
+    {
+        return false;
+    }
+
+    public Bundle getExtras ()
+    {
+        return null;
+    }
+
+    public Bundle respond (Bundle extras)
+    {
+        return null;
+    }
+}
@@ -0,0 +1,188 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.console;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JSONWriterBenchmark
+ *
+ * Writes 10000 phone rows of a fake cursor as JSON, the way the console did
+ * before JSONWriter, copying each row into a map and concatenating strings,
+ * and the way it does now, streaming each row from the cursor. 
+ * 
+ * Run with -prof gc to compare the allocation per row:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.mortbay.ijetty.console.JSONWriterBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONWriterBenchmark
+{
+    public static final int __ROWS = 10000;
+    private static final String[] __COLUMNS = new String[] {"_id", "label", "number", "type"};
+
+    /**
+     * Counts what is written, so the JSON is not optimised away nor kept.
+     */
+    static class CountingWriter extends Writer
+    {
+        long _count;
+
+        public void write (char[] buf, int off, int len)
+        {
+            _count += len;
+        }
+
+        public void write (int c)
+        {
+            _count++;
+        }
+
+        public void write (String s, int off, int len)
+        {
+            _count += len;
+        }
+
+        public void flush ()
+        {
+        }
+
+        public void close ()
+        {
+        }
+    }
+
+    private FakeCursor _cursor;
+    private CountingWriter _out;
+
+
+    @Setup
+    public void setUp ()
+    {
+        String[][] rows = new String[__ROWS][];
+        for (int i = 0; i < __ROWS; i++)
+            rows[i] = new String[] {String.valueOf(i), (i % 10 == 0 ? null : "Bob's \"work\" phone "+i), "+61 2 9555 "+(1000 + i % 9000), String.valueOf(i % 7)};
+        _cursor = new FakeCursor(__COLUMNS, rows);
+        _out = new CountingWriter();
+    }
+
+
+    /**
+     * As the phones of a contact were written before JSONWriter.
+     */
+    @Benchmark
+    public long concatenated ()
+    {
+        _cursor.moveToPosition(-1);
+        PrintWriter writer = new PrintWriter(_out);
+        writer.print("[ ");
+        StringBuffer buff = new StringBuffer();
+        while (_cursor.moveToNext())
+        {
+            Map<String, Object> phone = toValues(_cursor);
+            String id = (String)phone.get("_id");
+            String label = (String)phone.get("label");
+            String number = (String)phone.get("number");
+            int type = ((Integer)phone.get("type")).intValue();
+            buff.append("{\"number\": \"" + number + "\", \"label\" : \"" + (label == null?"":label.replace("\'","\\'")) + "\", \"type\" : " + type
+                    + ", \"id\": \"" + id + "\" }");
+            if (!_cursor.isLast())
+                buff.append(", ");
+        }
+        writer.print(buff.toString());
+        writer.print(" ]");
+        writer.flush();
+        return _out._count;
+    }
+
+
+    /**
+     * As the phones of a contact are written now.
+     */
+    @Benchmark
+    public long streamed () throws IOException
+    {
+        _cursor.moveToPosition(-1);
+        JSONWriter json = new JSONWriter(_out);
+        int idIdx = _cursor.getColumnIndex("_id");
+        int labelIdx = _cursor.getColumnIndex("label");
+        int numberIdx = _cursor.getColumnIndex("number");
+        int typeIdx = _cursor.getColumnIndex("type");
+
+        json.startArray();
+        while (_cursor.moveToNext())
+        {
+            json.startObject();
+            json.name("number").column(_cursor,numberIdx);
+            json.name("label").column(_cursor,labelIdx,"");
+            json.name("type").longColumn(_cursor,typeIdx);
+            json.name("id").column(_cursor,idIdx);
+            json.endObject();
+        }
+        json.endArray();
+        json.flush();
+        return _out._count;
+    }
+
+
+    /**
+     * As the cursor rows were copied to ContentValues.
+     */
+    private static Map<String, Object> toValues (FakeCursor cursor)
+    {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("_id", cursor.getString(cursor.getColumnIndex("_id")));
+        values.put("label", cursor.getString(cursor.getColumnIndex("label")));
+        values.put("number", cursor.getString(cursor.getColumnIndex("number")));
+        values.put("type", new Integer(cursor.getInt(cursor.getColumnIndex("type"))));
+        return values;
+    }
+
+
+    public static void main (String[] args) throws Exception
+    {
+        Options options = new OptionsBuilder()
+            .include(JSONWriterBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build();
+        new Runner(options).run();
+    }
+}
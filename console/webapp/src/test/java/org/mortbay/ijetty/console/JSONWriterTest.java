@@ -0,0 +1,83 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.console;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * JSONWriterTest
+ */
+public class JSONWriterTest
+{
+    @Test
+    public void testNumbers () throws Exception
+    {
+        StringWriter out = new StringWriter();
+        JSONWriter json = new JSONWriter(out);
+        json.startArray();
+        long[] values = new long[] {0, 7, -7, 10, 1234567890L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE+1};
+        for (int i = 0; i < values.length; i++)
+            json.value(values[i]);
+        json.endArray();
+
+        StringBuilder expected = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++)
+            expected.append(i == 0 ? "" : ",").append(Long.toString(values[i]));
+        expected.append(']');
+        assertEquals(expected.toString(), out.toString());
+    }
+
+
+    @Test
+    public void testObjects () throws Exception
+    {
+        StringWriter out = new StringWriter();
+        JSONWriter json = new JSONWriter(out);
+        json.startObject().name("a").value("x").name("b").startArray().value(true).nullValue().startObject().endObject().endArray().endObject();
+        assertEquals("{\"a\":\"x\",\"b\":[true,null,{}]}", out.toString());
+    }
+
+
+    @Test
+    public void testEscaping () throws Exception
+    {
+        StringWriter out = new StringWriter();
+        new JSONWriter(out).value("Bob's \"phone\"\\</script>\n\t\u0001\u2028");
+        assertEquals("\"Bob's \\\"phone\\\"\\\\<\\/script>\\n\\t\\u0001\\u2028\"", out.toString());
+    }
+
+
+    @Test
+    public void testColumns () throws Exception
+    {
+        FakeCursor cursor = new FakeCursor(new String[] {"name", "count", "flag"}, new String[][] {
+            {"a \"quoted\" name", "42", "1"},
+            {null, null, "0"}});
+        StringWriter out = new StringWriter();
+        JSONWriter json = new JSONWriter(out);
+        json.startArray();
+        while (cursor.moveToNext())
+            json.startObject().name("name").column(cursor, 0).name("label").column(cursor, 0, "").name("count").longColumn(cursor, 1)
+                .name("flag").booleanColumn(cursor, 2).name("missing").column(cursor, -1).endObject();
+        json.endArray();
+        assertEquals("[{\"name\":\"a \\\"quoted\\\" name\",\"label\":\"a \\\"quoted\\\" name\",\"count\":42,\"flag\":true,\"missing\":null},"+
+                     "{\"name\":null,\"label\":\"\",\"count\":null,\"flag\":false,\"missing\":null}]", out.toString());
+    }
+}
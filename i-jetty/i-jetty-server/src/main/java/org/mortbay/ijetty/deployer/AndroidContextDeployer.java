@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
@@ -16,7 +17,9 @@ import org.eclipse.jetty.util.AttributesMap;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.Scanner;
+import org.eclipse.jetty.webapp.WebAppContext;
 import org.eclipse.jetty.xml.XmlConfiguration;
+import org.mortbay.ijetty.webapp.TagLibScanCache;
 
 /**
  * AndroidContextDeployer
@@ -34,6 +37,7 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
          */
         public void fileAdded(String filename) throws Exception {
             deploy(filename);
+            saveManifest();
         }
 
         /**
@@ -43,6 +47,7 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
          */
         public void fileChanged(String filename) throws Exception {
             redeploy(filename);
+            saveManifest();
         }
 
         /**
@@ -52,6 +57,7 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
          */
         public void fileRemoved(String filename) throws Exception {
             undeploy(filename);
+            saveManifest();
         }
 
         @Override
@@ -61,15 +67,18 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
     }
 
     private AttributesMap            _attributes         = null;
+    private Map<String, String>      _initParams         = new HashMap<String, String>();
     public final static String       NAME                = "ConfiguredDeployer";
+    public final static String       MANIFEST_KIND       = "context";
     private int                      _scanInterval       = 10;
     private Scanner                  _scanner;
     private ScannerListener          _scannerListener;
     private Resource                 _configurationDir;
-    @SuppressWarnings("unchecked")
-    private Map                      _currentDeployments = new HashMap();
+    private AndroidDeployer          _deployer;
     private ContextHandlerCollection _contexts;
     private ConfigurationManager     _configMgr;
+    private TagLibScanCache          _tagLibScanCache;
+    private DeploymentManifest       _manifest;
 
     private boolean                  _recursive          = false;
 
@@ -114,21 +123,117 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
             context.setAttribute(name, _attributes.getAttribute(name));
         }
 
+        // skip configurations the webapp does not need
+        if (_tagLibScanCache != null && context instanceof WebAppContext) {
+            WebAppContext webapp = (WebAppContext) context;
+            if (webapp.getWar() != null) {
+                Resource war = Resource.newResource(webapp.getWar());
+                if (war.isDirectory()) {
+                    webapp.setConfigurationClasses(_tagLibScanCache.prune(webapp.getConfigurationClasses(), war.getFile()));
+                    _tagLibScanCache.addTagLibResources(webapp, war.getFile());
+                }
+            }
+        }
+
+        // init parameters from the context xml file take precedence
+        for (Map.Entry<String, String> entry : _initParams.entrySet()) {
+            if (context.getInitParameter(entry.getKey()) == null) {
+                context.setInitParameter(entry.getKey(), entry.getValue());
+            }
+        }
+
         return context;
     }
 
     /* ------------------------------------------------------------ */
-    @SuppressWarnings("unchecked")
-    public void deploy(String filename) throws Exception {
-        ContextHandler context = createContext(filename);
-        Log.info("Deploy " + filename + " -> " + context);
-        _contexts.addHandler(context);
-        _currentDeployments.put(filename, context);
-        if (_contexts.isStarted()) {
-            context.start();
+    /**
+     * Deploy a context xml file. A file that is already deployed and has not
+     * been modified since is left alone, so a file deployed directly through
+     * this method is not deployed again when the scanner finds it.
+     * 
+     * The check, the deploy and the manifest entry are made holding the lock
+     * of the deployer, which the binder API also deploys through, so the
+     * scanner and a direct deploy of the same file cannot both deploy it.
+     * 
+     * @param filename
+     * @return the deployment
+     * @throws Exception
+     */
+    public AndroidDeployer.Deployment deploy(String filename) throws Exception {
+        AndroidDeployer deployer = getDeployer();
+        synchronized (deployer) {
+            long lastModified = new File(filename).lastModified();
+            AndroidDeployer.Deployment deployment = deployer.getDeployment(filename);
+            if ((deployment != null) && (deployment.getLastModified() == lastModified)) {
+                return deployment;
+            }
+
+            ContextHandler context = createContext(filename);
+            deployment = deployer.deploy(filename, context, lastModified);
+            if (_manifest != null) {
+                _manifest.put(MANIFEST_KIND, filename, context.getContextPath(), lastModified, DeploymentManifest.hash(new File(filename)));
+            }
+            return deployment;
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Deploy the context xml files recorded in the manifest, without
+     * scanning the configuration dir.
+     * 
+     * @param entries
+     */
+    protected void deploy(List<DeploymentManifest.Entry> entries) {
+        for (DeploymentManifest.Entry entry : entries) {
+            try {
+                ContextHandler context = createContext(entry.getId());
+                if (context != null) {
+                    // deploy with the recorded time, so the verification
+                    // scan redeploys the file if it has changed since
+                    getDeployer().deploy(entry.getId(), context, entry.getLastModified());
+                }
+            } catch (Exception e) {
+                Log.warn("Unable to deploy " + entry, e);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Reconcile the deployments made from the manifest with the
+     * configuration dir: start the scanner, which deploys new files and
+     * redeploys changed ones, then undeploy files that have been removed and
+     * redeploy those whose content changed without changing their last
+     * modified time.
+     * 
+     * @param entries
+     * @throws Exception
+     */
+    protected void verify(List<DeploymentManifest.Entry> entries) throws Exception {
+        long start = System.currentTimeMillis();
+        _scanner.start();
+        for (DeploymentManifest.Entry entry : entries) {
+            if (!isRunning()) {
+                return;
+            }
+
+            File file = new File(entry.getId());
+            if (!file.exists()) {
+                undeploy(entry.getId());
+                continue;
+            }
+
+            AndroidDeployer.Deployment deployment = getDeployer().getDeployment(entry.getId());
+            if ((deployment != null) && (deployment.getLastModified() == entry.getLastModified())
+                    && (DeploymentManifest.hash(file) != entry.getHash())) {
+                redeploy(entry.getId());
+            }
+        }
+        saveManifest();
+        Log.info("Verified " + entries.size() + " deployments in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Start the hot deployer looking for webapps to deploy/undeploy
@@ -165,8 +270,27 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
         });
         _scannerListener = new ScannerListener();
         _scanner.addListener(_scannerListener);
-        _scanner.scan();
-        _scanner.start();
+
+        final List<DeploymentManifest.Entry> entries = (_manifest == null ? null : _manifest.getEntries(MANIFEST_KIND));
+        if ((entries == null) || entries.isEmpty()) {
+            _scanner.scan();
+            _scanner.start();
+            saveManifest();
+        } else {
+            // warm start: deploy what was deployed last time, and check the
+            // filesystem once the server is up
+            deploy(entries);
+            new Thread("ContextDeployer-verify") {
+                @Override
+                public void run() {
+                    try {
+                        verify(entries);
+                    } catch (Exception e) {
+                        Log.warn("Unable to verify deployments", e);
+                    }
+                }
+            }.start();
+        }
         _contexts.getServer().getContainer().addBean(_scanner);
     }
 
@@ -180,12 +304,29 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
     protected void doStop() throws Exception {
         _scanner.removeListener(_scannerListener);
         _scanner.stop();
+        saveManifest();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the deployer used to deploy contexts, created on first use if
+     *         none was set
+     */
+    public synchronized AndroidDeployer getDeployer() {
+        if (_deployer == null) {
+            _deployer = new AndroidDeployer(_contexts);
+        }
+        return _deployer;
     }
 
     public Object getAttribute(String name) {
         return _attributes.getAttribute(name);
     }
 
+    public String getInitParameter(String name) {
+        return _initParams.get(name);
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return
@@ -218,6 +359,14 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
         return getConfigurationDir().getName();
     }
 
+    public DeploymentManifest getManifest() {
+        return _manifest;
+    }
+
+    public TagLibScanCache getTagLibScanCache() {
+        return _tagLibScanCache;
+    }
+
     public boolean getRecursive() {
         return _recursive;
     }
@@ -232,15 +381,30 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
     }
 
     /* ------------------------------------------------------------ */
-    public void redeploy(String filename) throws Exception {
-        undeploy(filename);
-        deploy(filename);
+    public AndroidDeployer.Deployment redeploy(String filename) throws Exception {
+        AndroidDeployer deployer = getDeployer();
+        synchronized (deployer) {
+            undeploy(filename);
+            return deploy(filename);
+        }
     }
 
     public void setAttribute(String name, Object value) {
         _attributes.setAttribute(name, value);
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Set a context init parameter on every context deployed, unless the
+     * context's own xml file has already set it.
+     * 
+     * @param name
+     * @param value
+     */
+    public void setInitParameter(String name, String value) {
+        _initParams.put(name, value);
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @param file
@@ -292,6 +456,19 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
         _contexts = contexts;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @param deployer
+     *            the deployer through which to deploy contexts, shared with
+     *            other deployers and programmatic deployment
+     */
+    public void setDeployer(AndroidDeployer deployer) {
+        if (isStarted() || isStarting()) {
+            throw new IllegalStateException("Cannot set deployer after deployer start");
+        }
+        _deployer = deployer;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @param directory
@@ -300,6 +477,30 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
         setConfigurationDir(directory);
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @param cache
+     *            if set, the TagLibConfiguration is only applied to webapps
+     *            that contain tlds, and is given the tlds found last time
+     */
+    public void setTagLibScanCache(TagLibScanCache cache) {
+        _tagLibScanCache = cache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param manifest
+     *            if set, deployments are recorded in the manifest, and
+     *            deployed from it at the next start before the configuration
+     *            dir is scanned
+     */
+    public void setManifest(DeploymentManifest manifest) {
+        if (isStarted() || isStarting()) {
+            throw new IllegalStateException("Cannot set manifest after deployer start");
+        }
+        _manifest = manifest;
+    }
+
     public void setRecursive(boolean recursive) {
         _recursive = recursive;
     }
@@ -318,14 +519,19 @@ public class AndroidContextDeployer extends AbstractLifeCycle {
     }
 
     /* ------------------------------------------------------------ */
-    public void undeploy(String filename) throws Exception {
-        ContextHandler context = (ContextHandler) _currentDeployments.get(filename);
-        Log.info("Undeploy " + filename + " -> " + context);
-        if (context == null) {
-            return;
+    public boolean undeploy(String filename) throws Exception {
+        AndroidDeployer deployer = getDeployer();
+        synchronized (deployer) {
+            if (_manifest != null) {
+                _manifest.remove(MANIFEST_KIND, filename);
+            }
+            return deployer.undeploy(filename);
+        }
+    }
+
+    private void saveManifest() {
+        if (_manifest != null) {
+            _manifest.save();
         }
-        context.stop();
-        _contexts.removeHandler(context);
-        _currentDeployments.remove(filename);
     }
 }
@@ -0,0 +1,258 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.deployer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * AndroidDeployer
+ * 
+ * Keeps track of every context deployed to a {@link ContextHandlerCollection},
+ * and deploys, undeploys and redeploys them synchronously. Both the
+ * {@link AndroidWebAppDeployer} and the {@link AndroidContextDeployer} deploy
+ * through an instance of this class, so that contexts deployed from the
+ * filesystem and those deployed programmatically are managed in one place.
+ * 
+ * Each deployment is identified by an id, which for file based deployments
+ * is the name of the file it was deployed from.
+ */
+public class AndroidDeployer {
+    /**
+     * Deployment
+     * 
+     * A deployed context and how long it took to deploy.
+     */
+    public static class Deployment {
+        private final String         _id;
+        private final ContextHandler _context;
+        private final long           _lastModified;
+        private long                 _deployedAt;
+        private long                 _deployTime;
+
+        public Deployment(String id, ContextHandler context, long lastModified) {
+            _id = id;
+            _context = context;
+            _lastModified = lastModified;
+        }
+
+        public String getId() {
+            return _id;
+        }
+
+        public ContextHandler getContext() {
+            return _context;
+        }
+
+        public String getContextPath() {
+            return _context.getContextPath();
+        }
+
+        /**
+         * @return the last modified time of the file deployed from, or 0
+         */
+        public long getLastModified() {
+            return _lastModified;
+        }
+
+        /**
+         * @return the time at which the context was last (re)started
+         */
+        public long getDeployedAt() {
+            return _deployedAt;
+        }
+
+        /**
+         * @return the ms taken to last (re)start the context
+         */
+        public long getDeployTime() {
+            return _deployTime;
+        }
+
+        public String getState() {
+            if (_context.isFailed()) {
+                return "FAILED";
+            }
+            if (_context.isStarting()) {
+                return "STARTING";
+            }
+            if (_context.isRunning()) {
+                return "STARTED";
+            }
+            if (_context.isStopping()) {
+                return "STOPPING";
+            }
+            return "STOPPED";
+        }
+
+        @Override
+        public String toString() {
+            return _id + " -> " + getContextPath() + " [" + getState() + ", " + _deployTime + "ms]";
+        }
+    }
+
+    private final ContextHandlerCollection _contexts;
+    private final Map<String, Deployment>  _deployments = new LinkedHashMap<String, Deployment>();
+
+    public AndroidDeployer(ContextHandlerCollection contexts) {
+        _contexts = contexts;
+    }
+
+    public ContextHandlerCollection getContexts() {
+        return _contexts;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Deploy a context, replacing any deployment with the same id. The
+     * context is started immediately if the contexts are already started.
+     * 
+     * @param id
+     * @param context
+     * @param lastModified
+     *            the last modified time of the file the context is deployed
+     *            from, or 0
+     * @return the deployment
+     * @throws Exception
+     *             if the context fails to start. It remains deployed, in a
+     *             failed state.
+     */
+    public Deployment deploy(String id, ContextHandler context, long lastModified) throws Exception {
+        return deploy(id, context, lastModified, _contexts.isStarted());
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Deploy a context, replacing any deployment with the same id.
+     * 
+     * @param id
+     * @param context
+     * @param lastModified
+     *            the last modified time of the file the context is deployed
+     *            from, or 0
+     * @param start
+     *            true to start the context now, otherwise it is started
+     *            along with the contexts
+     * @return the deployment
+     * @throws Exception
+     *             if the context fails to start
+     */
+    public synchronized Deployment deploy(String id, ContextHandler context, long lastModified, boolean start) throws Exception {
+        if (_deployments.containsKey(id)) {
+            undeploy(id);
+        }
+
+        Deployment deployment = new Deployment(id, context, lastModified);
+        Log.info("Deploy " + id + " -> " + context);
+        _contexts.addHandler(context);
+        _deployments.put(id, deployment);
+        if (start) {
+            start(deployment);
+        }
+        return deployment;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Stop and remove a deployed context.
+     * 
+     * @param id
+     * @return true if there was a deployment with that id
+     * @throws Exception
+     */
+    public synchronized boolean undeploy(String id) throws Exception {
+        Deployment deployment = _deployments.remove(id);
+        Log.info("Undeploy " + id + " -> " + (deployment == null ? null : deployment.getContext()));
+        if (deployment == null) {
+            return false;
+        }
+        try {
+            deployment.getContext().stop();
+        } finally {
+            _contexts.removeHandler(deployment.getContext());
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Stop and start a deployed context again.
+     * 
+     * @param id
+     * @return the deployment, or null if there is none with that id
+     * @throws Exception
+     */
+    public synchronized Deployment redeploy(String id) throws Exception {
+        Deployment deployment = _deployments.get(id);
+        if (deployment == null) {
+            return null;
+        }
+        Log.info("Redeploy " + id + " -> " + deployment.getContext());
+        deployment.getContext().stop();
+        start(deployment);
+        return deployment;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Stop and remove every deployed context.
+     * 
+     * @throws Exception
+     */
+    public synchronized void undeployAll() throws Exception {
+        List<String> ids = new ArrayList<String>(_deployments.keySet());
+        for (int i = ids.size(); i-- > 0;) {
+            undeploy(ids.get(i));
+        }
+    }
+
+    public synchronized Deployment getDeployment(String id) {
+        return _deployments.get(id);
+    }
+
+    public synchronized Deployment getDeploymentByContextPath(String contextPath) {
+        for (Deployment deployment : _deployments.values()) {
+            if (deployment.getContextPath().equals(contextPath)) {
+                return deployment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a snapshot of the current deployments, in deployment order
+     */
+    public synchronized List<Deployment> getDeployments() {
+        return new ArrayList<Deployment>(_deployments.values());
+    }
+
+    private void start(Deployment deployment) throws Exception {
+        long start = System.currentTimeMillis();
+        deployment._deployedAt = start;
+        try {
+            deployment.getContext().start();
+        } finally {
+            deployment._deployTime = System.currentTimeMillis() - start;
+            Log.info("Started " + deployment);
+        }
+    }
+}
@@ -15,9 +15,12 @@
 
 package org.mortbay.ijetty.deployer;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.HandlerContainer;
@@ -26,12 +29,12 @@ import org.eclipse.jetty.deploy.WebAppDeployer;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.HandlerCollection;
-import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.AttributesMap;
 import org.eclipse.jetty.util.URIUtil;
+import org.mortbay.ijetty.webapp.TagLibScanCache;
 
 /**
  * Web Application Deployer.
@@ -50,8 +53,15 @@ import org.eclipse.jetty.util.URIUtil;
  * @see {@link ContextDeployer}
  */
 public class AndroidWebAppDeployer extends WebAppDeployer {
-    private List<? super ServletContextHandler>     _deployed;
+    public final static String MANIFEST_KIND = "webapp";
+
+    private List<String>  _deployed = new ArrayList<String>();
+    private AndroidDeployer _deployer;
     private AttributesMap _attributes = new AttributesMap();
+    private Map<String, String> _initParams = new HashMap<String, String>();
+    private Map<String, String[]> _contextConfigurationClasses = new HashMap<String, String[]>();
+    private TagLibScanCache _tagLibScanCache;
+    private DeploymentManifest _manifest;
 
     /* ------------------------------------------------------------ */
     /**
@@ -59,17 +69,78 @@ public class AndroidWebAppDeployer extends WebAppDeployer {
      */
     @Override
     public void doStart() throws Exception {
-        _deployed = new ArrayList<ServletContextHandler>();
+        final List<DeploymentManifest.Entry> entries = (_manifest == null ? null : _manifest.getEntries(MANIFEST_KIND));
+        if ((entries == null) || entries.isEmpty() || (getContexts() == null)) {
+            scan();
+            saveManifest();
+            return;
+        }
+
+        // warm start: deploy what was deployed last time, and check the
+        // webapps dir once the server is up
+        for (DeploymentManifest.Entry entry : entries) {
+            try {
+                Resource app = Resource.newResource(entry.getId());
+                if (app.exists()) {
+                    deploy(app, entry.getContextPath());
+                }
+            } catch (Exception e) {
+                Log.warn("Unable to deploy " + entry, e);
+            }
+        }
+        new Thread("WebAppDeployer-verify") {
+            @Override
+            public void run() {
+                try {
+                    verify(entries);
+                } catch (Exception e) {
+                    Log.warn("Unable to verify deployments", e);
+                }
+            }
+        }.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Reconcile the webapps deployed from the manifest with the webapps dir:
+     * scan for webapps that are not yet deployed, undeploy those that have
+     * been removed and redeploy those that have changed.
+     * 
+     * @param entries
+     * @throws Exception
+     */
+    protected void verify(List<DeploymentManifest.Entry> entries) throws Exception {
+        long start = System.currentTimeMillis();
         scan();
+        for (DeploymentManifest.Entry entry : entries) {
+            if (!isRunning()) {
+                return;
+            }
+
+            File file = new File(entry.getId());
+            if (!file.exists()) {
+                getDeployer().undeploy(entry.getId());
+                _deployed.remove(entry.getId());
+                _manifest.remove(MANIFEST_KIND, entry.getId());
+                continue;
+            }
 
+            long hash = DeploymentManifest.hash(file);
+            if ((hash != entry.getHash()) || (file.lastModified() != entry.getLastModified())) {
+                getDeployer().redeploy(entry.getId());
+                _manifest.put(MANIFEST_KIND, entry.getId(), entry.getContextPath(), file.lastModified(), hash);
+            }
+        }
+        saveManifest();
+        Log.info("Verified " + entries.size() + " deployments in " + (System.currentTimeMillis() - start) + "ms");
     }
 
     @Override
     public void doStop() throws Exception {
         for (int i = _deployed.size(); i-- > 0;) {
-            ContextHandler wac = (ContextHandler) _deployed.get(i);
-            wac.stop();// TODO Multi exception
+            getDeployer().undeploy(_deployed.get(i));// TODO Multi exception
         }
+        _deployed.clear();
     }
 
     public Object getAttribute(String name) {
@@ -161,50 +232,188 @@ public class AndroidWebAppDeployer extends WebAppDeployer {
                 }
             }
 
-            // create a webapp
-            WebAppContext wah = null;
-            HandlerCollection contexts = getContexts();
-            if ((contexts instanceof ContextHandlerCollection)
-                    && WebAppContext.class.isAssignableFrom(((ContextHandlerCollection) contexts).getContextClass())) {
-                try {
-                    wah = (WebAppContext) ((ContextHandlerCollection) contexts).getContextClass().newInstance();
-                } catch (Exception e) {
-                    throw new Error(e);
-                }
-            } else {
-                wah = new WebAppContext();
+            deploy(app, context);
+            if (_manifest != null) {
+                File file = app.getFile();
+                _manifest.put(MANIFEST_KIND, file.getAbsolutePath(), context, file.lastModified(), DeploymentManifest.hash(file));
             }
+        }
+    }
 
-            // configure it
-            wah.setContextPath(context);
-
-            if (getConfigurationClasses() != null) {
-                wah.setConfigurationClasses(getConfigurationClasses());
+    /* ------------------------------------------------------------ */
+    /**
+     * Deploy a webapp directory or war and start it immediately.
+     * 
+     * @param app
+     *            the unpacked webapp or war
+     * @param context
+     *            the context path
+     * @return the deployment
+     * @throws Exception
+     */
+    public AndroidDeployer.Deployment deploy(Resource app, String context) throws Exception {
+        // create a webapp
+        WebAppContext wah = null;
+        HandlerCollection contexts = getContexts();
+        if ((contexts instanceof ContextHandlerCollection)
+                && WebAppContext.class.isAssignableFrom(((ContextHandlerCollection) contexts).getContextClass())) {
+            try {
+                wah = (WebAppContext) ((ContextHandlerCollection) contexts).getContextClass().newInstance();
+            } catch (Exception e) {
+                throw new Error(e);
             }
+        } else {
+            wah = new WebAppContext();
+        }
 
-            if (getDefaultsDescriptor() != null) {
-                wah.setDefaultsDescriptor(getDefaultsDescriptor());
-            }
-            wah.setExtractWAR(isExtract());
-            wah.setWar(app.toString());
-            wah.setParentLoaderPriority(isParentLoaderPriority());
-
-            Enumeration<?> names = _attributes.getAttributeNames();
-            while (names.hasMoreElements()) {
-                String name = (String) names.nextElement();
-                wah.setAttribute(name, _attributes.getAttribute(name));
-            }
+        // configure it
+        wah.setContextPath(context);
+
+        String[] configurationClasses = getConfigurationClasses(context, app);
+        if (configurationClasses != null) {
+            wah.setConfigurationClasses(configurationClasses);
+        }
+
+        if (getDefaultsDescriptor() != null) {
+            wah.setDefaultsDescriptor(getDefaultsDescriptor());
+        }
+        wah.setExtractWAR(isExtract());
+        wah.setWar(app.toString());
+        wah.setParentLoaderPriority(isParentLoaderPriority());
+
+        Enumeration<?> names = _attributes.getAttributeNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            wah.setAttribute(name, _attributes.getAttribute(name));
+        }
+
+        for (Map.Entry<String, String> entry : _initParams.entrySet()) {
+            wah.setInitParameter(entry.getKey(), entry.getValue());
+        }
+
+        // the tlds found last time need not be looked for again
+        if (_tagLibScanCache != null && app.isDirectory()) {
+            _tagLibScanCache.addTagLibResources(wah, app.getFile());
+        }
+
+        // add it
+        Log.debug("AndroidWebAppDeployer: prepared " + app.toString());
+        String id = app.getFile().getAbsolutePath();
+        if (!_deployed.contains(id)) {
+            _deployed.add(id);
+        }
+        //jetty-7.3.0 onwards need to start explicitly due to different startup time ordering
+        return getDeployer().deploy(id, wah, app.lastModified(), true);
+    }
 
-            // add it
-            Log.debug("AndroidWebAppDeployer: prepared " + app.toString());
-            contexts.addHandler(wah);
-            _deployed.add(wah);
-            //jetty-7.3.0 onwards need to start explicitly due to different startup time ordering
-            wah.start();
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the deployer used to deploy contexts, created on first use if
+     *         none was set
+     */
+    public synchronized AndroidDeployer getDeployer() {
+        if (_deployer == null) {
+            _deployer = new AndroidDeployer((ContextHandlerCollection) getContexts());
         }
+        return _deployer;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param deployer
+     *            the deployer through which to deploy contexts, shared with
+     *            other deployers and programmatic deployment
+     */
+    public void setDeployer(AndroidDeployer deployer) {
+        _deployer = deployer;
     }
 
     public void setAttribute(String name, Object value) {
         _attributes.setAttribute(name, value);
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the configuration classes for a webapp: those set for its context
+     * path, else the default configuration classes less any that the webapp
+     * does not need.
+     * 
+     * @param contextPath
+     * @param app
+     * @return the configuration classes to use
+     * @throws Exception
+     */
+    protected String[] getConfigurationClasses(String contextPath, Resource app) throws Exception {
+        String[] configurationClasses = _contextConfigurationClasses.get(contextPath);
+        if (configurationClasses != null) {
+            return configurationClasses;
+        }
+
+        configurationClasses = getConfigurationClasses();
+        if (_tagLibScanCache != null && app.isDirectory()) {
+            configurationClasses = _tagLibScanCache.prune(configurationClasses, app.getFile());
+        }
+        return configurationClasses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Use a specific list of configuration classes for one context.
+     * 
+     * @param contextPath
+     * @param configurationClasses
+     */
+    public void setConfigurationClasses(String contextPath, String[] configurationClasses) {
+        _contextConfigurationClasses.put(contextPath, configurationClasses);
+    }
+
+    public DeploymentManifest getManifest() {
+        return _manifest;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param manifest
+     *            if set, the webapps found by the scan are recorded in the
+     *            manifest, and deployed from it at the next start before the
+     *            webapps dir is scanned
+     */
+    public void setManifest(DeploymentManifest manifest) {
+        _manifest = manifest;
+    }
+
+    private void saveManifest() {
+        if (_manifest != null) {
+            _manifest.save();
+        }
+    }
+
+    public TagLibScanCache getTagLibScanCache() {
+        return _tagLibScanCache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param cache
+     *            if set, the TagLibConfiguration is only applied to webapps
+     *            that contain tlds, and is given the tlds found last time
+     */
+    public void setTagLibScanCache(TagLibScanCache cache) {
+        _tagLibScanCache = cache;
+    }
+
+    public String getInitParameter(String name) {
+        return _initParams.get(name);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set a context init parameter on every webapp deployed.
+     * 
+     * @param name
+     * @param value
+     */
+    public void setInitParameter(String name, String value) {
+        _initParams.put(name, value);
+    }
 }
@@ -0,0 +1,249 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.deployer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * DeploymentManifest
+ *
+ * A persisted record of what the deployers deployed last time: for each
+ * deployment its file, context path, last modified time and a hash of its
+ * content. At startup the deployers deploy straight from the manifest rather
+ * than listing and scanning their directories, then verify the filesystem
+ * against it in the background.
+ *
+ * The hash of a context xml file is a crc of its content. The hash of an
+ * unpacked webapp is a crc of the listings of the webapp, WEB-INF and
+ * WEB-INF/lib dirs, which catches changes that the webapp dir's own last
+ * modified time does not. A war is hashed by its size and last modified time
+ * only, as reading the whole of it would cost more than deploying it.
+ */
+public class DeploymentManifest {
+    /**
+     * Entry
+     *
+     * One deployment recorded in the manifest.
+     */
+    public static class Entry {
+        private final String _id;
+        private final String _contextPath;
+        private final long   _lastModified;
+        private final long   _hash;
+
+        public Entry(String id, String contextPath, long lastModified, long hash) {
+            _id = id;
+            _contextPath = contextPath;
+            _lastModified = lastModified;
+            _hash = hash;
+        }
+
+        /**
+         * @return the file deployed from
+         */
+        public String getId() {
+            return _id;
+        }
+
+        public String getContextPath() {
+            return _contextPath;
+        }
+
+        public long getLastModified() {
+            return _lastModified;
+        }
+
+        public long getHash() {
+            return _hash;
+        }
+
+        @Override
+        public String toString() {
+            return _id + " -> " + _contextPath;
+        }
+    }
+
+    private final File _file;
+    private Properties _properties;
+    private boolean    _dirty;
+
+    public DeploymentManifest(File file) {
+        _file = file;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param kind
+     *            the kind of deployment, one per deployer
+     * @return the deployments of that kind recorded in the manifest
+     */
+    public synchronized List<Entry> getEntries(String kind) {
+        load();
+        List<Entry> entries = new ArrayList<Entry>();
+        String prefix = kind + ":";
+        Enumeration<?> keys = _properties.propertyNames();
+        while (keys.hasMoreElements()) {
+            String key = (String) keys.nextElement();
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            // lastModified,hash,contextPath
+            String[] value = _properties.getProperty(key).split(",", 3);
+            try {
+                entries.add(new Entry(key.substring(prefix.length()), value[2], Long.parseLong(value[0]), Long.parseLong(value[1], 16)));
+            } catch (RuntimeException e) {
+                Log.warn("Bad deployment manifest entry " + key);
+            }
+        }
+        return entries;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Record a deployment. The manifest is not written until {@link #save()}.
+     *
+     * @param kind
+     * @param id
+     * @param contextPath
+     * @param lastModified
+     * @param hash
+     */
+    public synchronized void put(String kind, String id, String contextPath, long lastModified, long hash) {
+        load();
+        String value = lastModified + "," + Long.toHexString(hash) + "," + contextPath;
+        if (!value.equals(_properties.setProperty(kind + ":" + id, value))) {
+            _dirty = true;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Forget a deployment. The manifest is not written until {@link #save()}.
+     *
+     * @param kind
+     * @param id
+     */
+    public synchronized void remove(String kind, String id) {
+        load();
+        if (_properties.remove(kind + ":" + id) != null) {
+            _dirty = true;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Write the manifest, if it has changed since it was read or last written.
+     */
+    public synchronized void save() {
+        if (!_dirty || _file == null) {
+            return;
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(_file);
+            _properties.store(out, "i-jetty deployments");
+            _dirty = false;
+        } catch (IOException e) {
+            Log.warn("Unable to write " + _file, e);
+        } finally {
+            IO.close(out);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param file
+     *            a context xml file or unpacked webapp
+     * @return the hash to compare with the one recorded in the manifest
+     */
+    public static long hash(File file) {
+        CRC32 crc = new CRC32();
+        if (file.isDirectory()) {
+            update(crc, file);
+            File webInf = new File(file, "WEB-INF");
+            update(crc, webInf);
+            update(crc, new File(webInf, "lib"));
+            return crc.getValue();
+        }
+
+        if (!file.getName().toLowerCase().endsWith(".xml")) {
+            crc.update((file.getName() + ":" + file.length() + ":" + file.lastModified()).getBytes());
+            return crc.getValue();
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                crc.update(buf, 0, len);
+            }
+        } catch (IOException e) {
+            Log.ignore(e);
+        } finally {
+            IO.close(in);
+        }
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            File f = new File(dir, name);
+            crc.update((name + ":" + f.length() + ":" + f.lastModified() + ";").getBytes());
+        }
+    }
+
+    private void load() {
+        if (_properties != null) {
+            return;
+        }
+
+        _properties = new Properties();
+        if (_file == null || !_file.exists()) {
+            return;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(_file);
+            _properties.load(in);
+        } catch (IOException e) {
+            Log.warn("Unable to read " + _file, e);
+        } finally {
+            IO.close(in);
+        }
+    }
+}
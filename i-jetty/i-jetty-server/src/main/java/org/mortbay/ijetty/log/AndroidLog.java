@@ -15,16 +15,75 @@
 
 package org.mortbay.ijetty.log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.log.Logger;
 
 import android.util.Log;
 
+/**
+ * AndroidLog
+ *
+ * Jetty logging to the android log, under the tag {@link #__JETTY_TAG}.
+ *
+ * Android keeps the level of a tag in a system property, which 
+ * Log.isLoggable looks up on every call. Jetty asks isDebugEnabled on its
+ * hot paths, so the levels are looked up once into a snapshot, which is 
+ * refreshed every {@link #__REFRESH_INTERVAL} ms, or by {@link #refresh()}.
+ *
+ * Messages are formatted, with each {} replaced by the next argument, only
+ * if the level is enabled. A Throwable left over as the last argument is 
+ * logged as the cause.
+ * 
+ * Loggers are kept in a registry by name. A logger can be given a level of
+ * its own, which it otherwise inherits from the nearest configured parent
+ * of its name, eg org.eclipse.jetty.deploy from org.eclipse.jetty. Loggers 
+ * without a level follow the level of the tag. Levels are set from a
+ * properties file of <code>name.LEVEL=DEBUG</code> lines, as for jetty's
+ * StdErrLog, or at runtime by {@link #setLevel(String, String)}.
+ * 
+ * Records can also be written to a file, see {@link #setAppender(FileLogAppender)}.
+ * 
+ * Warnings and ignored exceptions are rate limited by a {@link LogRateLimiter},
+ * keyed by logger, message template and exception type, so a storm of them
+ * cannot take the connector threads with it. The counts of suppressed records
+ * are reported by a daemon timer, started by the first rate limited record,
+ * so they are not held back until the next warning. The timer is cancelled
+ * by {@link #stopSweeper()}.
+ */
 public class AndroidLog implements Logger
 {
     public static final String __JETTY_TAG = "Jetty";
+    public static final long __REFRESH_INTERVAL = 5000;
+    public static final String __LEVEL_SUFFIX = ".LEVEL";
+    public static final int __OFF = Log.ASSERT+1;
     public static boolean __isIgnoredEnabled = false;
     public String _name;
+    private volatile int _level = -1;
+    
+    private static final ConcurrentMap<String, AndroidLog> __loggers = new ConcurrentHashMap<String, AndroidLog>();
+    private static final Map<String, Integer> __levels = new TreeMap<String, Integer>();
+    private static volatile FileLogAppender __appender;
+    private static volatile LogRateLimiter __limiter = new LogRateLimiter(10, 100);
+    private static volatile Timer __sweeper;
     
+    private static volatile boolean __debug;
+    private static volatile boolean __info;
+    private static volatile boolean __warn;
+    private static volatile boolean __error;
+    private static volatile long __nextRefresh;
 
 
 
@@ -42,73 +101,471 @@ public class AndroidLog implements Logger
     {
          return  _name;
     }
+    
+    
+    /**
+     * @return the level this logger logs at, or -1 if it follows the tag
+     */
+    public int getLevel ()
+    {
+        return _level;
+    }
+    
+    
+    /**
+     * @param name
+     * @return the logger of the name, from the registry
+     */
+    public static AndroidLog getAndroidLogger (String name)
+    {
+        AndroidLog logger = __loggers.get(name);
+        if (logger == null)
+        {
+            AndroidLog created = new AndroidLog(name);
+            logger = __loggers.putIfAbsent(name, created);
+            if (logger == null)
+            {
+                logger = created;
+                synchronized (__levels)
+                {
+                    logger._level = findLevel(name);
+                }
+            }
+        }
+        return logger;
+    }
+    
+    
+    /**
+     * @return the loggers in the registry, by name
+     */
+    public static Map<String, AndroidLog> getLoggers ()
+    {
+        return Collections.unmodifiableMap(new TreeMap<String, AndroidLog>(__loggers));
+    }
+    
+    
+    /**
+     * @return the configured levels, by logger name
+     */
+    public static Map<String, String> getLevels ()
+    {
+        Map<String, String> levels = new TreeMap<String, String>();
+        synchronized (__levels)
+        {
+            for (Map.Entry<String, Integer> entry : __levels.entrySet())
+                levels.put(entry.getKey(), toLevelName(entry.getValue()));
+        }
+        return levels;
+    }
+    
+    
+    /**
+     * Set the level of a logger, and of the loggers below it that do not
+     * have a level of their own.
+     * @param name
+     * @param level ALL, VERBOSE, DEBUG, INFO, WARN, ERROR or OFF, or null to
+     * remove the level so the logger inherits one
+     * @throws IllegalArgumentException if the level is not known
+     */
+    public static void setLevel (String name, String level)
+    {
+        Integer value = (level == null ? null : Integer.valueOf(toLevel(level)));
+        synchronized (__levels)
+        {
+            if (value == null)
+                __levels.remove(name);
+            else
+                __levels.put(name, value);
+            for (AndroidLog logger : __loggers.values())
+                logger._level = findLevel(logger._name);
+        }
+    }
+    
+    
+    /**
+     * Also write log records to a file.
+     * @param appender a started appender, or null to stop writing to a file
+     * @return the appender that was set before, which the caller should stop
+     */
+    public static FileLogAppender setAppender (FileLogAppender appender)
+    {
+        FileLogAppender old = __appender;
+        __appender = appender;
+        return old;
+    }
+    
+    
+    public static FileLogAppender getAppender ()
+    {
+        return __appender;
+    }
+    
+    
+    /**
+     * Replace the configured levels with those in a properties file.
+     * @param file
+     * @return the properties read from the file, which may hold other settings 
+     */
+    public static Properties configure (File file)
+    {
+        Properties properties = new Properties();
+        if (file.exists())
+        {
+            FileInputStream in = null;
+            try
+            {
+                in = new FileInputStream(file);
+                properties.load(in);
+            }
+            catch (IOException e)
+            {
+                Log.w(__JETTY_TAG, "Unable to read "+file, e);
+            }
+            finally
+            {
+                IO.close(in);
+            }
+        }
+        
+        synchronized (__levels)
+        {
+            __levels.clear();
+            Enumeration<?> names = properties.propertyNames();
+            while (names.hasMoreElements())
+            {
+                String key = (String)names.nextElement();
+                if (!key.endsWith(__LEVEL_SUFFIX))
+                    continue;
+                try
+                {
+                    __levels.put(key.substring(0, key.length()-__LEVEL_SUFFIX.length()), Integer.valueOf(toLevel(properties.getProperty(key))));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    Log.w(__JETTY_TAG, "Bad level for "+key+" in "+file);
+                }
+            }
+            for (AndroidLog logger : __loggers.values())
+                logger._level = findLevel(logger._name);
+        }
+        
+        try
+        {
+            LogRateLimiter old = __limiter;
+            __limiter = new LogRateLimiter(Integer.parseInt(properties.getProperty(LogRateLimiter.__RATE, "10").trim()), 
+                                           Integer.parseInt(properties.getProperty(LogRateLimiter.__SAMPLE_RATE, "100").trim()));
+            //the sweeper only sees the new limiter
+            reportSuppressed(old.sweep(Long.MAX_VALUE));
+        }
+        catch (NumberFormatException e)
+        {
+            Log.w(__JETTY_TAG, "Bad rate limit in "+file);
+        }
+        return properties;
+    }
+    
+    
+    /**
+     * @return the level of the name or its nearest configured parent, or -1
+     */
+    private static int findLevel (String name)
+    {
+        String n = name;
+        while (n != null)
+        {
+            Integer level = __levels.get(n);
+            if (level != null)
+                return level.intValue();
+            int dot = n.lastIndexOf('.');
+            n = (dot < 0 ? null : n.substring(0, dot));
+        }
+        return -1;
+    }
+    
+    
+    public static int toLevel (String level)
+    {
+        String l = level.trim().toUpperCase();
+        if ("ALL".equals(l) || "VERBOSE".equals(l))
+            return Log.VERBOSE;
+        if ("DEBUG".equals(l))
+            return Log.DEBUG;
+        if ("INFO".equals(l))
+            return Log.INFO;
+        if ("WARN".equals(l))
+            return Log.WARN;
+        if ("ERROR".equals(l))
+            return Log.ERROR;
+        if ("OFF".equals(l))
+            return __OFF;
+        throw new IllegalArgumentException("Unknown level "+level);
+    }
+    
+    
+    public static String toLevelName (int level)
+    {
+        switch (level)
+        {
+            case Log.VERBOSE:
+                return "ALL";
+            case Log.DEBUG:
+                return "DEBUG";
+            case Log.INFO:
+                return "INFO";
+            case Log.WARN:
+                return "WARN";
+            case Log.ERROR:
+                return "ERROR";
+            case __OFF:
+                return "OFF";
+            default:
+                return "DEFAULT";
+        }
+    }
+    
+    
+    /**
+     * Look up the levels of the tag now, rather than waiting for the
+     * next periodic refresh, eg after a setprop log.tag.Jetty.
+     */
+    public static void refresh ()
+    {
+        __debug = Log.isLoggable(__JETTY_TAG, Log.DEBUG);
+        __info = Log.isLoggable(__JETTY_TAG, Log.INFO);
+        __warn = Log.isLoggable(__JETTY_TAG, Log.WARN);
+        __error = Log.isLoggable(__JETTY_TAG, Log.ERROR);
+        __nextRefresh = System.currentTimeMillis() + __REFRESH_INTERVAL;
+    }
+    
+    
+    /**
+     * @return true if this logger logs at the level
+     */
+    private boolean isLoggable (int level)
+    {
+        int configured = _level;
+        if (configured >= 0)
+            return level >= configured;
+        return isTagLoggable(level);
+    }
+    
+    
+    private static boolean isTagLoggable (int level)
+    {
+        //racing refreshes are harmless, they look up the same levels
+        if (System.currentTimeMillis() >= __nextRefresh)
+            refresh();
+        
+        switch (level)
+        {
+            case Log.DEBUG:
+                return __debug;
+            case Log.INFO:
+                return __info;
+            case Log.WARN:
+                return __warn;
+            default:
+                return __error;
+        }
+    }
+    
+    
+    /**
+     * @param msg the message template
+     * @param th the throwable logged with it, if it is one
+     * @return -1 if the record should be suppressed, otherwise the number of
+     * similar records suppressed since the last one was logged
+     */
+    private long acquire (String msg, Object th)
+    {
+        LogRateLimiter limiter = __limiter;
+        if (!limiter.isLimited())
+            return 0;
+        
+        if (__sweeper == null)
+            startSweeper();
+        return limiter.acquire(_name+": "+msg+(th instanceof Throwable ? " "+th.getClass().getName() : ""), System.currentTimeMillis());
+    }
+    
+    
+    /**
+     * Report the records suppressed by the rate limiter every 
+     * {@link LogRateLimiter#__SWEEP_INTERVAL} ms, whether or not more arrive.
+     */
+    private static synchronized void startSweeper ()
+    {
+        if (__sweeper != null)
+            return;
+        
+        Timer sweeper = new Timer("Jetty-log-sweeper", true);
+        sweeper.schedule(new TimerTask()
+        {
+            public void run()
+            {
+                LogRateLimiter limiter = __limiter;
+                if (limiter.isLimited())
+                    reportSuppressed(limiter.sweep(System.currentTimeMillis()));
+            }
+        }, LogRateLimiter.__SWEEP_INTERVAL, LogRateLimiter.__SWEEP_INTERVAL);
+        __sweeper = sweeper;
+    }
+    
+    
+    /**
+     * Cancel the timer that reports suppressed records, and report those
+     * suppressed so far. The next rate limited record starts it again.
+     */
+    public static synchronized void stopSweeper ()
+    {
+        Timer sweeper = __sweeper;
+        if (sweeper == null)
+            return;
+        sweeper.cancel();
+        __sweeper = null;
+        reportSuppressed(__limiter.sweep(Long.MAX_VALUE));
+    }
+    
+    
+    private static void reportSuppressed (Map<String, Long> suppressed)
+    {
+        if (suppressed.isEmpty())
+            return;
+        AndroidLog log = getAndroidLogger(LogRateLimiter.class.getName());
+        for (Map.Entry<String, Long> entry : suppressed.entrySet())
+            log.write(Log.WARN, "Suppressed "+entry.getValue()+" similar messages: "+entry.getKey(), null);
+    }
+    
+    
+    private static String withSuppressed (String msg, long suppressed)
+    {
+        return (suppressed > 0 ? msg+" (suppressed "+suppressed+" similar messages)" : msg);
+    }
+    
+    
+    /**
+     * Log a message, formatting it only if the level is enabled.
+     */
+    private void log (int level, long suppressed, String msg, Object[] args)
+    {
+        if (!isLoggable(level))
+            return;
+        
+        Throwable th = null;
+        StringBuilder builder = new StringBuilder();
+        String message = String.valueOf(msg);
+        int start = 0;
+        int i = 0;
+        for (; i < args.length; i++)
+        {
+            int braces = message.indexOf("{}", start);
+            if (braces < 0)
+                break;
+            builder.append(message, start, braces);
+            builder.append(String.valueOf(args[i]));
+            start = braces + 2;
+        }
+        builder.append(message, start, message.length());
+        
+        //left over args are appended, except a throwable at the end
+        int end = args.length;
+        if (i < end && args[end-1] instanceof Throwable)
+            th = (Throwable)args[--end];
+        for (; i < end; i++)
+            builder.append(' ').append(String.valueOf(args[i]));
+        if (suppressed > 0)
+            builder.append(" (suppressed ").append(suppressed).append(" similar messages)");
+        
+        write(level, builder.toString(), th);
+    }
+    
+    
+    /**
+     * Write to the android log, and to the file appender if there is one.
+     */
+    private void write (int level, String msg, Throwable th)
+    {
+        String text = (th == null ? msg : msg+'\n'+Log.getStackTraceString(th));
+        Log.println(level, __JETTY_TAG, text);
+        FileLogAppender appender = __appender;
+        if (appender != null)
+            appender.append(level, _name, text);
+    }
 
 
     public void debug(Throwable th)
     {
-        if (Log.isLoggable(__JETTY_TAG, Log.DEBUG))
+        if (isLoggable(Log.DEBUG))
         {
-            Log.d(__JETTY_TAG, "", th);
+            write(Log.DEBUG, "", th);
         }
     }
     
     public void debug(String msg, Throwable th)
     {
-        if (Log.isLoggable(__JETTY_TAG, Log.DEBUG))
+        if (isLoggable(Log.DEBUG))
         {
-            Log.d(__JETTY_TAG, msg, th);
+            write(Log.DEBUG, msg, th);
         }
     }
 
     public void debug(String msg, Object... args)
     {
-        if (Log.isLoggable(__JETTY_TAG, Log.DEBUG)) 
-        {            
-            Log.d(__JETTY_TAG, msg);
-        }
+        log(Log.DEBUG, 0, msg, args);
     }
 
     public Logger getLogger(String name)
     {
-       return new AndroidLog(name);
+       return getAndroidLogger(name);
     }
 
     public void info(String msg, Object... args)
     {
-        Log.i(__JETTY_TAG, msg);
+        log(Log.INFO, 0, msg, args);
     }
 
     public void info(Throwable th)
     {
-        Log.i(__JETTY_TAG, "", th);
+        if (isLoggable(Log.INFO))
+            write(Log.INFO, "", th);
     }
 
     public void info(String msg, Throwable th)
     {
-        Log.i(__JETTY_TAG, msg, th);
+        if (isLoggable(Log.INFO))
+            write(Log.INFO, msg, th);
     }
 
     public boolean isDebugEnabled()
     {
-        return Log.isLoggable(__JETTY_TAG, Log.DEBUG);
+        return isLoggable(Log.DEBUG);
     }
 
     public void warn(Throwable th)
     {
-        if (Log.isLoggable(__JETTY_TAG, Log.WARN))
-            Log.e(__JETTY_TAG, "", th);
+        if (!isLoggable(Log.WARN))
+            return;
+        long suppressed = acquire("", th);
+        if (suppressed >= 0)
+            write(Log.ERROR, withSuppressed("", suppressed), th);
     }
 
     public void warn(String msg, Object... args)
     { 
-        if (Log.isLoggable(__JETTY_TAG, Log.WARN))
-            Log.w(__JETTY_TAG, msg);
+        if (!isLoggable(Log.WARN))
+            return;
+        long suppressed = acquire(msg, (args.length == 0 ? null : args[args.length-1]));
+        if (suppressed >= 0)
+            log(Log.WARN, suppressed, msg, args);
     }
 
     public void warn(String msg, Throwable th)
     {  
-        if (Log.isLoggable(__JETTY_TAG, Log.ERROR))
-            Log.e(__JETTY_TAG, msg, th);
+        if (!isLoggable(Log.ERROR))
+            return;
+        long suppressed = acquire(msg, th);
+        if (suppressed >= 0)
+            write(Log.ERROR, withSuppressed(msg, suppressed), th);
     }
 
     public boolean isIgnoredEnabled ()
@@ -119,8 +576,11 @@ public class AndroidLog implements Logger
 
     public void ignore(Throwable ignored)
     {
-       if (__isIgnoredEnabled)
-           Log.w(__JETTY_TAG, "IGNORED", ignored);
+       if (!__isIgnoredEnabled)
+           return;
+       long suppressed = acquire("IGNORED", ignored);
+       if (suppressed >= 0)
+           write(Log.WARN, withSuppressed("IGNORED", suppressed), ignored);
     }
 
     public void setIgnoredEnabled(boolean enabled)
@@ -130,6 +590,6 @@ public class AndroidLog implements Logger
 
     public void setDebugEnabled(boolean enabled)
     {
-        
+        setLevel(_name, enabled ? "DEBUG" : null);
     }
 }
@@ -0,0 +1,332 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.util.IO;
+
+import android.util.Log;
+
+/**
+ * FileLogAppender
+ *
+ * Writes log records to a file, as the logcat ring buffer is small and
+ * shared with the whole device. Records are queued and written in batches
+ * by a writer thread, so logging does not wait on the SD card. The queue is
+ * bounded: when it is full a record is dropped, either the new one or the
+ * oldest queued, and the drops are counted and noted in the file.
+ *
+ * When the file grows past the max size it is rotated to a compressed
+ * file.1.gz, with older files shifted up and the oldest deleted.
+ */
+public class FileLogAppender
+{
+    public static final String __ENABLED = "org.mortbay.ijetty.log.file";
+    public static final String __MAX_SIZE = "org.mortbay.ijetty.log.file.maxSize";
+    public static final String __MAX_FILES = "org.mortbay.ijetty.log.file.maxFiles";
+    public static final String __QUEUE_SIZE = "org.mortbay.ijetty.log.file.queueSize";
+    public static final String __OVERFLOW = "org.mortbay.ijetty.log.file.overflow";
+    public static final String __LOG_FILE = "jetty.log";
+
+    /**
+     * What to drop when the queue is full
+     */
+    public enum Overflow { DROP_NEWEST, DROP_OLDEST };
+
+    private static final int __MAX_BATCH = 256;
+
+    private static class Record
+    {
+        final long _time;
+        final int _level;
+        final String _name;
+        final String _message;
+
+        Record (int level, String name, String message)
+        {
+            _time = System.currentTimeMillis();
+            _level = level;
+            _name = name;
+            _message = message;
+        }
+    }
+
+    private final File _dir;
+    private final File _file;
+    private final long _maxSize;
+    private final int _maxFiles;
+    private final Overflow _overflow;
+    private final BlockingQueue<Record> _queue;
+    private final AtomicLong _dropped = new AtomicLong();
+    private long _droppedNoted;
+    private OutputStream _out;
+    private long _size;
+    private volatile boolean _running;
+    private Thread _thread;
+
+
+    /**
+     * @param dir the dir to write the log to
+     * @param properties the settings of the appender, with defaults if not set
+     * @return a new appender, which must be started
+     */
+    public static FileLogAppender newAppender (File dir, Properties properties)
+    {
+        long maxSize = Long.parseLong(properties.getProperty(__MAX_SIZE, "1048576").trim());
+        int maxFiles = Integer.parseInt(properties.getProperty(__MAX_FILES, "5").trim());
+        int queueSize = Integer.parseInt(properties.getProperty(__QUEUE_SIZE, "1024").trim());
+        Overflow overflow = Overflow.valueOf(properties.getProperty(__OVERFLOW, Overflow.DROP_OLDEST.name()).trim().toUpperCase());
+        return new FileLogAppender(dir, maxSize, maxFiles, queueSize, overflow);
+    }
+
+
+    /**
+     * @param dir the dir to write the log to
+     * @param maxSize the size to rotate the log at
+     * @param maxFiles the number of rotated logs to keep
+     * @param queueSize the most records to queue for writing
+     * @param overflow what to drop when the queue is full
+     */
+    public FileLogAppender (File dir, long maxSize, int maxFiles, int queueSize, Overflow overflow)
+    {
+        _dir = dir;
+        _file = new File(dir, __LOG_FILE);
+        _maxSize = maxSize;
+        _maxFiles = maxFiles;
+        _overflow = overflow;
+        _queue = new ArrayBlockingQueue<Record>(queueSize);
+    }
+
+
+    public synchronized void start ()
+    {
+        if (_running)
+            return;
+        _running = true;
+        _thread = new Thread("Jetty-log-appender")
+        {
+            public void run()
+            {
+                FileLogAppender.this.run();
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.setPriority(Thread.MIN_PRIORITY);
+        _thread.start();
+    }
+
+
+    /**
+     * Stop the writer thread once it has written what is queued.
+     */
+    public void stop ()
+    {
+        Thread thread;
+        synchronized (this)
+        {
+            _running = false;
+            thread = _thread;
+            _thread = null;
+        }
+        if (thread == null)
+            return;
+        try
+        {
+            thread.join(5000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @return the number of records dropped because the queue was full
+     */
+    public long getDropped ()
+    {
+        return _dropped.get();
+    }
+
+
+    /**
+     * Queue a record to be written. Never blocks.
+     * @param level
+     * @param name
+     * @param message
+     */
+    public void append (int level, String name, String message)
+    {
+        if (!_running)
+            return;
+
+        Record record = new Record(level, name, message);
+        if (_queue.offer(record))
+            return;
+
+        if (_overflow == Overflow.DROP_OLDEST && _queue.poll() != null)
+        {
+            _dropped.incrementAndGet();
+            if (_queue.offer(record))
+                return;
+        }
+        _dropped.incrementAndGet();
+    }
+
+
+    private void run ()
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        List<Record> batch = new ArrayList<Record>(__MAX_BATCH);
+        StringBuilder builder = new StringBuilder();
+        try
+        {
+            while (_running || !_queue.isEmpty())
+            {
+                Record first = _queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                _queue.drainTo(batch, __MAX_BATCH-1);
+
+                builder.setLength(0);
+                long dropped = _dropped.get();
+                if (dropped > _droppedNoted)
+                {
+                    builder.append(format.format(new Date())).append(" WARN  ").append(FileLogAppender.class.getName())
+                    .append(": ").append(dropped - _droppedNoted).append(" records dropped\n");
+                    _droppedNoted = dropped;
+                }
+                for (Record record : batch)
+                {
+                    builder.append(format.format(new Date(record._time))).append(' ')
+                    .append(AndroidLog.toLevelName(record._level)).append(' ')
+                    .append(record._name).append(": ").append(record._message).append('\n');
+                }
+                batch.clear();
+                write(builder.toString());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Log.w(AndroidLog.__JETTY_TAG, "Log appender interrupted");
+        }
+        finally
+        {
+            IO.close(_out);
+            _out = null;
+        }
+    }
+
+
+    private void write (String text)
+    {
+        try
+        {
+            if (_out == null)
+            {
+                _dir.mkdirs();
+                _size = _file.length();
+                _out = new FileOutputStream(_file, true);
+            }
+            //the size is counted in bytes, which a char of a name or message may be several of
+            byte[] bytes = text.getBytes("UTF-8");
+            _out.write(bytes);
+            _out.flush();
+            _size += bytes.length;
+
+            if (_size >= _maxSize)
+            {
+                IO.close(_out);
+                _out = null;
+                rotate();
+            }
+        }
+        catch (IOException e)
+        {
+            //don't log to ourselves
+            Log.w(AndroidLog.__JETTY_TAG, "Unable to write "+_file, e);
+            IO.close(_out);
+            _out = null;
+        }
+    }
+
+
+    /**
+     * Shift the rotated logs up one, then compress the log to file.1.gz. A
+     * rotated log that cannot be shifted is overwritten by the one below it.
+     */
+    private void rotate () throws IOException
+    {
+        File oldest = new File(_dir, __LOG_FILE+"."+_maxFiles+".gz");
+        if (oldest.exists() && !oldest.delete())
+            Log.w(AndroidLog.__JETTY_TAG, "Unable to delete "+oldest);
+        for (int i = _maxFiles-1; i > 0; i--)
+        {
+            File rotated = new File(_dir, __LOG_FILE+"."+i+".gz");
+            if (rotated.exists() && !rotated.renameTo(new File(_dir, __LOG_FILE+"."+(i+1)+".gz")))
+                Log.w(AndroidLog.__JETTY_TAG, "Unable to shift "+rotated);
+        }
+
+        if (_maxFiles <= 0)
+        {
+            delete();
+            return;
+        }
+
+        InputStream in = null;
+        OutputStream out = null;
+        try
+        {
+            in = new FileInputStream(_file);
+            out = new GZIPOutputStream(new FileOutputStream(new File(_dir, __LOG_FILE+".1.gz")));
+            IO.copy(in, out);
+        }
+        finally
+        {
+            IO.close(out);
+            IO.close(in);
+        }
+        delete();
+    }
+
+
+    /**
+     * Delete the rotated log, or else it is appended to and rotated again.
+     */
+    private void delete ()
+    {
+        if (!_file.delete())
+            Log.w(AndroidLog.__JETTY_TAG, "Unable to delete "+_file);
+    }
+}
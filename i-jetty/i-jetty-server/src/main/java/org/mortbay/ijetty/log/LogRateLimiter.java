@@ -0,0 +1,152 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.log;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * LogRateLimiter
+ *
+ * Limits how often similar records are logged, so a storm of warnings from
+ * a misbehaving client does not spend the connector threads on logcat and
+ * stack traces. Records are similar if they have the same key, eg the
+ * logger, the message template and the type of the exception.
+ *
+ * Within each {@link #__WINDOW} ms, the first records of a key, up to the
+ * rate, are logged. After that, only one in every sample rate is logged,
+ * and the rest are counted as suppressed. The count is reported with the
+ * next record of the key that is logged, or by {@link #sweep(long)} once
+ * the window has passed.
+ */
+public class LogRateLimiter
+{
+    public static final String __RATE = "org.mortbay.ijetty.log.rateLimit";
+    public static final String __SAMPLE_RATE = "org.mortbay.ijetty.log.sampleRate";
+    public static final long __WINDOW = 1000;
+    public static final long __SWEEP_INTERVAL = 10000;
+
+    private static final int __MAX_KEYS = 512;
+
+    private static class Limit
+    {
+        private long _windowEnd;
+        private int _count;
+        private long _suppressed;
+    }
+
+    private final ConcurrentMap<String, Limit> _limits = new ConcurrentHashMap<String, Limit>();
+    private final int _rate;
+    private final int _sampleRate;
+
+
+    /**
+     * @param rate the records of a key logged in each window, or 0 for no limit
+     * @param sampleRate log one in this many of the records over the rate, or 0
+     * to log none of them
+     */
+    public LogRateLimiter (int rate, int sampleRate)
+    {
+        _rate = rate;
+        _sampleRate = sampleRate;
+    }
+
+
+    public boolean isLimited ()
+    {
+        return _rate > 0;
+    }
+
+
+    /**
+     * @param key
+     * @param now
+     * @return -1 if the record should be suppressed, otherwise the number of
+     * records of the key suppressed since the last one was logged
+     */
+    public long acquire (String key, long now)
+    {
+        if (_rate <= 0)
+            return 0;
+
+        Limit limit = _limits.get(key);
+        if (limit == null)
+        {
+            //a flood of distinct keys is not limited, but nor does it grow the map
+            if (_limits.size() >= __MAX_KEYS)
+                return 0;
+            Limit created = new Limit();
+            limit = _limits.putIfAbsent(key, created);
+            if (limit == null)
+                limit = created;
+        }
+
+        synchronized (limit)
+        {
+            if (now >= limit._windowEnd)
+            {
+                limit._windowEnd = now + __WINDOW;
+                limit._count = 0;
+            }
+
+            int count = ++limit._count;
+            if (count <= _rate || (_sampleRate > 0 && (count - _rate) % _sampleRate == 0))
+            {
+                long suppressed = limit._suppressed;
+                limit._suppressed = 0;
+                return suppressed;
+            }
+            limit._suppressed++;
+            return -1;
+        }
+    }
+
+
+    /**
+     * Collect the counts of suppressed records whose window has passed, and
+     * forget keys that have been quiet since the last sweep. Called every
+     * {@link #__SWEEP_INTERVAL} ms.
+     * @param now
+     * @return the number of records suppressed, by key
+     */
+    public Map<String, Long> sweep (long now)
+    {
+        Map<String, Long> suppressed = new TreeMap<String, Long>();
+
+        Iterator<Map.Entry<String, Limit>> iter = _limits.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<String, Limit> entry = iter.next();
+            Limit limit = entry.getValue();
+            synchronized (limit)
+            {
+                if (now < limit._windowEnd)
+                    continue;
+                if (limit._suppressed > 0)
+                {
+                    suppressed.put(entry.getKey(), Long.valueOf(limit._suppressed));
+                    limit._suppressed = 0;
+                }
+                else if (now - limit._windowEnd > __SWEEP_INTERVAL)
+                    iter.remove();
+            }
+        }
+        return suppressed;
+    }
+}
@@ -15,6 +15,8 @@
 
 package org.mortbay.ijetty.webapp;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import org.eclipse.jetty.util.log.Log;
@@ -43,6 +45,41 @@ public class AndroidWebInfConfiguration extends WebInfConfiguration {
     }
     
     
+    /**
+     * A war that is not to be extracted is served through a {@link WarResource},
+     * with only the archives in WEB-INF/lib extracted, to the temp dir.
+     * 
+     * @see org.eclipse.jetty.webapp.WebInfConfiguration#unpack(org.eclipse.jetty.webapp.WebAppContext)
+     */
+    public void unpack (WebAppContext context)
+    throws IOException
+    {
+        if (context.getBaseResource() == null && !context.isExtractWAR() && context.getWar() != null)
+        {
+            Resource war = context.newResource(context.getWar());
+            if (war.exists() && !war.isDirectory() && war.getFile() != null)
+            {
+                context.setBaseResource(WarResource.newResource(war.getFile(), new File(context.getTempDirectory(), "webinf-lib")));
+                return;
+            }
+        }
+        super.unpack(context);
+    }
+    
+    
+    public void deconfigure(WebAppContext context)
+    throws Exception
+    {
+        Resource base = context.getBaseResource();
+        super.deconfigure(context);
+        if (base instanceof WarResource)
+        {
+            ((WarResource)base).close();
+            context.setBaseResource(null);
+        }
+    }
+    
+    
     public void configure(WebAppContext context)
     throws Exception
     {
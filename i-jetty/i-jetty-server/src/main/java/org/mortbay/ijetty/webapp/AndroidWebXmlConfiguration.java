@@ -0,0 +1,153 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.webapp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.webapp.DefaultsDescriptor;
+import org.eclipse.jetty.webapp.StandardDescriptorProcessor;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.eclipse.jetty.webapp.WebXmlConfiguration;
+
+/**
+ * AndroidWebXmlConfiguration
+ * 
+ * Parses each defaults descriptor (ie webdefault.xml) only once, and shares
+ * the parsed tree between all contexts that use it. The descriptor is parsed
+ * again only if its last modified time changes.
+ * 
+ * The shared tree is applied to the context in {@link #configure(WebAppContext)},
+ * which is before the web.xml is applied when the metadata is resolved.
+ */
+public class AndroidWebXmlConfiguration extends WebXmlConfiguration
+{
+    private static final Map<String, CachedDescriptor> __descriptors = new HashMap<String, CachedDescriptor>();
+    private static long __saved;
+    
+    private static class CachedDescriptor
+    {
+        DefaultsDescriptor _descriptor;
+        long _lastModified;
+        long _parseTime;
+    }
+    
+    
+    /**
+     * Get the parsed descriptor, parsing it only if it has not been seen
+     * before or has changed.
+     * 
+     * @param resource the defaults descriptor
+     * @return the parsed descriptor
+     * @throws Exception
+     */
+    public static DefaultsDescriptor getDefaultsDescriptor (Resource resource)
+    throws Exception
+    {
+        String key = resource.toString();
+        long lastModified = resource.lastModified();
+        synchronized (__descriptors)
+        {
+            CachedDescriptor cached = __descriptors.get(key);
+            if (cached != null && cached._lastModified == lastModified)
+            {
+                __saved += cached._parseTime;
+                Log.debug("Reused parsed "+key+", saved "+cached._parseTime+"ms ("+__saved+"ms total)");
+                return cached._descriptor;
+            }
+
+            long start = System.currentTimeMillis();
+            DefaultsDescriptor descriptor = new DefaultsDescriptor(resource);
+            descriptor.parse();
+            
+            cached = new CachedDescriptor();
+            cached._descriptor = descriptor;
+            cached._lastModified = lastModified;
+            cached._parseTime = System.currentTimeMillis() - start;
+            __descriptors.put(key, cached);
+            Log.info("Parsed "+key+" in "+cached._parseTime+"ms");
+            return descriptor;
+        }
+    }
+    
+    
+    /**
+     * Forget all parsed descriptors.
+     */
+    public static void clear ()
+    {
+        synchronized (__descriptors)
+        {
+            __descriptors.clear();
+            __saved = 0;
+        }
+    }
+    
+    
+    /**
+     * @return total ms of parsing avoided by reusing descriptors
+     */
+    public static long getSavedTime ()
+    {
+        synchronized (__descriptors)
+        {
+            return __saved;
+        }
+    }
+    
+    
+    public void preConfigure (WebAppContext context) 
+    throws Exception
+    {
+        //hide the defaults descriptor so the superclass does not parse it again
+        String defaultsDescriptor = context.getDefaultsDescriptor();
+        context.setDefaultsDescriptor(null);
+        try
+        {
+            super.preConfigure(context);
+        }
+        finally
+        {
+            context.setDefaultsDescriptor(defaultsDescriptor);
+        }
+    }
+    
+    
+    public void configure (WebAppContext context) 
+    throws Exception
+    {
+        //cannot configure if the context is already started
+        if (context.isStarted())
+        {
+            if (Log.isDebugEnabled()){Log.debug("Cannot configure webapp after it is started");}
+            return;
+        }
+        
+        super.configure(context);
+        
+        String defaultsDescriptor = context.getDefaultsDescriptor();
+        if (defaultsDescriptor == null || defaultsDescriptor.length() == 0)
+            return;
+        
+        Resource resource = Resource.newSystemResource(defaultsDescriptor);
+        if (resource == null)
+            resource = context.newResource(defaultsDescriptor);
+        
+        new StandardDescriptorProcessor().process(context, getDefaultsDescriptor(resource));
+    }
+}
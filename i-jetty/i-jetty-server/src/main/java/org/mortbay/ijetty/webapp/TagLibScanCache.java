@@ -0,0 +1,355 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.webapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * TagLibScanCache
+ * 
+ * Remembers where the tag library descriptors of an unpacked webapp are,
+ * keyed by a checksum of the names, sizes and modification times of
+ * everything the scan looks at: every file under WEB-INF except
+ * WEB-INF/classes, which includes web.xml and the archives in WEB-INF/lib.
+ * 
+ * Webapps that have no tlds do not need the TagLibConfiguration, so an
+ * unchanged pure-servlet webapp skips the tld scan entirely on restart.
+ * Webapps that do have tlds are given the locations found last time as the
+ * tld resources the TagLibConfiguration processes, so their archives are not
+ * opened and searched again. The tlds themselves are still parsed at each
+ * start, as the listeners they declare are created with the context.
+ * 
+ * The results are persisted to a properties file so they survive restarts.
+ */
+public class TagLibScanCache
+{
+    public static final String TAGLIB_CONFIGURATION = "org.eclipse.jetty.webapp.TagLibConfiguration";
+    
+    /**
+     * The context attribute holding the tld resources for the TagLibConfiguration
+     * to process along with those it finds in WEB-INF itself.
+     */
+    public static final String TLD_RESOURCES = "org.eclipse.jetty.tlds";
+    
+    private static final String __ARCHIVE_SEPARATOR = "!/";
+    private static final String __LOCATION_SEPARATOR = "|";
+    
+    private final File _file;
+    private Properties _properties;
+    
+    
+    public TagLibScanCache (File file)
+    {
+        _file = file;
+    }
+    
+    
+    /**
+     * Remove the TagLibConfiguration from a list of configuration classes
+     * if the webapp contains no tlds.
+     * 
+     * @param configurationClasses
+     * @param webapp the unpacked webapp directory
+     * @return the configuration classes to use for the webapp
+     */
+    public String[] prune (String[] configurationClasses, File webapp)
+    {
+        if (configurationClasses == null || webapp == null || !webapp.isDirectory())
+            return configurationClasses;
+        
+        List<String> classes = new ArrayList<String>(Arrays.asList(configurationClasses));
+        if (!classes.contains(TAGLIB_CONFIGURATION) || hasTagLibs(webapp))
+            return configurationClasses;
+        
+        classes.remove(TAGLIB_CONFIGURATION);
+        Log.debug("No tlds in "+webapp+", skipping "+TAGLIB_CONFIGURATION);
+        return classes.toArray(new String[classes.size()]);
+    }
+    
+    
+    /**
+     * Give a context the tlds of its webapp, so the TagLibConfiguration
+     * processes those the last scan found without looking for them again.
+     * 
+     * @param context
+     * @param webapp the unpacked webapp directory
+     */
+    @SuppressWarnings("unchecked")
+    public void addTagLibResources (WebAppContext context, File webapp)
+    {
+        if (webapp == null || !webapp.isDirectory())
+            return;
+        
+        List<String> locations = getTagLibs(webapp);
+        if (locations.isEmpty())
+            return;
+        
+        Set<Resource> resources = new HashSet<Resource>();
+        Object existing = context.getAttribute(TLD_RESOURCES);
+        if (existing instanceof Collection)
+            resources.addAll((Collection<Resource>)existing);
+        for (String location : locations)
+        {
+            try
+            {
+                resources.add(newResource(webapp, location));
+            }
+            catch (IOException e)
+            {
+                Log.warn("Bad tld location "+location+" in "+webapp, e);
+            }
+        }
+        context.setAttribute(TLD_RESOURCES, resources);
+    }
+    
+    
+    /**
+     * @param webapp the unpacked webapp directory
+     * @return true if the webapp contains any tlds
+     */
+    public boolean hasTagLibs (File webapp)
+    {
+        return !getTagLibs(webapp).isEmpty();
+    }
+    
+    
+    /**
+     * @param webapp the unpacked webapp directory
+     * @return the locations of the tlds of the webapp, relative to it. A tld
+     * in an archive is named by the archive, then "!/", then the entry.
+     */
+    public synchronized List<String> getTagLibs (File webapp)
+    {
+        load();
+        
+        File webInf = new File(webapp, "WEB-INF");
+        String key = webapp.getAbsolutePath();
+        String checksum = Long.toHexString(checksum(webInf));
+        String cached = _properties.getProperty(key);
+        if (cached != null && cached.startsWith(checksum+":"))
+            return split(cached.substring(checksum.length()+1));
+        
+        long start = System.currentTimeMillis();
+        List<String> found = new ArrayList<String>();
+        scan(webInf, "WEB-INF/", found);
+        Log.info("Scanned "+webapp+" for tlds in "+(System.currentTimeMillis()-start)+"ms: "+found.size()+" found");
+        
+        _properties.setProperty(key, checksum+":"+join(found));
+        save();
+        return found;
+    }
+    
+    
+    /**
+     * Checksum everything the scan looks at: every file and dir under 
+     * WEB-INF, except WEB-INF/classes.
+     */
+    protected long checksum (File webInf)
+    {
+        CRC32 crc = new CRC32();
+        update(crc, webInf, "");
+        return crc.getValue();
+    }
+    
+    
+    private void update (CRC32 crc, File dir, String path)
+    {
+        String[] names = dir.list();
+        if (names == null)
+            return;
+        Arrays.sort(names);
+        for (String name : names)
+        {
+            File f = new File(dir, name);
+            crc.update((path+name+":"+f.length()+":"+f.lastModified()+";").getBytes());
+            if (f.isDirectory() && !(path.length() == 0 && "classes".equals(name.toLowerCase())))
+                update(crc, f, path+name+"/");
+        }
+    }
+    
+    
+    /**
+     * Look for tlds anywhere under WEB-INF except WEB-INF/classes, and in 
+     * the META-INF of the archives in WEB-INF/lib.
+     * 
+     * @param dir
+     * @param path the path of the dir within the webapp, ending in "/"
+     * @param found the locations of the tlds found
+     */
+    protected void scan (File dir, String path, List<String> found)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files);
+        for (int i=0; i<files.length; i++)
+        {
+            String name = files[i].getName().toLowerCase();
+            if (files[i].isDirectory())
+            {
+                //tlds in WEB-INF/classes are not visible to the container
+                if (!("WEB-INF/".equals(path) && "classes".equals(name)))
+                    scan(files[i], path+files[i].getName()+"/", found);
+            }
+            else if (name.endsWith(".tld"))
+                found.add(path+files[i].getName());
+            else if (name.endsWith(".jar") || name.endsWith(".zip") || name.endsWith(".apk"))
+                scanArchive(files[i], path+files[i].getName(), found);
+        }
+    }
+    
+    
+    private void scanArchive (File archive, String path, List<String> found)
+    {
+        ZipFile zip = null;
+        try
+        {
+            zip = new ZipFile(archive);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements())
+            {
+                String name = entries.nextElement().getName();
+                if (name.startsWith("META-INF/") && name.toLowerCase().endsWith(".tld"))
+                    found.add(path+__ARCHIVE_SEPARATOR+name);
+            }
+        }
+        catch (IOException e)
+        {
+            //the TagLibConfiguration cannot read it either
+            Log.warn("Unable to scan "+archive+" for tlds", e);
+        }
+        finally
+        {
+            try
+            {
+                if (zip != null)
+                    zip.close();
+            }
+            catch (IOException e)
+            {
+                Log.ignore(e);
+            }
+        }
+    }
+    
+    
+    private Resource newResource (File webapp, String location)
+    throws IOException
+    {
+        int separator = location.indexOf(__ARCHIVE_SEPARATOR);
+        if (separator < 0)
+            return Resource.newResource(new File(webapp, location).toURI().toURL());
+        File archive = new File(webapp, location.substring(0, separator));
+        return Resource.newResource("jar:"+archive.toURI().toURL()+location.substring(separator));
+    }
+    
+    
+    private static String join (List<String> locations)
+    {
+        StringBuilder buf = new StringBuilder();
+        for (String location : locations)
+        {
+            if (buf.length() > 0)
+                buf.append(__LOCATION_SEPARATOR);
+            buf.append(location);
+        }
+        return buf.toString();
+    }
+    
+    
+    private static List<String> split (String locations)
+    {
+        List<String> list = new ArrayList<String>();
+        int start = 0;
+        while (start < locations.length())
+        {
+            int end = locations.indexOf(__LOCATION_SEPARATOR, start);
+            if (end < 0)
+                end = locations.length();
+            if (end > start)
+                list.add(locations.substring(start, end));
+            start = end + 1;
+        }
+        return list;
+    }
+    
+    
+    private void load ()
+    {
+        if (_properties != null)
+            return;
+        
+        _properties = new Properties();
+        if (_file == null || !_file.exists())
+            return;
+        
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream(_file);
+            _properties.load(in);
+        }
+        catch (IOException e)
+        {
+            Log.warn("Unable to read "+_file, e);
+        }
+        finally
+        {
+            IO.close(in);
+        }
+    }
+    
+    
+    private void save ()
+    {
+        if (_file == null)
+            return;
+        
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(_file);
+            _properties.store(out, "i-jetty tld scan results");
+        }
+        catch (IOException e)
+        {
+            Log.warn("Unable to write "+_file, e);
+        }
+        finally
+        {
+            IO.close(out);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.webapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.URIUtil;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.resource.Resource;
+
+/**
+ * WarResource
+ *
+ * A Resource for the content of a packed war, so that a webapp can be served
+ * without unpacking it to the SD card. The war's central directory is read
+ * once, into an index of its directories, and every lookup is made against
+ * that index rather than by opening jar: urls. Entries that are stored rather
+ * than deflated are streamed straight from the war.
+ *
+ * The dex class loader can only load from real files, so the .zip and .apk
+ * archives in WEB-INF/lib are extracted to a lib dir, and WEB-INF/lib
+ * resolves to that dir. They are only extracted again when they change.
+ */
+public class WarResource extends Resource
+{
+    public static final String __WEB_INF_LIB = "WEB-INF/lib/";
+
+    /**
+     * Index
+     *
+     * The open war and its directories, shared by all the resources in it.
+     */
+    private static class Index
+    {
+        private final File _war;
+        private final ZipFile _zip;
+        private final File _libDir;
+        private final Map<String, Set<String>> _dirs = new HashMap<String, Set<String>>();
+        private final Set<String> _extracted = new TreeSet<String>();
+
+        private Index (File war, File libDir)
+        throws IOException
+        {
+            _war = war;
+            _zip = new ZipFile(war);
+            _libDir = libDir;
+            _dirs.put("", new TreeSet<String>());
+
+            Enumeration<? extends ZipEntry> entries = _zip.entries();
+            while (entries.hasMoreElements())
+            {
+                String name = entries.nextElement().getName();
+                if (name.startsWith("/") || URIUtil.canonicalPath(name) == null)
+                    continue;
+                add(name);
+                if (name.endsWith("/") && !_dirs.containsKey(name))
+                    _dirs.put(name, new TreeSet<String>());
+            }
+        }
+
+        /**
+         * Add a name to its parent dir, adding the parent dirs too as
+         * not every war lists them.
+         */
+        private void add (String name)
+        {
+            int slash = name.lastIndexOf('/', name.length()-2);
+            String parent = (slash < 0 ? "" : name.substring(0, slash+1));
+            Set<String> children = _dirs.get(parent);
+            if (children == null)
+            {
+                children = new TreeSet<String>();
+                _dirs.put(parent, children);
+                add(parent);
+            }
+            children.add(name.substring(slash+1));
+        }
+
+        private void extractLibs ()
+        throws IOException
+        {
+            if (_libDir == null)
+                return;
+            _libDir.mkdirs();
+
+            Set<String> libs = _dirs.get(__WEB_INF_LIB);
+            if (libs == null)
+                return;
+            for (String lib : libs)
+            {
+                String lc = lib.toLowerCase();
+                if (!lc.endsWith(".zip") && !lc.endsWith(".apk"))
+                    continue;
+
+                ZipEntry entry = _zip.getEntry(__WEB_INF_LIB+lib);
+                File file = new File(_libDir, lib);
+                if (!file.exists() || file.length() != entry.getSize() || file.lastModified() != entry.getTime())
+                {
+                    File tmp = new File(_libDir, lib+".tmp");
+                    InputStream in = _zip.getInputStream(entry);
+                    OutputStream out = null;
+                    try
+                    {
+                        out = new FileOutputStream(tmp);
+                        IO.copy(in, out);
+                    }
+                    finally
+                    {
+                        IO.close(out);
+                        IO.close(in);
+                    }
+                    file.delete();
+                    if (!tmp.renameTo(file))
+                        throw new IOException("mv "+tmp+" "+file+" failed");
+                    if (entry.getTime() >= 0)
+                        file.setLastModified(entry.getTime());
+                    Log.debug("Extracted "+lib+" from "+_war);
+                }
+                _extracted.add(lib);
+            }
+        }
+    }
+
+    private final Index _index;
+    private final String _path;
+
+
+    /**
+     * @param war the packed war
+     * @param libDir the dir to extract WEB-INF/lib archives to, or null to
+     * leave them in the war
+     * @return the root of the war
+     * @throws IOException
+     */
+    public static WarResource newResource (File war, File libDir)
+    throws IOException
+    {
+        long start = System.currentTimeMillis();
+        Index index = new Index(war, libDir);
+        try
+        {
+            index.extractLibs();
+        }
+        catch (IOException e)
+        {
+            index._zip.close();
+            throw e;
+        }
+        Log.debug("Indexed "+war+" in "+(System.currentTimeMillis()-start)+"ms");
+        return new WarResource(index, "");
+    }
+
+
+    private WarResource (Index index, String path)
+    {
+        _index = index;
+        _path = path;
+    }
+
+
+    /**
+     * Close the war. Only the root resource should be closed, and only when
+     * the webapp is stopped.
+     */
+    public void close ()
+    {
+        try
+        {
+            _index._zip.close();
+        }
+        catch (IOException e)
+        {
+            Log.ignore(e);
+        }
+    }
+
+
+    public File getWar ()
+    {
+        return _index._war;
+    }
+
+
+    @Override
+    public Resource addPath (String path)
+    throws IOException, MalformedURLException
+    {
+        if (path == null)
+            throw new MalformedURLException();
+
+        path = URIUtil.canonicalPath(path);
+        if (path == null)
+            throw new MalformedURLException();
+        if (path.startsWith("/"))
+            path = path.substring(1);
+        if (path.length() == 0)
+            return this;
+
+        String name = _path+path;
+        if (!name.endsWith("/") && _index._dirs.containsKey(name+"/"))
+            name += "/";
+
+        //the dex loader needs the archives it loads as real files
+        if (_index._libDir != null)
+        {
+            if (__WEB_INF_LIB.equals(name))
+                return Resource.newResource(_index._libDir.toURI().toURL());
+            if (name.startsWith(__WEB_INF_LIB) && _index._extracted.contains(name.substring(__WEB_INF_LIB.length())))
+                return Resource.newResource(new File(_index._libDir, name.substring(__WEB_INF_LIB.length())).toURI().toURL());
+        }
+
+        return new WarResource(_index, name);
+    }
+
+
+    @Override
+    public boolean delete ()
+    throws SecurityException
+    {
+        throw new SecurityException("Delete not supported");
+    }
+
+
+    @Override
+    public boolean exists ()
+    {
+        return isDirectory() || (!_path.endsWith("/") && getEntry() != null);
+    }
+
+
+    @Override
+    public File getFile ()
+    throws IOException
+    {
+        return null;
+    }
+
+
+    @Override
+    public InputStream getInputStream ()
+    throws IOException
+    {
+        ZipEntry entry = getEntry();
+        if (entry == null || entry.isDirectory())
+            throw new IOException("Not a file: "+this);
+
+        //stored entries are read straight from the war, without inflating
+        return _index._zip.getInputStream(entry);
+    }
+
+
+    @Override
+    public String getName ()
+    {
+        return toString();
+    }
+
+
+    @Override
+    public OutputStream getOutputStream ()
+    throws IOException, SecurityException
+    {
+        throw new IOException("Output not supported");
+    }
+
+
+    @Override
+    public URL getURL ()
+    {
+        try
+        {
+            return new URL("jar:"+_index._war.toURI().toURL()+"!/"+_path);
+        }
+        catch (MalformedURLException e)
+        {
+            Log.ignore(e);
+            return null;
+        }
+    }
+
+
+    @Override
+    public boolean isContainedIn (Resource r)
+    throws MalformedURLException
+    {
+        return false;
+    }
+
+
+    @Override
+    public boolean isDirectory ()
+    {
+        return _index._dirs.containsKey(_path);
+    }
+
+
+    @Override
+    public long lastModified ()
+    {
+        ZipEntry entry = getEntry();
+        if (entry == null || entry.getTime() < 0)
+            return _index._war.lastModified();
+        return entry.getTime();
+    }
+
+
+    @Override
+    public long length ()
+    {
+        ZipEntry entry = getEntry();
+        return (entry == null || entry.isDirectory() ? -1 : entry.getSize());
+    }
+
+
+    @Override
+    public String[] list ()
+    {
+        Set<String> children = _index._dirs.get(_path);
+        if (children == null)
+            return null;
+        return children.toArray(new String[children.size()]);
+    }
+
+
+    @Override
+    public void release ()
+    {
+        //the war is shared by every resource in it, see close()
+    }
+
+
+    @Override
+    public boolean renameTo (Resource dest)
+    throws SecurityException
+    {
+        throw new SecurityException("Rename not supported");
+    }
+
+
+    @Override
+    public boolean equals (Object o)
+    {
+        if (!(o instanceof WarResource))
+            return false;
+        WarResource r = (WarResource)o;
+        return r._index == _index && r._path.equals(_path);
+    }
+
+
+    @Override
+    public int hashCode ()
+    {
+        return _index.hashCode() ^ _path.hashCode();
+    }
+
+
+    @Override
+    public String toString ()
+    {
+        return "jar:"+_index._war.toURI()+"!/"+_path;
+    }
+
+
+    private ZipEntry getEntry ()
+    {
+        if (_path.length() == 0)
+            return null;
+        return _index._zip.getEntry(_path);
+    }
+}
@@ -0,0 +1,179 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log
+ *
+ * Stands in for the android Log when the tests run on the jvm, where the
+ * android jar only has stubs. Every message is kept for the test to check,
+ * and warnings and errors are also printed to stderr. 
+ *
+ * As on android, isLoggable looks up the level of the tag in the
+ * log.tag.&lt;tag&gt; property on every call, here a system property, and
+ * otherwise uses the level set by {@link #setLevel(int)}.
+ */
+public final class Log
+{
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+    
+    private static volatile int __level = INFO;
+    private static final List<String> __messages = new ArrayList<String>();
+    
+    
+    private Log ()
+    {
+    }
+    
+    
+    /**
+     * @param level the least level that {@link #isLoggable(String, int)} is true for
+     */
+    public static void setLevel (int level)
+    {
+        __level = level;
+    }
+    
+    
+    /**
+     * @return the messages logged since the last {@link #clear()}
+     */
+    public static List<String> getMessages ()
+    {
+        synchronized (__messages)
+        {
+            return new ArrayList<String>(__messages);
+        }
+    }
+    
+    
+    public static void clear ()
+    {
+        synchronized (__messages)
+        {
+            __messages.clear();
+        }
+    }
+    
+    
+    public static boolean isLoggable (String tag, int level)
+    {
+        String property = System.getProperty("log.tag."+tag);
+        if (property == null || property.length() == 0)
+            return level >= __level;
+        switch (Character.toUpperCase(property.charAt(0)))
+        {
+            case 'V':
+                return level >= VERBOSE;
+            case 'D':
+                return level >= DEBUG;
+            case 'I':
+                return level >= INFO;
+            case 'W':
+                return level >= WARN;
+            case 'E':
+                return level >= ERROR;
+            default:
+                return level >= ASSERT;
+        }
+    }
+    
+    public static int v (String tag, String msg)
+    {
+        return println(VERBOSE, tag, msg);
+    }
+    
+    public static int v (String tag, String msg, Throwable tr)
+    {
+        return println(VERBOSE, tag, msg+'\n'+getStackTraceString(tr));
+    }
+    
+    public static int d (String tag, String msg)
+    {
+        return println(DEBUG, tag, msg);
+    }
+    
+    public static int d (String tag, String msg, Throwable tr)
+    {
+        return println(DEBUG, tag, msg+'\n'+getStackTraceString(tr));
+    }
+    
+    public static int i (String tag, String msg)
+    {
+        return println(INFO, tag, msg);
+    }
+    
+    public static int i (String tag, String msg, Throwable tr)
+    {
+        return println(INFO, tag, msg+'\n'+getStackTraceString(tr));
+    }
+    
+    public static int w (String tag, String msg)
+    {
+        return println(WARN, tag, msg);
+    }
+    
+    public static int w (String tag, String msg, Throwable tr)
+    {
+        return println(WARN, tag, msg+'\n'+getStackTraceString(tr));
+    }
+    
+    public static int w (String tag, Throwable tr)
+    {
+        return println(WARN, tag, getStackTraceString(tr));
+    }
+    
+    public static int e (String tag, String msg)
+    {
+        return println(ERROR, tag, msg);
+    }
+    
+    public static int e (String tag, String msg, Throwable tr)
+    {
+        return println(ERROR, tag, msg+'\n'+getStackTraceString(tr));
+    }
+    
+    public static String getStackTraceString (Throwable tr)
+    {
+        if (tr == null)
+            return "";
+        StringWriter writer = new StringWriter();
+        tr.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+    
+    public static int println (int priority, String tag, String msg)
+    {
+        String line = priority+"/"+tag+": "+msg;
+        synchronized (__messages)
+        {
+            __messages.add(line);
+        }
+        if (priority >= WARN)
+            System.err.println(line);
+        return line.length();
+    }
+}
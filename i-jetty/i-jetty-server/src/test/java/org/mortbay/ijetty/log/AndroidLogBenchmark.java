@@ -0,0 +1,124 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.log;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import android.util.Log;
+
+/**
+ * AndroidLogBenchmark
+ *
+ * Asks isDebugEnabled, and logs a debug message with an argument while
+ * debug is disabled, the way AndroidLog did before, looking up the level of
+ * the tag with Log.isLoggable on every call, and the way it does now, from 
+ * the snapshot of the levels.
+ *
+ * On the jvm, Log.isLoggable is the stand-in of the test classpath, which
+ * looks up a system property as android looks up log.tag.Jetty: the real
+ * lookup crosses into native code, so costs more on a device.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.mortbay.ijetty.log.AndroidLogBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AndroidLogBenchmark
+{
+    private static final String __NAME = "org.mortbay.ijetty.log.benchmark";
+
+    private AndroidLog _log;
+    private Object _arg;
+
+
+    @Setup
+    public void setUp ()
+    {
+        Log.setLevel(Log.INFO);
+        AndroidLog.setLevel(__NAME, null);
+        AndroidLog.refresh();
+        _log = AndroidLog.getAndroidLogger(__NAME);
+        _arg = new Object();
+    }
+
+
+    /**
+     * As isDebugEnabled was answered before.
+     */
+    @Benchmark
+    public boolean isLoggable ()
+    {
+        return Log.isLoggable(AndroidLog.__JETTY_TAG, Log.DEBUG);
+    }
+
+
+    @Benchmark
+    public boolean isDebugEnabled ()
+    {
+        return _log.isDebugEnabled();
+    }
+
+
+    @Benchmark
+    public void isLoggableDebug ()
+    {
+        debug("{}", _arg);
+    }
+
+
+    @Benchmark
+    public void disabledDebug ()
+    {
+        _log.debug("{}", _arg);
+    }
+
+
+    /**
+     * As debug(String, Object...) was before.
+     */
+    private static void debug (String msg, Object... args)
+    {
+        if (Log.isLoggable(AndroidLog.__JETTY_TAG, Log.DEBUG))
+            Log.d(AndroidLog.__JETTY_TAG, msg);
+    }
+
+
+    public static void main (String[] args) throws Exception
+    {
+        Options options = new OptionsBuilder()
+            .include(AndroidLogBenchmark.class.getSimpleName())
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,274 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.util.Log;
+
+/**
+ * AndroidLogTest
+ *
+ * Runs against the android.util.Log stand-in of the test classpath, which
+ * keeps what is logged.
+ */
+public class AndroidLogTest
+{
+    private static final String __NAME = "org.mortbay.ijetty.log.test";
+
+    private AndroidLog _log;
+
+
+    /**
+     * Counts the times it is formatted.
+     */
+    private static class Counted
+    {
+        int _formatted;
+
+        public String toString()
+        {
+            _formatted++;
+            return "counted";
+        }
+    }
+
+
+    @Before
+    public void setUp ()
+    {
+        Log.setLevel(Log.INFO);
+        Log.clear();
+        AndroidLog.setLevel(__NAME, null);
+        AndroidLog.refresh();
+        _log = AndroidLog.getAndroidLogger(__NAME);
+    }
+
+
+    @After
+    public void tearDown ()
+    {
+        AndroidLog.stopSweeper();
+        AndroidLog.configure(new File("no-such-logging.properties"));
+        AndroidLog.setLevel(__NAME, null);
+        Log.setLevel(Log.INFO);
+        AndroidLog.refresh();
+    }
+
+
+    @Test
+    public void testFormat ()
+    {
+        _log.info("a {} b {}", 1, "two");
+        assertEquals("a 1 b two", lastMessage(Log.INFO));
+    }
+
+
+    @Test
+    public void testFewerArgsThanBraces ()
+    {
+        _log.info("a {} b {}", 1);
+        assertEquals("a 1 b {}", lastMessage(Log.INFO));
+    }
+
+
+    @Test
+    public void testMoreArgsThanBraces ()
+    {
+        _log.info("a {}", 1, 2, null);
+        assertEquals("a 1 2 null", lastMessage(Log.INFO));
+    }
+
+
+    @Test
+    public void testNullMessage ()
+    {
+        _log.info(null, 1);
+        assertEquals("null 1", lastMessage(Log.INFO));
+    }
+
+
+    @Test
+    public void testTrailingThrowable ()
+    {
+        _log.info("a {}", 1, new IllegalStateException("boom"));
+        String message = lastMessage(Log.INFO);
+        assertTrue(message, message.startsWith("a 1\njava.lang.IllegalStateException: boom"));
+        assertTrue(message, message.indexOf("\tat ") > 0);
+    }
+
+
+    @Test
+    public void testThrowableFillsBraces ()
+    {
+        //a throwable that a {} takes is formatted, not logged as the cause
+        _log.info("a {}", new Object[] {new IllegalStateException("boom")});
+        assertEquals("a java.lang.IllegalStateException: boom", lastMessage(Log.INFO));
+    }
+
+
+    @Test
+    public void testThrowableNotLast ()
+    {
+        IllegalStateException th = new IllegalStateException("boom");
+        _log.info("a", th, 1);
+        assertEquals("a "+th+" 1", lastMessage(Log.INFO));
+    }
+
+
+    @Test
+    public void testDisabledDebugDoesNotFormat ()
+    {
+        Counted counted = new Counted();
+        assertFalse(_log.isDebugEnabled());
+        for (int i = 0; i < 1000; i++)
+            _log.debug("a {}", counted);
+        assertEquals(0, counted._formatted);
+        assertTrue(Log.getMessages().isEmpty());
+    }
+
+
+    @Test
+    public void testDebugOfLogger ()
+    {
+        Counted counted = new Counted();
+        AndroidLog.setLevel(__NAME, "DEBUG");
+        assertTrue(_log.isDebugEnabled());
+        _log.debug("a {}", counted);
+        assertEquals(1, counted._formatted);
+        assertEquals("a counted", lastMessage(Log.DEBUG));
+
+        //a child without a level of its own inherits it
+        assertTrue(AndroidLog.getAndroidLogger(__NAME+".child").isDebugEnabled());
+        AndroidLog.setLevel(__NAME, null);
+        assertFalse(_log.isDebugEnabled());
+    }
+
+
+    @Test
+    public void testDebugOfTag ()
+    {
+        Log.setLevel(Log.DEBUG);
+        AndroidLog.refresh();
+        _log.debug("a {}", 1);
+        assertEquals("a 1", lastMessage(Log.DEBUG));
+    }
+
+
+    @Test
+    public void testDebugOfTagProperty ()
+    {
+        //as after a setprop log.tag.Jetty DEBUG, which is only seen once the levels are refreshed
+        System.setProperty("log.tag."+AndroidLog.__JETTY_TAG, "DEBUG");
+        try
+        {
+            assertFalse(_log.isDebugEnabled());
+            AndroidLog.refresh();
+            assertTrue(_log.isDebugEnabled());
+        }
+        finally
+        {
+            System.clearProperty("log.tag."+AndroidLog.__JETTY_TAG);
+        }
+    }
+
+
+    @Test
+    public void testReconfigureReportsSuppressed () throws Exception
+    {
+        configureRateLimit(1);
+        for (int i = 0; i < 3; i++)
+            _log.warn("storm {}", i);
+        assertEquals(1, Log.getMessages().size());
+
+        //the counts of the replaced limiter are not lost
+        configureRateLimit(1);
+        assertTrue(lastMessage(Log.WARN).startsWith("Suppressed 2 similar messages: "+__NAME+": storm"));
+    }
+
+
+    @Test
+    public void testStopSweeperReportsSuppressed () throws Exception
+    {
+        configureRateLimit(1);
+        for (int i = 0; i < 2; i++)
+            _log.warn("storm {}", i);
+        AndroidLog.stopSweeper();
+        assertTrue(lastMessage(Log.WARN).startsWith("Suppressed 1 similar messages: "+__NAME+": storm"));
+
+        //the next rate limited record starts the sweeper again, with nothing to report yet
+        Log.clear();
+        _log.warn("quiet {}", 3);
+        AndroidLog.stopSweeper();
+        assertEquals(1, Log.getMessages().size());
+    }
+
+
+    /**
+     * Configure the rate limiter to log only the first records of a key in a window.
+     * @param rate
+     */
+    private void configureRateLimit (int rate) throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty(LogRateLimiter.__RATE, String.valueOf(rate));
+        properties.setProperty(LogRateLimiter.__SAMPLE_RATE, "0");
+        File file = File.createTempFile("jetty-logging", ".properties");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(file);
+            try
+            {
+                properties.store(out, null);
+            }
+            finally
+            {
+                out.close();
+            }
+            AndroidLog.configure(file);
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * @param level
+     * @return the text of the last message logged, which must be at the level
+     */
+    private String lastMessage (int level)
+    {
+        List<String> messages = Log.getMessages();
+        assertFalse(messages.isEmpty());
+        String prefix = level+"/"+AndroidLog.__JETTY_TAG+": ";
+        String message = messages.get(messages.size()-1);
+        assertTrue(message, message.startsWith(prefix));
+        return message.substring(prefix.length());
+    }
+}
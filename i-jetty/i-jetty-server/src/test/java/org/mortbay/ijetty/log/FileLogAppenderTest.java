@@ -0,0 +1,80 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.log;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.util.Log;
+
+/**
+ * FileLogAppenderTest
+ */
+public class FileLogAppenderTest
+{
+    private File _dir;
+
+
+    @Before
+    public void setUp ()
+    {
+        _dir = new File(System.getProperty("java.io.tmpdir"), "ijetty-log-test");
+        delete();
+    }
+
+
+    @After
+    public void tearDown ()
+    {
+        delete();
+    }
+
+
+    @Test
+    public void testRotatesOnBytes () throws Exception
+    {
+        //60 chars, but 180 bytes of UTF-8
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 60; i++)
+            message.append('\u20ac');
+
+        FileLogAppender appender = new FileLogAppender(_dir, 150, 2, 16, FileLogAppender.Overflow.DROP_NEWEST);
+        appender.start();
+        appender.append(Log.INFO, "a", message.toString());
+        appender.stop();
+
+        assertTrue(new File(_dir, FileLogAppender.__LOG_FILE+".1.gz").exists());
+        assertFalse(new File(_dir, FileLogAppender.__LOG_FILE).exists());
+    }
+
+
+    private void delete ()
+    {
+        File[] files = _dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        _dir.delete();
+    }
+}
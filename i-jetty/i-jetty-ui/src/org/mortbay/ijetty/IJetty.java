@@ -30,6 +30,7 @@ import java.util.Date;
 import java.util.Enumeration;
 
 import org.eclipse.jetty.util.IO;
+import org.mortbay.ijetty.handler.StatusHandler;
 import org.mortbay.ijetty.log.AndroidLog;
 import org.mortbay.ijetty.util.AndroidInfo;
 import org.mortbay.ijetty.util.IJettyToast;
@@ -69,6 +70,7 @@ public class IJetty extends Activity
     
     public static final String __START_ACTION = "org.mortbay.ijetty.start";
     public static final String __STOP_ACTION = "org.mortbay.ijetty.stop";
+    public static final String __RECONFIGURE_ACTION = "org.mortbay.ijetty.reconfigure";
     
     public static final String __PORT = "org.mortbay.ijetty.port";
     public static final String __NIO = "org.mortbay.ijetty.nio";
@@ -87,6 +89,7 @@ public class IJetty extends Activity
 
     public static final String __TMP_DIR = "tmp";
     public static final String __WORK_DIR = "work";
+    public static final String __LOG_DIR = "logs";
     public static final int __SETUP_PROGRESS_DIALOG = 0;
     public static final int __SETUP_DONE = 2;
     public static final int __SETUP_RUNNING = 1;
@@ -431,6 +434,7 @@ public class IJetty extends Activity
         IntentFilter filter = new IntentFilter();
         filter.addAction(__START_ACTION);
         filter.addAction(__STOP_ACTION);
+        filter.addAction(__RECONFIGURE_ACTION);
         filter.addCategory("default");
 
         bcastReceiver = 
@@ -442,7 +446,6 @@ public class IJetty extends Activity
                 if (__START_ACTION.equalsIgnoreCase(intent.getAction()))
                 {
                     startButton.setEnabled(false);
-                    configButton.setEnabled(false);
                     stopButton.setEnabled(true);
                     consolePrint("<br/>Started Jetty at %s", new Date());
                     String[] connectors = intent.getExtras().getStringArray("connectors");
@@ -453,16 +456,32 @@ public class IJetty extends Activity
                     }  
                     
                     printNetworkInterfaces();
+                    consolePrint("Server status at %s", StatusHandler.__STATUS_PATH);
                     
                     if (AndroidInfo.isOnEmulator(IJetty.this))
                         consolePrint("Set up port forwarding to see i-jetty outside of the emulator.");
                 }
+                else if (__RECONFIGURE_ACTION.equalsIgnoreCase(intent.getAction()))
+                {
+                    consolePrint("<br/>Reconfigured connectors at %s", new Date());
+                    String[] connectors = intent.getExtras().getStringArray("connectors");
+                    if (null != connectors)
+                    {
+                        for (int i=0;i<connectors.length;i++)
+                            consolePrint(connectors[i]);
+                    }
+                }
                 else if (__STOP_ACTION.equalsIgnoreCase(intent.getAction()))
                 {
                     startButton.setEnabled(true);
-                    configButton.setEnabled(true);
                     stopButton.setEnabled(false);
                     consolePrint("<br/> Jetty stopped at %s",new Date());
+                    int drained = intent.getIntExtra("drained", 0);
+                    int aborted = intent.getIntExtra("aborted", 0);
+                    if (drained > 0 || aborted > 0)
+                        consolePrint("Drained %d requests, aborted %d", drained, aborted);
+                    consolePrint("Wake lock held %ds for %d requests", 
+                                 intent.getLongExtra("wakeLockHeld", 0)/1000, intent.getIntExtra("requestsServed", 0));
                 }                   
             }
             
@@ -570,16 +589,16 @@ public class IJetty extends Activity
         }
         
         
+        //connector preferences can be changed while jetty is running
+        configButton.setEnabled(true);
         if (IJettyService.isRunning())
         {
             startButton.setEnabled(false);
-            configButton.setEnabled(false);
             stopButton.setEnabled(true);
         }
         else 
         {
             startButton.setEnabled(true);
-            configButton.setEnabled(true);
             stopButton.setEnabled(false);
         }
         super.onResume();
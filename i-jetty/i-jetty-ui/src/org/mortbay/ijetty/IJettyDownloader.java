@@ -15,23 +15,43 @@
 package org.mortbay.ijetty;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.http.HttpMethods;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.TypeUtil;
+import org.mortbay.ijetty.util.DownloadProgress;
+import org.mortbay.ijetty.util.DownloadRecord;
+import org.mortbay.ijetty.util.PartialDownload;
+import org.mortbay.ijetty.util.StreamPipe;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -52,12 +72,66 @@ public class IJettyDownloader extends Activity
     public static final int __MSG_DOWNLOAD_SUCCEEDED = 0;
     public static final int __MSG_DOWNLOAD_FAILED = 1;
     public static final int __MSG_PROGRESS = 2;
+    public static final int __MSG_DOWNLOAD_UNCHANGED = 3;
     
-    private HttpClient client;
+    /**
+     * Wars smaller than this are not worth fetching over several connections
+     */
+    public static final long __MIN_SEGMENTED_LENGTH = 1024*1024;
+    
+    /**
+     * The status of a response that is a delta from the instance the
+     * request named in If-None-Match (RFC 3229), and the instance
+     * manipulation we ask for.
+     */
+    public static final int __IM_USED_226 = 226;
+    public static final String __A_IM = "A-IM";
+    public static final String __IM = "IM";
+    public static final String __IJETTY_DELTA = "ijetty-delta";
+    
+    HttpClient client; //package private so the tests can supply one
     private File tmpDir;
     private ProgressBar _progressBar;
 
     private File fileInProgress = null;
+    private PartialDownload downloadInProgress = null;
+    
+    private IJettyService.LocalBinder binder;
+    
+    private final ServiceConnection connection = new ServiceConnection()
+    {
+        public void onServiceConnected(ComponentName name, IBinder service)
+        {
+            binder = (IJettyService.LocalBinder)service;
+        }
+
+        public void onServiceDisconnected(ComponentName name)
+        {
+            binder = null;
+        }
+    };
+    
+    /**
+     * Takes an installed webapp out of service while the installer changes
+     * its files, and deploys it again from its new context xml file after.
+     */
+    private final Installer.ContextControl contextControl = new Installer.ContextControl()
+    {
+        public boolean stop (String webappName) throws Exception
+        {
+            IJettyService.LocalBinder b = binder;
+            if (b == null || !b.isRunning())
+                return false;
+            return b.undeployContextFile(Installer.getContextFile(webappName));
+        }
+        
+        public void start (String webappName) throws Exception
+        {
+            IJettyService.LocalBinder b = binder;
+            if (b != null && b.isRunning())
+                Log.i("Jetty", "Deployed "+b.deployContextFile(Installer.getContextFile(webappName)));
+        }
+    };
     
     private final Handler mHandler = new Handler() 
     {
@@ -93,9 +167,22 @@ public class IJettyDownloader extends Activity
                     builder.show();
                     break;
                 }
+                case __MSG_DOWNLOAD_UNCHANGED:
+                { 
+                    _progressBar.setProgress(100);
+                    _progressBar.setVisibility(ProgressBar.INVISIBLE);
+                    ((TextView)findViewById(R.id.loading)).setVisibility(TextView.INVISIBLE);
+                    fileInProgress = null;
+                    AlertDialog.Builder builder = new AlertDialog.Builder(IJettyDownloader.this);
+                    builder.setCancelable(true);
+                    builder.setMessage(R.string.download_unchanged);
+                    builder.setTitle(R.string.success);
+                    builder.show();
+                    break;
+                }
                 case __MSG_PROGRESS:
                 {
-                    //onReportProgress(msg.arg1);
+                    onReportProgress((DownloadProgress)msg.obj);
                     break;
                 }
                 default:
@@ -106,6 +193,62 @@ public class IJettyDownloader extends Activity
 
     
     
+    /**
+     * Show how far the download and install have got.
+     * @param progress
+     */
+    protected void onReportProgress (DownloadProgress progress)
+    {
+        if (_progressBar.getVisibility() != ProgressBar.VISIBLE)
+            return;
+        
+        int percent = progress.getPercent();
+        _progressBar.setIndeterminate(percent < 0);
+        if (percent >= 0)
+            _progressBar.setProgress(percent);
+        
+        TextView loading = (TextView)findViewById(R.id.loading);
+        if (progress.isInstalling())
+        {
+            if (progress.getTotalEntries() > 0)
+                loading.setText(getString(R.string.install_progress, progress.getEntries(), progress.getTotalEntries()));
+            else if (progress.isDownloaded())
+                loading.setText(getString(R.string.install_progress_unknown, progress.getEntries()));
+            else if (progress.getLength() > 0)
+                //a streamed war is unpacked as it arrives
+                loading.setText(getString(R.string.install_download_progress, progress.getEntries(), progress.getReceived()/1024, 
+                                          progress.getLength()/1024, progress.getRate()/1024));
+            else
+                loading.setText(getString(R.string.install_download_progress_unknown, progress.getEntries(), progress.getReceived()/1024, 
+                                          progress.getRate()/1024));
+        }
+        else if (progress.getLength() > 0)
+            loading.setText(getString(R.string.download_progress, progress.getReceived()/1024, progress.getLength()/1024, 
+                                      progress.getRate()/1024, progress.getAverageRate()/1024));
+        else
+            loading.setText(getString(R.string.download_progress_unknown, progress.getReceived()/1024, 
+                                      progress.getRate()/1024, progress.getAverageRate()/1024));
+    }
+    
+    
+    /**
+     * @param url
+     * @param length the length of the content, or -1 if not known
+     * @param resumed how much was received before
+     * @return progress that is reported to the UI thread
+     */
+    private DownloadProgress newProgress (String url, long length, long resumed)
+    {
+        return new DownloadProgress(url, length, resumed)
+        {
+            protected void onUpdate ()
+            {
+                mHandler.sendMessage(Message.obtain(mHandler, __MSG_PROGRESS, this));
+            }
+        };
+    }
+    
+    
     /**
      * IJettyDownloader
      */
@@ -148,6 +291,22 @@ public class IJettyDownloader extends Activity
                     }
                 }
         );
+        
+        //don't start jetty, just deploy through it if it is already running
+        bindService(new Intent(this, IJettyService.class), connection, 0);
+    }
+    
+    
+    /** 
+     * Download activity is being destroyed.
+     * 
+     * @see android.app.Activity#onDestroy()
+     */
+    protected void onDestroy()
+    {
+        unbindService(connection);
+        binder = null;
+        super.onDestroy();
     }
     
     
@@ -182,9 +341,10 @@ public class IJettyDownloader extends Activity
                 ((EditText)findViewById(R.id.download_url)).setText("");
                 ((EditText)findViewById(R.id.context_path)).setText("");
                 
-                //don't leave things half done
-                if (fileInProgress != null)
-                    Installer.clean(fileInProgress);
+                //keep what has been downloaded, to resume from next time
+                if (downloadInProgress != null)
+                    downloadInProgress.save();
+                downloadInProgress = null;
                 fileInProgress = null;
             }
         }
@@ -230,7 +390,15 @@ public class IJettyDownloader extends Activity
         final File warFile = new File (tmpDir, war);
         try
         {
-            if (!warFile.createNewFile())
+            if (!isStreaming() && PartialDownload.getPartialDownload(warFile, url).isResumed())
+                doDownload(url, warFile, path);
+            else if (DownloadRecord.getRecord(tmpDir, getWebappName(warFile)).isFrom(url))
+            {
+                //an update of a webapp from the same place: only fetch it if it has changed
+                Log.i("Jetty", "Checking for update of "+war+" from "+url);
+                doDownload(url, warFile, path);
+            }
+            else if (!warFile.createNewFile())
             {
                 Log.i("Jetty", war+": File exists");
                 AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -284,7 +452,7 @@ public class IJettyDownloader extends Activity
             {
                 client = new HttpClient();
                 client.setConnectorType(HttpClient.CONNECTOR_SOCKET);
-                client.setMaxConnectionsPerAddress(1);
+                client.setMaxConnectionsPerAddress(getSegments());
                 client.setUseDirectBuffers(false);
             }   
             
@@ -298,32 +466,63 @@ public class IJettyDownloader extends Activity
             return;
         }
        
+        if (isStreaming())
+        {
+            doStreamingDownload(url, warFile, path);
+            return;
+        }
+        
         //Get the file    
         fileInProgress = warFile;
         _progressBar.setVisibility(ProgressBar.VISIBLE);
         _progressBar.setProgress(0);
         _progressBar.setIndeterminate(true);
+        ((TextView)findViewById(R.id.loading)).setText(R.string.loading);
         ((TextView)findViewById(R.id.loading)).setVisibility(TextView.VISIBLE);
         
-        ContentExchange exchange = new ContentExchange()
+        final PartialDownload download = PartialDownload.getPartialDownload(warFile, url);
+        downloadInProgress = download;
+        if (download.isResumed())
+        {
+            Log.i("Jetty", "Resuming download of "+url+" from "+download.getReceived()+" bytes");
+            sendSegments(url, warFile, path, download, isDeltaAllowed(url, warFile));
+            return;
+        }
+        
+        int segments = getSegments();
+        if (segments <= 1)
+        {
+            sendSegments(url, warFile, path, download, isDeltaAllowed(url, warFile));
+            return;
+        }
+        
+        //find out whether the war is big enough to be worth splitting, and
+        //whether the server can send ranges of it
+        ContentExchange head = new ContentExchange(true)
         {
-            private OutputStream _outputStream;
-
             protected void onResponseComplete() throws IOException
-            {  
-                closeOutputStream();
-                if (getResponseStatus() == HttpStatus.OK_200)
-                    install (warFile, path);
-                else
+            {
+                if (getResponseStatus() == HttpStatus.NOT_MODIFIED_304)
                 {
-                    Log.e("Jetty", "Bad status: "+getResponseStatus());                 
-                    mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Bad status: "+getResponseStatus()));
+                    unchanged(url, download);
+                    return;
                 }
-            }  
-         
+                
+                HttpFields fields = getResponseFields();
+                long length = fields.getLongField(HttpHeaders.CONTENT_LENGTH);
+                if (getResponseStatus() == HttpStatus.OK_200 
+                    && "bytes".equalsIgnoreCase(fields.getStringField(HttpHeaders.ACCEPT_RANGES))
+                    && length >= __MIN_SEGMENTED_LENGTH)
+                {
+                    download.setValidators(fields.getStringField(HttpHeaders.ETAG), fields.getStringField(HttpHeaders.LAST_MODIFIED));
+                    if (download.getValidator() != null)
+                        download.split(length, getSegments());
+                }
+                sendSegments(url, warFile, path, download, isDeltaAllowed(url, warFile));
+            }
+            
             protected void onConnectionFailed(Throwable ex)
             {
-                closeOutputStream();
                 mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Connection failed"));
                 Log.e("Jetty", "Connection fail", ex);
                 super.onConnectionFailed(ex);
@@ -331,7 +530,6 @@ public class IJettyDownloader extends Activity
 
             protected void onException(Throwable ex)
             {
-                closeOutputStream();
                 mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Exception"));
                 Log.e("Jetty", "Error on download", ex);
                 super.onException(ex);
@@ -339,56 +537,497 @@ public class IJettyDownloader extends Activity
 
             protected void onExpire()
             {
-                closeOutputStream(); 
                 mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Expired"));
                 Log.e("Jetty", "Expired: "+url);
                 super.onExpire();
             }
+        };
+        head.setMethod(HttpMethods.HEAD);
+        head.setURL(url);
+        DownloadRecord record = DownloadRecord.getRecord(tmpDir, getWebappName(warFile));
+        if (record.isFrom(url))
+            record.addConditions(head);
+        try
+        {
+            client.send(head);
+        }
+        catch (Exception e)
+        {
+            Log.e("Jetty", "Download failed for "+url);
+        }
+    }
+    
+    
+    /**
+     * Fetch every segment of a download that is not yet complete, each
+     * over its own connection, then install the war once they all are.
+     * 
+     * If a delta is allowed, a new unsplit download asks for a delta from
+     * the installed war instead. If the server sends one, it is applied to 
+     * the installed webapp, and if that fails the whole war is downloaded
+     * again.
+     * 
+     * @param url
+     * @param warFile
+     * @param path
+     * @param download
+     * @param delta
+     */
+    protected void sendSegments (final String url, final File warFile, final String path, final PartialDownload download, final boolean delta)
+    {
+        final List<PartialDownload.Segment> segments = new ArrayList<PartialDownload.Segment>();
+        for (PartialDownload.Segment segment : download.getSegments())
+        {
+            if (!segment.isComplete())
+                segments.add(segment);
+        }
+        final AtomicInteger outstanding = new AtomicInteger(segments.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        final DownloadProgress progress = newProgress(url, download.getLength(), download.getReceived());
+        
+        for (final PartialDownload.Segment segment : segments)
+        {
+            ContentExchange exchange = new ContentExchange(true)
+            {
+                private boolean _started;
+                private boolean _delta;
+                
+                protected void onResponseHeaderComplete() throws IOException
+                {
+                    super.onResponseHeaderComplete();
+                    HttpFields fields = getResponseFields();
+                    switch (getResponseStatus())
+                    {
+                        case HttpStatus.NOT_MODIFIED_304:
+                            break;
+                            
+                        case HttpStatus.PARTIAL_CONTENT_206:
+                            if (progress.getLength() < 0)
+                                progress.setLength(getInstanceLength(fields));
+                            _started = true;
+                            break;
+                            
+                        case HttpStatus.OK_200:
+                            //the content has changed, or the server does not do ranges
+                            if (segments.size() == 1 && download.getSegments().size() == 1)
+                            {
+                                download.reset();
+                                download.setValidators(fields.getStringField(HttpHeaders.ETAG), fields.getStringField(HttpHeaders.LAST_MODIFIED));
+                                progress.restart(fields.getLongField(HttpHeaders.CONTENT_LENGTH));
+                                _started = true;
+                            }
+                            else
+                            {
+                                download.reset();
+                                fail("Content changed, download again", null);
+                            }
+                            break;
+                            
+                        case __IM_USED_226:
+                            if (delta && __IJETTY_DELTA.equals(fields.getStringField(__IM)))
+                            {
+                                //a delta cannot be resumed, so is not saved if interrupted
+                                download.reset();
+                                download.setValidators(fields.getStringField(HttpHeaders.ETAG), fields.getStringField(HttpHeaders.LAST_MODIFIED));
+                                downloadInProgress = null;
+                                progress.restart(fields.getLongField(HttpHeaders.CONTENT_LENGTH));
+                                _started = true;
+                                _delta = true;
+                            }
+                            break;
+                            
+                        case HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE_416:
+                            //nothing more to send
+                            if (segment.getReceived() > 0)
+                                download.end(segment);
+                            break;
+                    }
+                }
+                
+                protected void onResponseContent(Buffer content)
+                throws IOException
+                {
+                    if (_started)
+                    {
+                        byte[] chunk = content.asArray();
+                        download.write(segment, chunk);
+                        progress.received(chunk.length);
+                    }
+                }
+                
+                protected void onResponseComplete() throws IOException
+                {  
+                    if (getResponseStatus() == HttpStatus.NOT_MODIFIED_304)
+                    {
+                        unchanged(url, download);
+                        return;
+                    }
+                    
+                    if (_started && segment.getEnd() < 0)
+                        download.end(segment);
+                    if (!segment.isComplete())
+                        fail("Bad status: "+getResponseStatus(), null);
+                    done();
+                }  
+             
+                protected void onConnectionFailed(Throwable ex)
+                {
+                    fail("Connection failed", ex);
+                    done();
+                    super.onConnectionFailed(ex);
+                }
 
-            protected void onResponseContent( Buffer content )
-            throws IOException
+                protected void onException(Throwable ex)
+                {
+                    fail("Exception", ex);
+                    done();
+                    super.onException(ex);
+                }
+
+                protected void onExpire()
+                {
+                    fail("Expired", null);
+                    done();
+                    super.onExpire();
+                }
+                
+                private void fail (String reason, Throwable ex)
+                {
+                    Log.e("Jetty", reason+": "+url+" "+segment, ex);
+                    if (failed.compareAndSet(false, true))
+                        mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, reason));
+                }
+                
+                private void done ()
+                {
+                    if (outstanding.decrementAndGet() > 0)
+                        return;
+                    
+                    if (!failed.get() && download.isComplete())
+                        progress.downloaded();
+                    
+                    if (_delta)
+                    {
+                        if (!failed.get() && download.isComplete())
+                            installDelta(url, warFile, path, download, progress);
+                        else
+                            download.delete();
+                    }
+                    else if (!failed.get() && download.isComplete())
+                    {
+                        try
+                        {
+                            download.complete(warFile);
+                        }
+                        catch (IOException e)
+                        {
+                            fail("Exception", e);
+                            return;
+                        }
+                        downloadInProgress = null;
+                        
+                        //a server that does not do conditional requests may send the same war again
+                        String sha1 = DownloadRecord.sha1(warFile);
+                        DownloadRecord record = DownloadRecord.getRecord(tmpDir, getWebappName(warFile));
+                        if (sha1 != null && record.isFrom(url) && sha1.equals(record.getSha1()))
+                        {
+                            Log.i("Jetty", "Unchanged: "+url+" SHA-1="+sha1);
+                            mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_UNCHANGED));
+                        }
+                        else if (install (warFile, path, progress))
+                            record.update(url, download.getETag(), download.getLastModified(), sha1);
+                    }
+                    else
+                    {
+                        //keep what we have, to resume from next time
+                        download.save();
+                    }
+                }
+            };
+            
+            exchange.setURL(url);
+            //a new unsplit download fetches the lot, and learns the validators from the response
+            if (segment.getPosition() > 0 || segment.getEnd() >= 0)
             {
+                exchange.setRequestHeader(HttpHeaders.RANGE, segment.getRange());
+                String validator = download.getValidator();
+                if (validator != null)
+                    exchange.setRequestHeader(HttpHeaders.IF_RANGE, validator);
+            }
+            else
+            {
+                DownloadRecord record = DownloadRecord.getRecord(tmpDir, getWebappName(warFile));
+                if (record.isFrom(url))
+                    record.addConditions(exchange);
+                if (delta)
+                    exchange.setRequestHeader(__A_IM, __IJETTY_DELTA);
+            }
+            try
+            {
+                Log.i("Jetty", "Downloading "+url+" "+segment.getRange());
+                client.send(exchange);
+            }
+            catch (Exception e)
+            {
+                Log.e("Jetty", "Download failed for "+url, e);
+            }
+        }
+    }
+
+    /**
+     * Apply a downloaded delta to the installed webapp, or download the
+     * whole war if it does not apply.
+     * @param url
+     * @param warFile
+     * @param path
+     * @param download
+     * @param progress
+     */
+    private void installDelta (String url, File warFile, String path, PartialDownload download, DownloadProgress progress)
+    {
+        File deltaFile = new File(warFile.getParentFile(), warFile.getName()+".delta");
+        String name = getWebappName(warFile);
+        try
+        {
+            download.complete(deltaFile);
+            File webappDir = new File (IJetty.__JETTY_DIR+"/"+IJetty.__WEBAPP_DIR);
+            Log.i("Jetty", "Applying delta of "+deltaFile.length()+" bytes to "+name);
+            progress.installing(-1);
+            Installer.installDelta(deltaFile, path, webappDir, name, true, contextControl);
+            progress.done(name);
+        }
+        catch (IOException e)
+        {
+            Log.w("Jetty", "Delta failed for "+url+", downloading whole war", e);
+            download.delete();
+            PartialDownload full = PartialDownload.getPartialDownload(warFile, url);
+            downloadInProgress = full;
+            sendSegments(url, warFile, path, full, false);
+            return;
+        }
+        finally
+        {
+            deltaFile.delete();
+        }
+        
+        //there is no war to take a hash of
+        DownloadRecord.getRecord(tmpDir, name).update(url, download.getETag(), download.getLastModified(), null);
+        deploy(name);
+        mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_SUCCEEDED));
+    }
+    
+    
+    /**
+     * The webapp has not changed since it was downloaded from the url.
+     * @param url
+     * @param download
+     */
+    private void unchanged (String url, PartialDownload download)
+    {
+        Log.i("Jetty", "Not modified: "+url);
+        download.delete();
+        downloadInProgress = null;
+        mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_UNCHANGED));
+    }
+    
+    
+    /**
+     * Download a war and unpack it as it arrives, rather than writing it to
+     * the tmp dir and reading it back. The installer stages the changed entries
+     * and only moves them into the webapp once the whole war has arrived, so a
+     * failed download leaves the existing webapp as it was.
+     * 
+     * @param url
+     * @param warFile only its name is used: nothing is written to it
+     * @param path
+     */
+    public void doStreamingDownload(final String url, final File warFile, final String path)
+    {
+        final String name = getWebappName(warFile);
+        _progressBar.setVisibility(ProgressBar.VISIBLE);
+        _progressBar.setProgress(0);
+        _progressBar.setIndeterminate(true);
+        ((TextView)findViewById(R.id.loading)).setText(R.string.loading);
+        ((TextView)findViewById(R.id.loading)).setVisibility(TextView.VISIBLE);
+        
+        final DownloadRecord record = DownloadRecord.getRecord(tmpDir, name);
+        ContentExchange exchange = new ContentExchange(true)
+        {
+            private StreamPipe _pipe;
+            private MessageDigest _digest;
+            private volatile String _sha1;
+            private volatile boolean _unchanged;
+            private final CountDownLatch _complete = new CountDownLatch(1);
+            private long _received;
+            private DownloadProgress _progress;
+
+            protected void onResponseHeaderComplete() throws IOException
+            {
+                super.onResponseHeaderComplete();
+                if (getResponseStatus() != HttpStatus.OK_200)
+                    return;
+                
                 try
                 {
-                    OutputStream os = getOutputStream();
-                    content.writeTo( os );
+                    _digest = MessageDigest.getInstance("SHA-1");
                 }
-                catch ( Exception e )
+                catch (NoSuchAlgorithmException e)
                 {
-                    Log.e("Jetty", "Error reading content", e);
-                    mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Exception"));
+                    Log.w("Jetty", "No digest", e);
                 }
+                
+                _progress = newProgress(url, getResponseFields().getLongField(HttpHeaders.CONTENT_LENGTH), 0);
+                final DownloadProgress progress = _progress;
+                
+                //unpack on another thread, so a slow sd card does not stall the connection 
+                _pipe = new StreamPipe(64);
+                final InputStream in = _pipe.getInputStream();
+                new Thread("Jetty-install-"+name)
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            File webappDir = new File (IJetty.__JETTY_DIR+"/"+IJetty.__WEBAPP_DIR);
+                            if (Installer.install(in, path, webappDir, name, true, true, progress, contextControl) == null)
+                            {
+                                if (_unchanged)
+                                    mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_UNCHANGED));
+                                else
+                                    mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Exception"));
+                                return;
+                            }
+                            progress.done(name);
+                            
+                            //only record the war once its digest is known
+                            try
+                            {
+                                _complete.await();
+                            }
+                            catch (InterruptedException e)
+                            {
+                                Log.w("Jetty", "Interrupted waiting for "+url, e);
+                            }
+                            HttpFields fields = getResponseFields();
+                            record.update(url, fields.getStringField(HttpHeaders.ETAG), fields.getStringField(HttpHeaders.LAST_MODIFIED), _sha1);
+                            deploy(name);
+                            mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_SUCCEEDED));
+                        }
+                        finally
+                        {
+                            IO.close(in);
+                        }
+                    }
+                }.start();
             }
-
-            protected OutputStream getOutputStream()
+            
+            protected void onResponseComplete() throws IOException
+            {  
+                if (_pipe != null)
+                {
+                    try
+                    {
+                        _progress.downloaded();
+                        
+                        //the install thread only commits what it has staged if the pipe is closed
+                        long length = getResponseFields().getLongField(HttpHeaders.CONTENT_LENGTH);
+                        if (length >= 0 && _received != length)
+                        {
+                            fail("Incomplete: received "+_received+" of "+length+" bytes", null);
+                            return;
+                        }
+                        if (_digest != null)
+                        {
+                            _sha1 = TypeUtil.toHexString(_digest.digest());
+                            Log.i("Jetty", "Downloaded "+url+" SHA-1="+_sha1);
+                            
+                            //a server that does not do conditional requests may send the same war again
+                            if (record.isFrom(url) && _sha1.equals(record.getSha1()))
+                            {
+                                Log.i("Jetty", "Unchanged: "+url+" SHA-1="+_sha1);
+                                _unchanged = true;
+                                _pipe.fail(new IOException("Unchanged"));
+                                return;
+                            }
+                        }
+                        _pipe.close();
+                    }
+                    finally
+                    {
+                        _complete.countDown();
+                    }
+                }
+                else if (getResponseStatus() == HttpStatus.NOT_MODIFIED_304)
+                {
+                    Log.i("Jetty", "Not modified: "+url);
+                    mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_UNCHANGED));
+                }
+                else
+                {
+                    Log.e("Jetty", "Bad status: "+getResponseStatus());                 
+                    mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Bad status: "+getResponseStatus()));
+                }
+            }  
+         
+            protected void onResponseContent( Buffer content )
             throws IOException
             {
-                if ( _outputStream == null )
+                if (_pipe == null)
+                    return;
+                byte[] chunk = content.asArray();
+                if (_digest != null)
+                    _digest.update(chunk);
+                _received += chunk.length;
+                _pipe.write(chunk);
+                _progress.received(chunk.length);
+            }
+            
+            protected void onConnectionFailed(Throwable ex)
+            {
+                fail("Connection failed", ex);
+                super.onConnectionFailed(ex);
+            }
+
+            protected void onException(Throwable ex)
+            {
+                fail("Exception", ex);
+                super.onException(ex);
+            }
+
+            protected void onExpire()
+            {
+                fail("Expired", null);
+                super.onExpire();
+            }
+            
+            private void fail (String reason, Throwable ex)
+            {
+                Log.e("Jetty", reason+": "+url, ex);
+                _complete.countDown();
+                if (_pipe == null)
                 {
-                    _outputStream = new FileOutputStream (warFile);
+                    mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, reason));
+                    return;
                 }
-                return _outputStream;
-            }
 
-            protected void closeOutputStream()
-            { 
+                //the install thread discards what it has staged and reports the failure
                 try
                 {
-                    if (_outputStream != null)
-                        _outputStream.close();
+                    _pipe.fail(new IOException(reason));
                 }
                 catch (IOException e)
                 {
-                    Log.e("Jetty", "Error closing stream", e);
-                    mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Exception"));
+                    Log.e("Jetty", "Error failing install", e);
                 }
             }
         };
         
         exchange.setURL(url);
+        if (record.isFrom(url))
+            record.addConditions(exchange);
         try
         {
-            Log.i("Jetty", "Downloading "+url);
+            Log.i("Jetty", "Downloading and unpacking "+url);
             client.send(exchange);
         }
         catch (Exception e)
@@ -396,6 +1035,80 @@ public class IJettyDownloader extends Activity
             Log.e("Jetty", "Download failed for "+url);
         }
     }
+    
+    
+    /**
+     * @param fields of a 206 response
+     * @return the length of the whole content from the Content-Range, or -1 if not known
+     */
+    private long getInstanceLength (HttpFields fields)
+    {
+        String range = fields.getStringField(HttpHeaders.CONTENT_RANGE);
+        int slash = (range == null ? -1 : range.lastIndexOf('/'));
+        try
+        {
+            return (slash < 0 ? -1 : Long.parseLong(range.substring(slash+1).trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            //unknown length is sent as *
+            return -1;
+        }
+    }
+    
+    
+    /**
+     * @return the number of connections to download a large war over
+     */
+    private int getSegments ()
+    {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        try
+        {
+            return Math.max(1, Integer.parseInt(preferences.getString(getString(R.string.pref_segments_key), getString(R.string.pref_segments_value))));
+        }
+        catch (NumberFormatException e)
+        {
+            return 1;
+        }
+    }
+    
+    
+    /**
+     * A delta can only be applied to an unpacked webapp whose entries are
+     * known, and the server can only make one from the version it sent.
+     * @param url
+     * @param warFile
+     * @return true if a delta from the installed webapp can be asked for
+     */
+    private boolean isDeltaAllowed (String url, File warFile)
+    {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        if (preferences.getBoolean(getString(R.string.pref_packed_key), Boolean.valueOf(getString(R.string.pref_packed_value))))
+            return false;
+        String name = getWebappName(warFile);
+        DownloadRecord record = DownloadRecord.getRecord(tmpDir, name);
+        return record.isFrom(url) && record.getETag() != null && Installer.hasEntries(name);
+    }
+    
+    
+    private boolean isStreaming ()
+    {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean packed = preferences.getBoolean(getString(R.string.pref_packed_key), Boolean.valueOf(getString(R.string.pref_packed_value)));
+        boolean streaming = preferences.getBoolean(getString(R.string.pref_streaming_key), Boolean.valueOf(getString(R.string.pref_streaming_value)));
+        //a packed webapp needs the war itself
+        return streaming && !packed;
+    }
+    
+    
+    private String getWebappName (File file)
+    {
+        String name = file.getName();
+        if (name.endsWith(".war") || name.endsWith(".jar"))
+            name = name.substring(0, name.length()-4);
+        return name;
+    }
 
     public String getWarFileName (String url)
     {
@@ -418,22 +1131,64 @@ public class IJettyDownloader extends Activity
     }
     
     
-    public void install (File file, String path)
+    public boolean install (File file, String path)
+    {
+        return install(file, path, null);
+    }
+    
+    
+    /**
+     * @param file
+     * @param path
+     * @param progress may be null
+     * @return true if the war was installed
+     */
+    public boolean install (File file, String path, DownloadProgress progress)
     {
         try
         {
             File webappDir = new File (IJetty.__JETTY_DIR+"/"+IJetty.__WEBAPP_DIR);
-            String name = file.getName();
-            if (name.endsWith(".war") || name.endsWith(".jar"))
-                name = name.substring(0, name.length()-4);
+            String name = getWebappName(file);
            
-            Installer.install(file, path, webappDir, name, true);                      
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+            boolean packed = preferences.getBoolean(getString(R.string.pref_packed_key), Boolean.valueOf(getString(R.string.pref_packed_value)));
+            if (packed)
+                Installer.installPacked(file, path, webappDir, name, true, contextControl);
+            else
+                Installer.install(file, path, webappDir, name, true, true, progress, contextControl);
+            if (progress != null)
+                progress.done(name);
+            deploy(name);
             mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_SUCCEEDED));
+            return true;
         }
         catch (Exception e)
         {
             Log.e("Jetty", "Bad resource", e);
             mHandler.sendMessage(Message.obtain(mHandler, __MSG_DOWNLOAD_FAILED, "Exception"));
+            return false;
+        }
+    }
+    
+    /**
+     * If jetty is running, deploy the installed webapp now rather
+     * than waiting for the contexts dir to be next scanned.
+     * @param name
+     */
+    private void deploy (String name)
+    {
+        IJettyService.LocalBinder b = binder;
+        if (b == null || !b.isRunning())
+            return;
+        
+        try
+        {
+            Log.i("Jetty", "Deployed "+b.deployContextFile(Installer.getContextFile(name)));
+        }
+        catch (Exception e)
+        {
+            //the scanner will pick it up instead
+            Log.e("Jetty", "Error deploying "+name, e);
         }
     }
     
@@ -18,12 +18,30 @@ package org.mortbay.ijetty;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.mortbay.ijetty.deployer.AndroidContextDeployer;
+import org.mortbay.ijetty.deployer.AndroidDeployer;
 import org.mortbay.ijetty.deployer.AndroidWebAppDeployer;
+import org.mortbay.ijetty.deployer.DeploymentManifest;
 import org.mortbay.ijetty.handler.DefaultHandler;
+import org.mortbay.ijetty.handler.LogLevelHandler;
+import org.mortbay.ijetty.handler.StatusHandler;
+import org.mortbay.ijetty.handler.WakeLockHandler;
+import org.mortbay.ijetty.log.AndroidLog;
+import org.mortbay.ijetty.log.FileLogAppender;
 import org.mortbay.ijetty.util.AndroidInfo;
 import org.mortbay.ijetty.util.IJettyToast;
+import org.mortbay.ijetty.util.WakeLockScheduler;
+import org.mortbay.ijetty.webapp.AndroidWebXmlConfiguration;
+import org.mortbay.ijetty.webapp.TagLibScanCache;
+import org.eclipse.jetty.server.AbstractConnector;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.http.HttpGenerator;
@@ -32,11 +50,15 @@ import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.bio.SocketConnector;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.security.HashLoginService;
 import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
 import org.eclipse.jetty.server.ssl.SslSocketConnector;
+import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.security.Credential;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 
 import android.app.Notification;
@@ -77,25 +99,64 @@ public class IJettyService extends Service
     public static final int __NOT_STOPPED = 3;
     public static final int __STARTING = 4;
     public static final int __STOPPING = 5;
+    public static final int __RECONFIGURED = 6;
+    public static final int __NOT_RECONFIGURED = 7;
     
     public static final String[] __configurationClasses = 
         new String[]
         {
             "org.mortbay.ijetty.webapp.AndroidWebInfConfiguration",
-            "org.eclipse.jetty.webapp.WebXmlConfiguration",
+            "org.mortbay.ijetty.webapp.AndroidWebXmlConfiguration",
             "org.eclipse.jetty.webapp.JettyWebXmlConfiguration",
             "org.eclipse.jetty.webapp.TagLibConfiguration" 
         };
     
+    /**
+     * Configuration classes for webapps that use no tag libraries.
+     */
+    public static final String[] __servletConfigurationClasses = 
+        new String[]
+        {
+            "org.mortbay.ijetty.webapp.AndroidWebInfConfiguration",
+            "org.mortbay.ijetty.webapp.AndroidWebXmlConfiguration",
+            "org.eclipse.jetty.webapp.JettyWebXmlConfiguration"
+        };
+    
+    /**
+     * The preferences that determine the connectors: a change to any other
+     * preference does not reconfigure them.
+     */
+    private static final int[] __connectorPreferenceKeys =
+        new int[]
+        {
+            R.string.pref_port_key,
+            R.string.pref_ssl_port_key,
+            R.string.pref_nio_key,
+            R.string.pref_ssl_key,
+            R.string.pref_keystore_pwd_key,
+            R.string.pref_keymgr_pwd_key,
+            R.string.pref_truststore_pwd_key,
+            R.string.pref_keystore_file_key,
+            R.string.pref_truststore_file_key
+        };
+    
     private static boolean __isRunning;
  
     private NotificationManager mNM;
     private Server server;
     private ContextHandlerCollection contexts;
+    private StatisticsHandler stats;
+    private AndroidDeployer deployer;
+    private AndroidWebAppDeployer webAppDeployer;
+    private AndroidContextDeployer contextDeployer;
     private boolean _useNIO;
     private boolean _useSSL;
     private int _port;
     private int _sslPort;
+    private int _gracefulTimeout;
+    private int _wakeLockWindow;
+    private int _drained;
+    private int _aborted;
     private String _consolePassword;
     private String _keymgrPassword;
     private String _keystorePassword;
@@ -103,11 +164,27 @@ public class IJettyService extends Service
     private String _keystoreFile;
     private String _truststoreFile;
     private SharedPreferences preferences;
+    private String _connectorPreferences;
+    private PerformanceProfile _profile = PerformanceProfile.BALANCED;
     private PackageInfo pi;
     private android.os.Handler _handler;
 
-    private PowerManager.WakeLock wakeLock;
+    private WakeLockScheduler wakeLockScheduler;
     private final IBinder binder = new LocalBinder();
+    
+    //one reconfiguration at a time, in the order the preferences changed
+    private final ExecutorService _reconfigurer = Executors.newSingleThreadExecutor();
+    
+    private final SharedPreferences.OnSharedPreferenceChangeListener _preferenceListener = 
+        new SharedPreferences.OnSharedPreferenceChangeListener()
+        {
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+            {
+                if (server == null || !server.isStarted() || !isConnectorPreference(key))
+                    return;
+                _reconfigurer.execute(new JettyReconfigurer(_handler));
+            }
+        };
 
     
     static 
@@ -124,6 +201,82 @@ public class IJettyService extends Service
             // Return this instance of LocalService so clients can call public methods
             return IJettyService.this;
         }
+        
+        public boolean isRunning() {
+            return (server != null && server.isStarted() && deployer != null);
+        }
+        
+        /**
+         * Deploy an unpacked webapp or a war and start it before returning.
+         * @param webapp
+         * @param contextPath
+         * @return the deployment
+         * @throws Exception
+         */
+        public AndroidDeployer.Deployment deploy(File webapp, String contextPath) throws Exception {
+            checkRunning();
+            return webAppDeployer.deploy(Resource.newResource(webapp.getAbsolutePath()), contextPath);
+        }
+        
+        /**
+         * Deploy a context xml file and start it before returning. The 
+         * contexts dir scanner, which uses canonical paths too, will not
+         * deploy the file again.
+         * @param contextFile
+         * @return the deployment
+         * @throws Exception
+         */
+        public AndroidDeployer.Deployment deployContextFile(File contextFile) throws Exception {
+            checkRunning();
+            return contextDeployer.deploy(contextFile.getCanonicalPath());
+        }
+        
+        /**
+         * Stop and remove the context deployed from a context xml file.
+         * @param contextFile
+         * @return true if there was a context deployed from the file
+         * @throws Exception
+         */
+        public boolean undeployContextFile(File contextFile) throws Exception {
+            checkRunning();
+            return contextDeployer.undeploy(contextFile.getCanonicalPath());
+        }
+        
+        /**
+         * @param contextPath
+         * @return true if there was a context deployed at the path
+         * @throws Exception
+         */
+        public boolean undeploy(String contextPath) throws Exception {
+            checkRunning();
+            AndroidDeployer.Deployment deployment = deployer.getDeploymentByContextPath(contextPath);
+            return (deployment != null && deployer.undeploy(deployment.getId()));
+        }
+        
+        /**
+         * Stop and restart the context deployed at a path.
+         * @param contextPath
+         * @return the deployment, or null if there is none at the path
+         * @throws Exception
+         */
+        public AndroidDeployer.Deployment redeploy(String contextPath) throws Exception {
+            checkRunning();
+            AndroidDeployer.Deployment deployment = deployer.getDeploymentByContextPath(contextPath);
+            return (deployment == null ? null : deployer.redeploy(deployment.getId()));
+        }
+        
+        /**
+         * @return the deployed contexts with their state and start times
+         */
+        public List<AndroidDeployer.Deployment> getDeployments() {
+            checkRunning();
+            return deployer.getDeployments();
+        }
+        
+        private void checkRunning() {
+            if (!isRunning())
+                throw new IllegalStateException("Jetty not running");
+        }
     }
     
     
@@ -157,6 +310,14 @@ public class IJettyService extends Service
                 Log.e(TAG, "Error starting jetty", e);
                 
             }
+            finally
+            {
+                //let the cpu sleep once startup is done and no requests arrive,
+                //unless the service was destroyed meanwhile and let go of the scheduler
+                WakeLockScheduler scheduler = wakeLockScheduler;
+                if (scheduler != null)
+                    scheduler.end();
+            }
         }
         
         public void sendMessage(int state)
@@ -191,7 +352,7 @@ public class IJettyService extends Service
                 sendMessage(__STOPPING);
                 stopJetty();
                 Log.i(TAG, "Jetty stopped");
-                sendMessage(__STOPPED);
+                sendStoppedMessage(_drained, _aborted);
                
             }
             catch (Exception e)
@@ -200,6 +361,68 @@ public class IJettyService extends Service
                 sendMessage(__NOT_STOPPED);
                 Log.e(TAG, "Error stopping jetty", e);
             }
+            finally
+            {
+                stopWakeLock();
+            }
+        }
+        
+        public void sendMessage(int state)
+        {
+            Message msg = _handler.obtainMessage();
+            Bundle b = new Bundle();
+            b.putInt("state", state);
+            msg.setData(b);
+            _handler.sendMessage(msg);
+        }
+        
+        public void sendStoppedMessage(int drained, int aborted)
+        {
+            Message msg = _handler.obtainMessage();
+            Bundle b = new Bundle();
+            b.putInt("state", __STOPPED);
+            b.putInt("drained", drained);
+            b.putInt("aborted", aborted);
+            WakeLockScheduler scheduler = wakeLockScheduler;
+            if (scheduler != null)
+            {
+                b.putLong("wakeLockHeld", scheduler.getHeldTime());
+                b.putInt("requestsServed", scheduler.getRequestsServed());
+            }
+            msg.setData(b);
+            _handler.sendMessage(msg);
+        }
+    }
+    
+
+    /**
+     * JettyReconfigurer
+     *
+     * Swaps the connectors of the running server for ones matching the
+     * current preferences. Only reports a reconfiguration if the connectors
+     * were replaced.
+     */
+    public class JettyReconfigurer implements Runnable
+    {
+        android.os.Handler _handler;
+        
+        public JettyReconfigurer(android.os.Handler handler)
+        {
+            _handler = handler;
+        }
+        
+        public void run ()
+        {
+            try
+            {
+                if (reconfigureConnectors())
+                    sendMessage(__RECONFIGURED);
+            }
+            catch (Exception e)
+            {
+                sendMessage(__NOT_RECONFIGURED);
+                Log.e(TAG, "Error reconfiguring connectors", e);
+            }
         }
         
         public void sendMessage(int state)
@@ -266,20 +489,24 @@ public class IJettyService extends Service
                         
                         Intent startIntent = new Intent(IJetty.__START_ACTION);
                         startIntent.addCategory("default");
-                        Connector[] connectors = server.getConnectors();
-                        if (connectors != null)
-                        {
-                            String[] tmp = new String[connectors.length];
-                            
-                            for (int i=0;i<connectors.length;i++)
-                                tmp[i] = connectors[i].toString();
-
-                            startIntent.putExtra("connectors", tmp);
-                        }
+                        putConnectors(startIntent);
                        
                         sendBroadcast(startIntent);
                         break;
                     }
+                    case __RECONFIGURED:
+                    {
+                        Intent reconfigureIntent = new Intent(IJetty.__RECONFIGURE_ACTION);
+                        reconfigureIntent.addCategory("default");
+                        putConnectors(reconfigureIntent);
+                        sendBroadcast(reconfigureIntent);
+                        break;
+                    }
+                    case __NOT_RECONFIGURED:
+                    {
+                        IJettyToast.showServiceToast(IJettyService.this,R.string.jetty_not_reconfigured);
+                        break;
+                    }
                     case __NOT_STARTED:
                     {
                         IJettyToast.showServiceToast(IJettyService.this,R.string.jetty_not_started);
@@ -290,10 +517,19 @@ public class IJettyService extends Service
                         // Cancel the persistent notification.
                         mNM = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
                         mNM.cancel(R.string.jetty_started);
-                        // Tell the user we stopped.
-                        IJettyToast.showServiceToast(IJettyService.this,R.string.jetty_stopped);
+                        // Tell the user we stopped, and how many requests were let finish.
+                        int drained = msg.getData().getInt("drained");
+                        int aborted = msg.getData().getInt("aborted");
+                        if (drained > 0 || aborted > 0)
+                            IJettyToast.showServiceToast(IJettyService.this,getString(R.string.jetty_stopped_drained, drained, aborted));
+                        else
+                            IJettyToast.showServiceToast(IJettyService.this,R.string.jetty_stopped);
                         Intent stopIntent = new Intent(IJetty.__STOP_ACTION);
                         stopIntent.addCategory("default");
+                        stopIntent.putExtra("drained", drained);
+                        stopIntent.putExtra("aborted", aborted);
+                        stopIntent.putExtra("wakeLockHeld", msg.getData().getLong("wakeLockHeld"));
+                        stopIntent.putExtra("requestsServed", msg.getData().getInt("requestsServed"));
                         sendBroadcast(stopIntent);
                         break;
                     }
@@ -323,6 +559,22 @@ public class IJettyService extends Service
     
 
 
+    private void putConnectors (Intent intent)
+    {
+        Server s = server;
+        Connector[] connectors = (s == null ? null : s.getConnectors());
+        if (connectors != null)
+        {
+            String[] tmp = new String[connectors.length];
+            
+            for (int i=0;i<connectors.length;i++)
+                tmp[i] = connectors[i].toString();
+
+            intent.putExtra("connectors", tmp);
+        }
+    }
+
+
     @Override
     public IBinder onBind(Intent intent) {
         return binder;
@@ -363,59 +615,35 @@ public class IJettyService extends Service
         {
             preferences = PreferenceManager.getDefaultSharedPreferences(this);
 
-            String portDefault = getText(R.string.pref_port_value).toString();
-            String sslPortDefault = getText(R.string.pref_ssl_port_value).toString();
             String pwdDefault = getText(R.string.pref_console_pwd_value).toString();
-            
-            String nioEnabledDefault = getText(R.string.pref_nio_value).toString();
-            String sslEnabledDefault = getText(R.string.pref_ssl_value).toString();
-
-            String portKey = getText(R.string.pref_port_key).toString();
-            String sslPortKey = getText(R.string.pref_ssl_port_key).toString();
             String pwdKey = getText(R.string.pref_console_pwd_key).toString();
-            String nioKey = getText(R.string.pref_nio_key).toString();
-            String sslKey = getText(R.string.pref_ssl_key).toString();
-            
-            _useSSL = preferences.getBoolean(sslKey, Boolean.valueOf(sslEnabledDefault));
-            _useNIO = preferences.getBoolean(nioKey, Boolean.valueOf(nioEnabledDefault));
-            _port = Integer.parseInt(preferences.getString(portKey, portDefault));
-            if (_useSSL)
-            {
-              _sslPort = Integer.parseInt(preferences.getString(sslPortKey, sslPortDefault));
-              String defaultValue = getText(R.string.pref_keystore_pwd_value).toString();
-              String key = getText(R.string.pref_keystore_pwd_key).toString();
-              _keystorePassword = preferences.getString(key, defaultValue);
-              
-              defaultValue = getText(R.string.pref_keymgr_pwd_value).toString();
-              key = getText(R.string.pref_keymgr_pwd_key).toString();
-              _keymgrPassword = preferences.getString(key, defaultValue);
-              
-              defaultValue = getText(R.string.pref_truststore_pwd_value).toString();
-              key = getText(R.string.pref_truststore_pwd_key).toString();
-              _truststorePassword = preferences.getString(key, defaultValue);
-              
-              defaultValue = getText(R.string.pref_keystore_file).toString();
-              key = getText(R.string.pref_keystore_file_key).toString();
-              _keystoreFile = preferences.getString(key, defaultValue);
-              
-              defaultValue = getText(R.string.pref_truststore_file).toString();
-              key = getText(R.string.pref_truststore_file_key).toString();
-              _truststoreFile = preferences.getString(key, defaultValue);
-            }
+            String gracefulKey = getText(R.string.pref_graceful_key).toString();
+            String gracefulDefault = getText(R.string.pref_graceful_value).toString();
+            String wakeLockKey = getText(R.string.pref_wakelock_key).toString();
+            String wakeLockDefault = getText(R.string.pref_wakelock_value).toString();
+            String profileKey = getText(R.string.pref_profile_key).toString();
+            String profileDefault = getText(R.string.pref_profile_value).toString();
 
+            //the profile is fixed for the life of the server, as it tunes the contexts too
+            _profile = PerformanceProfile.getProfile(preferences.getString(profileKey, profileDefault));
+            readConnectorPreferences();
             _consolePassword = preferences.getString(pwdKey, pwdDefault);
+            _gracefulTimeout = Integer.parseInt(preferences.getString(gracefulKey, gracefulDefault));
+            _wakeLockWindow = Integer.parseInt(preferences.getString(wakeLockKey, wakeLockDefault));
 
-            Log.d("Jetty", "pref port = "+_port);
-            Log.d("Jetty", "pref use nio = "+_useNIO);
-            Log.d("Jetty", "pref use ssl = "+_useSSL);
-            Log.d("Jetty", "pref ssl port = "+_sslPort);
+            Log.d("Jetty", "pref graceful timeout = "+_gracefulTimeout);
+            Log.d("Jetty", "pref wake lock window = "+_wakeLockWindow);
+            Log.d("Jetty", "pref profile = "+_profile);
            
-            //Get a wake lock to stop the cpu going to sleep
+            //Keep the cpu awake while starting, and afterwards only while there are requests
             PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-            wakeLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, "IJetty");
-            wakeLock.acquire();
+            wakeLockScheduler = new WakeLockScheduler(pm, _wakeLockWindow * 1000L);
+            wakeLockScheduler.begin();
 
             new JettyStarterThread(_handler).start();
+            
+            //apply connector changes made while we are running without a restart
+            preferences.registerOnSharedPreferenceChangeListener(_preferenceListener);
  
             super.onStart(intent, startId);
         }
@@ -427,6 +655,78 @@ public class IJettyService extends Service
     }
 
 
+    /**
+     * Read the preferences that determine the connectors.
+     * 
+     * @return a description of the connector preferences, which
+     * changes whenever the connectors would need to be replaced
+     */
+    protected String readConnectorPreferences ()
+    {
+        String portDefault = getText(R.string.pref_port_value).toString();
+        String sslPortDefault = getText(R.string.pref_ssl_port_value).toString();
+        String nioEnabledDefault = getText(R.string.pref_nio_value).toString();
+        String sslEnabledDefault = getText(R.string.pref_ssl_value).toString();
+
+        String portKey = getText(R.string.pref_port_key).toString();
+        String sslPortKey = getText(R.string.pref_ssl_port_key).toString();
+        String nioKey = getText(R.string.pref_nio_key).toString();
+        String sslKey = getText(R.string.pref_ssl_key).toString();
+
+        _useSSL = preferences.getBoolean(sslKey, Boolean.valueOf(sslEnabledDefault));
+        _useNIO = preferences.getBoolean(nioKey, Boolean.valueOf(nioEnabledDefault));
+        _port = Integer.parseInt(preferences.getString(portKey, portDefault));
+        if (_useSSL)
+        {
+          _sslPort = Integer.parseInt(preferences.getString(sslPortKey, sslPortDefault));
+          String defaultValue = getText(R.string.pref_keystore_pwd_value).toString();
+          String key = getText(R.string.pref_keystore_pwd_key).toString();
+          _keystorePassword = preferences.getString(key, defaultValue);
+          
+          defaultValue = getText(R.string.pref_keymgr_pwd_value).toString();
+          key = getText(R.string.pref_keymgr_pwd_key).toString();
+          _keymgrPassword = preferences.getString(key, defaultValue);
+          
+          defaultValue = getText(R.string.pref_truststore_pwd_value).toString();
+          key = getText(R.string.pref_truststore_pwd_key).toString();
+          _truststorePassword = preferences.getString(key, defaultValue);
+          
+          defaultValue = getText(R.string.pref_keystore_file).toString();
+          key = getText(R.string.pref_keystore_file_key).toString();
+          _keystoreFile = preferences.getString(key, defaultValue);
+          
+          defaultValue = getText(R.string.pref_truststore_file).toString();
+          key = getText(R.string.pref_truststore_file_key).toString();
+          _truststoreFile = preferences.getString(key, defaultValue);
+        }
+
+        Log.d("Jetty", "pref port = "+_port);
+        Log.d("Jetty", "pref use nio = "+_useNIO);
+        Log.d("Jetty", "pref use ssl = "+_useSSL);
+        Log.d("Jetty", "pref ssl port = "+_sslPort);
+        
+        _connectorPreferences = _port+"|"+_useNIO+"|"+_useSSL;
+        if (_useSSL)
+            _connectorPreferences += "|"+_sslPort+"|"+_keystoreFile+"|"+_keystorePassword+"|"+_keymgrPassword+"|"+_truststoreFile+"|"+_truststorePassword;
+        return _connectorPreferences;
+    }
+    
+    
+    /**
+     * @param key
+     * @return true if the preference is one of those that determine the connectors
+     */
+    protected boolean isConnectorPreference (String key)
+    {
+        for (int i=0;i<__connectorPreferenceKeys.length;i++)
+        {
+            if (getText(__connectorPreferenceKeys[i]).toString().equals(key))
+                return true;
+        }
+        return false;
+    }
+
+
     /** 
      * Android Service destroy
      * @see android.app.Service#onDestroy()
@@ -435,19 +735,22 @@ public class IJettyService extends Service
     {
         try
         {
-            if (wakeLock != null)
-            {
-                wakeLock.release();
-                wakeLock = null;
-            }
+            if (preferences != null)
+                preferences.unregisterOnSharedPreferenceChangeListener(_preferenceListener);
+            //a reconfiguration already queued finds the server stopped and does nothing
+            _reconfigurer.shutdown();
             
             if (server != null)
             {
+                //keep the cpu awake while requests drain and contexts stop
+                if (wakeLockScheduler != null)
+                    wakeLockScheduler.begin();
                 new JettyStopperThread(_handler).start();
                 
             }
             else
             {
+                stopWakeLock();
                 Log.i(TAG, "Jetty not running");
                 IJettyToast.showServiceToast(IJettyService.this,R.string.jetty_not_running);
             }
@@ -463,6 +766,36 @@ public class IJettyService extends Service
    
     
 
+    private void stopWakeLock ()
+    {
+        if (wakeLockScheduler != null)
+        {
+            wakeLockScheduler.stop();
+            wakeLockScheduler = null;
+        }
+    }
+    
+    
+    /**
+     * @return the ms the wake lock has been held since jetty was started
+     */
+    public long getWakeLockHeldTime ()
+    {
+        WakeLockScheduler scheduler = wakeLockScheduler;
+        return (scheduler == null ? 0 : scheduler.getHeldTime());
+    }
+    
+    
+    /**
+     * @return the number of requests served since jetty was started
+     */
+    public int getRequestsServed ()
+    {
+        WakeLockScheduler scheduler = wakeLockScheduler;
+        return (scheduler == null ? 0 : scheduler.getRequestsServed());
+    }
+    
+
     public void onLowMemory()
     {
         Log.i(TAG, "Low on memory");
@@ -497,51 +830,210 @@ public class IJettyService extends Service
     {
         if (server != null)
         {
+            Connector[] connectors = newConnectors();
+            for (int i=0;i<connectors.length;i++)
+                server.addConnector(connectors[i]);
+        }
+    }
+    
+    /**
+     * Create, but do not start, the connectors described by the current preferences.
+     * 
+     * @return the new connectors
+     */
+    protected Connector[] newConnectors()
+    {
+        List<Connector> connectors = new ArrayList<Connector>();
+        if (_useNIO)
+        {
+            SelectChannelConnector nioConnector = new SelectChannelConnector();
+            nioConnector.setUseDirectBuffers(_profile.isUseDirectBuffers());
+            nioConnector.setPort(_port);
+            configureConnector(nioConnector);
+            connectors.add(nioConnector);
+            Log.i(TAG, "Configured "+SelectChannelConnector.class.getName()+" on port "+_port);
+        }
+        else
+        {
+            SocketConnector bioConnector = new SocketConnector();
+            bioConnector.setPort(_port);
+            configureConnector(bioConnector);
+            connectors.add(bioConnector);
+            Log.i(TAG, "Configured "+SocketConnector.class.getName()+" on port "+_port);
+        }
+
+        if (_useSSL)
+        {
+            SslContextFactory sslContextFactory = new SslContextFactory();
+            sslContextFactory.setKeyStore(_keystoreFile);
+            sslContextFactory.setTrustStore(_truststoreFile);
+            sslContextFactory.setKeyStorePassword(_keystorePassword);
+            sslContextFactory.setKeyManagerPassword(_keymgrPassword);
+            sslContextFactory.setKeyStoreType("bks");
+            sslContextFactory.setTrustStorePassword(_truststorePassword);
+            sslContextFactory.setTrustStoreType("bks");
+
+            //TODO SslSelectChannelConnector does not work on android 1.6, but does work on android 2.2
             if (_useNIO)
             {
-                SelectChannelConnector nioConnector = new SelectChannelConnector();
-                nioConnector.setUseDirectBuffers(false);
-                nioConnector.setPort(_port);
-                server.addConnector(nioConnector);
-                Log.i(TAG, "Configured "+SelectChannelConnector.class.getName()+" on port "+_port);
+                SslSelectChannelConnector sslConnector = new SslSelectChannelConnector(sslContextFactory);
+                sslConnector.setPort(_sslPort);
+                configureConnector(sslConnector);
+                connectors.add(sslConnector);
+                Log.i(TAG, "Configured "+sslConnector.getClass().getName()+" on port "+_sslPort); 
             }
             else
             {
-                SocketConnector bioConnector = new SocketConnector();
-                bioConnector.setPort(_port);
-                server.addConnector(bioConnector);
-                Log.i(TAG, "Configured "+SocketConnector.class.getName()+" on port "+_port);
+                SslSocketConnector sslConnector = new SslSocketConnector(sslContextFactory);
+                sslConnector.setPort(_sslPort);
+                configureConnector(sslConnector);
+                connectors.add(sslConnector);
+                Log.i(TAG, "Configured "+sslConnector.getClass().getName()+" on port "+_sslPort); 
             }
+        }
+        return connectors.toArray(new Connector[connectors.size()]);
+    }
+    
+    /**
+     * Apply the performance profile to a connector.
+     * 
+     * @param connector
+     */
+    protected void configureConnector(AbstractConnector connector)
+    {
+        connector.setAcceptors(_profile.getAcceptors());
+        connector.setMaxIdleTime(_profile.getMaxIdleTime());
+        connector.setLowResourcesMaxIdleTime(_profile.getLowResourcesMaxIdleTime());
+    }
+    
+    protected void configureThreadPool()
+    {
+        if (server != null)
+        {
+            QueuedThreadPool threadPool = new QueuedThreadPool();
+            threadPool.setMinThreads(_profile.getMinThreads());
+            threadPool.setMaxThreads(_profile.getMaxThreads());
+            server.setThreadPool(threadPool);
+            Log.i(TAG, "Configured thread pool "+_profile.getMinThreads()+"-"+_profile.getMaxThreads());
+        }
+    }
+    
+    /**
+     * Replace the connectors of the running server with ones built from the
+     * current preferences. The deployed contexts are not touched, so this only
+     * costs the time to open the new server sockets.
+     * 
+     * New connectors are started before the old ones are stopped, except where
+     * an old connector holds the port a new one needs to bind. If a new
+     * connector cannot be started, eg because its port is in use, the new
+     * connectors are stopped, the old ones are put back and the previous
+     * preferences are kept, so that a later change is tried again.
+     * 
+     * @return true if the connectors were replaced, false if the server is not
+     * running or the connector preferences have not changed
+     * @throws Exception
+     */
+    protected synchronized boolean reconfigureConnectors() throws Exception
+    {
+        if (server == null || !server.isStarted())
+            return false;
 
-            if (_useSSL)
+        String previous = _connectorPreferences;
+        if (readConnectorPreferences().equals(previous))
+            return false;
+
+        long start = System.currentTimeMillis();
+        List<Connector> oldConnectors = new ArrayList<Connector>();
+        if (server.getConnectors() != null)
+            oldConnectors.addAll(Arrays.asList(server.getConnectors()));
+
+        Connector[] newConnectors = newConnectors();
+        List<Connector> started = new ArrayList<Connector>();
+        List<Connector> replaced = new ArrayList<Connector>();
+        try
+        {
+            //bind the ports no old connector holds first, so a port in use fails before anything is stopped
+            for (int i=0;i<newConnectors.length;i++)
             {
-                SslContextFactory sslContextFactory = new SslContextFactory();
-                sslContextFactory.setKeyStore(_keystoreFile);
-                sslContextFactory.setTrustStore(_truststoreFile);
-                sslContextFactory.setKeyStorePassword(_keystorePassword);
-                sslContextFactory.setKeyManagerPassword(_keymgrPassword);
-                sslContextFactory.setKeyStoreType("bks");
-                sslContextFactory.setTrustStorePassword(_truststorePassword);
-                sslContextFactory.setTrustStoreType("bks");
-
-                //TODO SslSelectChannelConnector does not work on android 1.6, but does work on android 2.2
-                if (_useNIO)
+                if (getConnector(oldConnectors, newConnectors[i].getPort()) == null)
                 {
-                    SslSelectChannelConnector sslConnector = new SslSelectChannelConnector(sslContextFactory);
-                    sslConnector.setPort(_sslPort);
-                    server.addConnector(sslConnector);
-                    Log.i(TAG, "Configured "+sslConnector.getClass().getName()+" on port "+_sslPort); 
+                    server.addConnector(newConnectors[i]);
+                    started.add(newConnectors[i]);
+                    newConnectors[i].start();
                 }
-                else
+            }
+
+            for (int i=0;i<newConnectors.length;i++)
+            {
+                if (started.contains(newConnectors[i]))
+                    continue;
+
+                Connector old;
+                while ((old = getConnector(oldConnectors, newConnectors[i].getPort())) != null)
                 {
-                    SslSocketConnector sslConnector = new SslSocketConnector(sslContextFactory);
-                    sslConnector.setPort(_sslPort);
-                    server.addConnector(sslConnector);
-                    Log.i(TAG, "Configured "+sslConnector.getClass().getName()+" on port "+_sslPort); 
+                    oldConnectors.remove(old);
+                    replaced.add(old);
+                    old.stop();
+                    server.removeConnector(old);
+                }
+                server.addConnector(newConnectors[i]);
+                started.add(newConnectors[i]);
+                newConnectors[i].start();
+            }
+        }
+        catch (Exception e)
+        {
+            Log.w(TAG, "Unable to start new connectors, restoring the old ones", e);
+            for (Connector connector:started)
+            {
+                try
+                {
+                    connector.stop();
+                }
+                catch (Exception x)
+                {
+                    Log.w(TAG, "Error stopping "+connector, x);
+                }
+                server.removeConnector(connector);
+            }
+            for (Connector old:replaced)
+            {
+                server.addConnector(old);
+                try
+                {
+                    old.start();
+                }
+                catch (Exception x)
+                {
+                    Log.e(TAG, "Unable to restart "+old, x);
                 }
-               
             }
+            _connectorPreferences = previous;
+            throw e;
+        }
+
+        for (Connector old:oldConnectors)
+        {
+            old.stop();
+            server.removeConnector(old);
         }
+        Log.i(TAG, "Reconfigured connectors in "+(System.currentTimeMillis()-start)+"ms");
+        return true;
+    }
+    
+    /**
+     * @param connectors
+     * @param port
+     * @return the connector listening on the port, or null if there is none
+     */
+    private Connector getConnector (List<Connector> connectors, int port)
+    {
+        for (Connector connector:connectors)
+        {
+            if (connector.getPort() == port)
+                return connector;
+        }
+        return null;
     }
     
     protected void configureHandlers()
@@ -551,7 +1043,19 @@ public class IJettyService extends Service
             HandlerCollection handlers = new HandlerCollection();
             contexts = new ContextHandlerCollection();
             handlers.setHandlers(new Handler[] {contexts, new DefaultHandler()});
-            server.setHandler(handlers);
+            
+            //the status and log pages are served ahead of any context that could shadow them
+            HandlerList list = new HandlerList();
+            list.setHandlers(new Handler[] {new StatusHandler(_profile), new LogLevelHandler(), handlers});
+            
+            //count in-flight requests so that a stop can wait for them to drain
+            stats = new StatisticsHandler();
+            stats.setHandler(list);
+            
+            //hold the wake lock only while requests are being handled
+            WakeLockHandler wakeLockHandler = new WakeLockHandler(wakeLockScheduler);
+            wakeLockHandler.setHandler(stats);
+            server.setHandler(wakeLockHandler);
         }
     }
     
@@ -559,11 +1063,28 @@ public class IJettyService extends Service
     {
         AndroidWebAppDeployer staticDeployer =  new AndroidWebAppDeployer();
         AndroidContextDeployer contextDeployer = new AndroidContextDeployer();
+        
+        //both deployers, and the LocalBinder, deploy through the same deployer
+        deployer = new AndroidDeployer(contexts);
+        staticDeployer.setDeployer(deployer);
+        contextDeployer.setDeployer(deployer);
+        this.webAppDeployer = staticDeployer;
+        this.contextDeployer = contextDeployer;
      
         File jettyDir = IJetty.__JETTY_DIR;
         
         if (jettyDir.exists())
         {
+            //remember which webapps have no tlds, so they can skip the tld scan
+            TagLibScanCache tagLibScanCache = new TagLibScanCache(new File(new File(jettyDir, IJetty.__TMP_DIR), "tld-scan.properties"));
+            staticDeployer.setTagLibScanCache(tagLibScanCache);
+            contextDeployer.setTagLibScanCache(tagLibScanCache);
+            
+            //deploy what was deployed last time without scanning first
+            DeploymentManifest manifest = new DeploymentManifest(new File(new File(jettyDir, IJetty.__TMP_DIR), "deployments.properties"));
+            staticDeployer.setManifest(manifest);
+            contextDeployer.setManifest(manifest);
+            
             // If the webapps dir exists, start the static webapp deployer
             if (new File(jettyDir, IJetty.__WEBAPP_DIR).exists())
             {
@@ -574,16 +1095,20 @@ public class IJettyService extends Service
                 staticDeployer.setAttribute(ANDROID_CONTEXT_ATTRIBUTE, (Context) IJettyService.this);
                 staticDeployer.setConfigurationClasses(__configurationClasses);
                 staticDeployer.setAllowDuplicates(false);
+                for (Map.Entry<String,String> entry : _profile.getInitParameters().entrySet())
+                    staticDeployer.setInitParameter(entry.getKey(), entry.getValue());
             }          
            
             // Use a ContextDeploy so we can hot-deploy webapps and config at startup.
             if (new File(jettyDir, IJetty.__CONTEXTS_DIR).exists())
             {
-                contextDeployer.setScanInterval(10); // Don't eat the battery
+                contextDeployer.setScanInterval(_profile.getScanInterval()); // Don't eat the battery
                 contextDeployer.setConfigurationDir(IJetty.__JETTY_DIR+"/"+IJetty.__CONTEXTS_DIR);                
                 contextDeployer.setAttribute(CONTENT_RESOLVER_ATTRIBUTE, getContentResolver());
                 contextDeployer.setAttribute(ANDROID_CONTEXT_ATTRIBUTE, (Context) IJettyService.this);             
                 contextDeployer.setContexts(contexts);
+                for (Map.Entry<String,String> entry : _profile.getInitParameters().entrySet())
+                    contextDeployer.setInitParameter(entry.getKey(), entry.getValue());
             }
             
             if (server != null)
@@ -600,13 +1125,38 @@ public class IJettyService extends Service
         }
     }
     
+    protected void configureLogging ()
+    {
+        //levels of individual loggers, eg org.eclipse.jetty.deploy.LEVEL=DEBUG
+        Properties properties = AndroidLog.configure(new File(IJetty.__JETTY_DIR+"/"+IJetty.__ETC_DIR+"/jetty-logging.properties"));
+        
+        //logcat does not keep much, so optionally keep the log on the sd card too
+        FileLogAppender appender = null;
+        if (Boolean.valueOf(properties.getProperty(FileLogAppender.__ENABLED, "false").trim()))
+        {
+            try
+            {
+                appender = FileLogAppender.newAppender(new File(IJetty.__JETTY_DIR, IJetty.__LOG_DIR), properties);
+                appender.start();
+            }
+            catch (IllegalArgumentException e)
+            {
+                Log.w(TAG, "Bad log file settings", e);
+                appender = null;
+            }
+        }
+        FileLogAppender old = AndroidLog.setAppender(appender);
+        if (old != null)
+            old.stop();
+    }
+    
     public void configureRealm () throws IOException
     {
         File realmProps = new File(IJetty.__JETTY_DIR+"/"+IJetty.__ETC_DIR+"/realm.properties");
         if (realmProps.exists())
         {
             HashLoginService realm = new HashLoginService("Console", IJetty.__JETTY_DIR+"/"+IJetty.__ETC_DIR+"/realm.properties");
-            realm.setRefreshInterval(0);
+            realm.setRefreshInterval(_profile.getRealmRefreshInterval());
             if (_consolePassword != null)
                 realm.putUser("admin", Credential.getCredential(_consolePassword), new String[]{"admin"}); //set the admin password for console webapp
             server.addBean(realm);
@@ -623,8 +1173,10 @@ public class IJettyService extends Service
         //ipv6 workaround for froyo
         System.setProperty("java.net.preferIPv6Addresses", "false");
         
+        configureLogging();
         server = newServer();
         
+        configureThreadPool();
         configureConnectors();
         configureHandlers();
         configureDeployers();
@@ -642,14 +1194,77 @@ public class IJettyService extends Service
         HttpGenerator.setServerVersion("i-jetty "+pi.versionName);
     }
 
-    protected void stopJetty() throws Exception
+    /**
+     * Stop accepting new connections and requests, then wait up to the
+     * configured graceful timeout for the requests already being handled
+     * to complete. Requests still active when the timeout expires will
+     * be cut off when the server is stopped.
+     * 
+     * @throws InterruptedException
+     */
+    protected void drainRequests () throws InterruptedException
+    {
+        _drained = 0;
+        _aborted = 0;
+        
+        if (_gracefulTimeout <= 0 || stats == null)
+            return;
+        
+        Connector[] connectors = server.getConnectors();
+        for (int i=0; connectors != null && i<connectors.length; i++)
+        {
+            try
+            {
+                connectors[i].close();
+            }
+            catch (IOException e)
+            {
+                Log.w(TAG, "Error closing "+connectors[i], e);
+            }
+        }
+        
+        //contexts will reply 503 to any further requests on open connections
+        Handler[] graceful = server.getChildHandlersByClass(Server.Graceful.class);
+        for (int i=0; graceful != null && i<graceful.length; i++)
+            ((Server.Graceful)graceful[i]).setShutdown(true);
+        
+        int active = stats.getRequestsActive();
+        Log.i(TAG, "Draining "+active+" active requests for up to "+_gracefulTimeout+"s");
+        
+        long end = System.currentTimeMillis() + (_gracefulTimeout * 1000L);
+        while (stats.getRequestsActive() > 0 && System.currentTimeMillis() < end)
+            Thread.sleep(100);
+        
+        _aborted = stats.getRequestsActive();
+        _drained = Math.max(0, active - _aborted);
+        Log.i(TAG, "Drained "+_drained+" requests, aborting "+_aborted);
+    }
+    
+    /**
+     * Synchronized with {@link #reconfigureConnectors()}, so connectors are
+     * never being replaced while the server stops.
+     * 
+     * @throws Exception
+     */
+    protected synchronized void stopJetty() throws Exception
     {
         try
         {
             Log.i(TAG, "Jetty stopping");
+            drainRequests();
             server.stop();
             Log.i(TAG, "Jetty server stopped");
+            AndroidLog.stopSweeper();
+            FileLogAppender appender = AndroidLog.setAppender(null);
+            if (appender != null)
+                appender.stop();
+            Log.i(TAG, "Reusing webdefault.xml saved "+AndroidWebXmlConfiguration.getSavedTime()+"ms of parsing");
+            AndroidWebXmlConfiguration.clear();
             server = null;
+            stats = null;
+            deployer = null;
+            webAppDeployer = null;
+            contextDeployer = null;
             __resources = null;
             __isRunning = false;
         }
@@ -15,19 +15,35 @@
 
 package org.mortbay.ijetty;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.MalformedURLException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
-import org.eclipse.jetty.util.resource.JarResource;
-import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.URIUtil;
+import org.mortbay.ijetty.util.DownloadProgress;
+import org.mortbay.ijetty.util.DownloadRecord;
 
 import android.util.Log;
 
@@ -35,83 +51,1078 @@ public class Installer
 { 
     private static final String TAG = "Jetty.install";
     
+    /**
+     * Streamed entries up to this size are held in memory until it is known
+     * whether they have changed.
+     */
+    public static final int __MAX_BUFFERED = 256*1024;
+    
+    /**
+     * The entry in a delta archive that describes it
+     */
+    public static final String __DELTA_PROPERTIES = "META-INF/ijetty-delta.properties";
+    public static final String __DIFF_SUFFIX = ".ijdiff";
+    public static final int __DIFF_MAGIC = 0x494A4431; //IJD1
+    
 
                                         
     
-    public static void install (File warFile, String contextPath, File webappsDir, String webappName, boolean createContextXml) 
-    throws MalformedURLException, IOException
+    /**
+     * ContextControl
+     *
+     * Takes the context that serves a webapp out of service while the 
+     * installer changes the files of the webapp, so that no request is ever
+     * served from a mix of old and new files.
+     */
+    public interface ContextControl
+    {
+        /**
+         * @param webappName
+         * @return true if a context was serving the webapp and has been stopped
+         * @throws Exception
+         */
+        public boolean stop (String webappName) throws Exception;
+        
+        /**
+         * Serve the webapp again, once its files and context xml file are in place.
+         * @param webappName
+         * @throws Exception
+         */
+        public void start (String webappName) throws Exception;
+    }
+    
+    
+    /**
+     * Result
+     *
+     * What an install wrote to the webapp, and what it left alone.
+     */
+    public static class Result
+    {
+        public int written;
+        public int skipped;
+        public int deleted;
+        public long bytesWritten;
+        public long bytesSkipped;
+        
+        public String toString()
+        {
+            return "wrote "+written+" entries ("+bytesWritten+" bytes), skipped "+skipped+" unchanged entries ("+bytesSkipped+" bytes), deleted "+deleted+" entries";
+        }
+    }
+    
+    
+    public static Result install (File warFile, String contextPath, File webappsDir, String webappName, boolean createContextXml) 
+    throws IOException
+    {
+        return install(warFile, contextPath, webappsDir, webappName, createContextXml, true);
+    }
+    
+    
+    /**
+     * Unpack a war into webapps/webappName.
+     * 
+     * Changed entries are first unpacked to a staging dir, and only moved 
+     * into the webapp once the whole war has been read, so the webapp is never
+     * left half updated by a bad war. The context xml file is written last, so
+     * the deployer only ever (re)deploys the complete tree. Given a 
+     * {@link ContextControl}, the context serving the webapp is stopped while
+     * the staged entries are moved in.
+     * 
+     * @param warFile
+     * @param contextPath
+     * @param webappsDir
+     * @param webappName
+     * @param createContextXml
+     * @param incremental if true, only the entries whose crc or size differ from
+     * the last install are written, and those no longer in the war are deleted
+     * @return what was written and skipped
+     * @throws IOException
+     */
+    public static Result install (File warFile, String contextPath, File webappsDir, String webappName, boolean createContextXml, boolean incremental) 
+    throws IOException
+    {
+        return install(warFile, contextPath, webappsDir, webappName, createContextXml, incremental, null);
+    }
+    
+    
+    /**
+     * As {@link #install(File, String, File, String, boolean, boolean)},
+     * reporting each entry to the progress of the download.
+     * 
+     * @param progress may be null
+     */
+    public static Result install (File warFile, String contextPath, File webappsDir, String webappName, boolean createContextXml, boolean incremental, DownloadProgress progress) 
+    throws IOException
+    {
+        return install(warFile, contextPath, webappsDir, webappName, createContextXml, incremental, progress, null);
+    }
+    
+    
+    /**
+     * As {@link #install(File, String, File, String, boolean, boolean, DownloadProgress)},
+     * stopping the context that serves the webapp while the changes are committed.
+     * 
+     * @param control may be null
+     */
+    public static Result install (File warFile, String contextPath, File webappsDir, String webappName, boolean createContextXml, boolean incremental, DownloadProgress progress, ContextControl control) 
+    throws IOException
     {
         File webapp = new File (webappsDir, webappName);
-        if (!webapp.exists())
-            webapp.mkdirs();
+        Properties oldEntries = (incremental ? loadEntries(webappName) : new Properties());
+        Properties newEntries = new Properties();
+        List<String> staged = new ArrayList<String>();
+        File staging = getStagingDir(webappsDir, webappName);
+        Result result = new Result();
         
-        Resource war = Resource.newResource("jar:"+warFile.toURL()+"!/");
-        ((JarResource)war).copyTo(webapp);
-        if (createContextXml)
-            installContextFile(webappName, contextPath);
+        //the zip central directory has the crc and size of every entry, so
+        //unchanged entries need not even be read
+        ZipFile zip = new ZipFile(warFile);
+        try
+        {
+            if (progress != null)
+                progress.installing(zip.size());
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements())
+            {
+                ZipEntry entry = entries.nextElement();
+                String entryName = entry.getName();
+                if (progress != null)
+                    progress.installed(entry.getSize());
+                if (entry.isDirectory())
+                {
+                    //made when the entries are committed
+                    resolve(webapp, entryName);
+                    staged.add(entryName);
+                    continue;
+                }
+                
+                newEntries.setProperty(entryName, Long.toHexString(entry.getCrc())+","+entry.getSize());
+                if (isUnchanged(oldEntries, webapp, entryName, entry.getCrc(), entry.getSize()))
+                {
+                    result.skipped++;
+                    result.bytesSkipped += entry.getSize();
+                    continue;
+                }
+                
+                InputStream in = zip.getInputStream(entry);
+                try
+                {
+                    File file = resolve(staging, entryName);
+                    file.getParentFile().mkdirs();
+                    FileOutputStream fout = new FileOutputStream(file);
+                    try
+                    {
+                        IO.copy(in, fout);
+                    }
+                    finally
+                    {
+                        IO.close(fout);
+                    }
+                    if (entry.getTime()>=0)
+                        file.setLastModified(entry.getTime());
+                }
+                finally
+                {
+                    IO.close(in);
+                }
+                staged.add(entryName);
+                result.written++;
+                result.bytesWritten += entry.getSize();
+            }
+        }
+        catch (IOException e)
+        {
+            delete(staging);
+            throw e;
+        }
+        finally
+        {
+            zip.close();
+        }
+        
+        commit(staging, webappsDir, webappName, contextPath, createContextXml, staged, oldEntries, newEntries, result, control);
+        Log.i(TAG, "Installed "+webappName+": "+result);
+        return result;
+    }
+    
+    
+    public static Result install (InputStream warStream, String contextPath, File webappsDir, String webappName, boolean createContextXml)
+    {
+        return install(warStream, contextPath, webappsDir, webappName, createContextXml, true);
+    }
+    
+    
+    /**
+     * Unpack a war stream into webapps/webappName, staging the changed entries
+     * as for {@link #install(File, String, File, String, boolean, boolean)}.
+     * 
+     * Streamed entries do not always carry their crc before their data, so 
+     * entries up to {@link #__MAX_BUFFERED} bytes are read into memory and only
+     * written out if they turn out to have changed.
+     * 
+     * The changes are only committed once the stream has been read to its end
+     * without error, so a stream that fails or is cut short installs nothing.
+     * 
+     * @param warStream
+     * @param contextPath
+     * @param webappsDir
+     * @param webappName
+     * @param createContextXml
+     * @param incremental
+     * @return what was written and skipped, or null if the war could not be installed
+     */
+    public static Result install (InputStream warStream, String contextPath, File webappsDir, String webappName, boolean createContextXml, boolean incremental)
+    {
+        return install(warStream, contextPath, webappsDir, webappName, createContextXml, incremental, null);
+    }
+    
+    
+    /**
+     * As {@link #install(InputStream, String, File, String, boolean, boolean)},
+     * reporting each entry to the progress of the download.
+     * 
+     * @param progress may be null
+     */
+    public static Result install (InputStream warStream, String contextPath, File webappsDir, String webappName, boolean createContextXml, boolean incremental, DownloadProgress progress)
+    {
+        return install(warStream, contextPath, webappsDir, webappName, createContextXml, incremental, progress, null);
     }
     
     
-    public static void install (InputStream warStream, String contextPath, File webappsDir, String webappName, boolean createContextXml)
+    /**
+     * As {@link #install(InputStream, String, File, String, boolean, boolean, DownloadProgress)},
+     * stopping the context that serves the webapp while the changes are committed.
+     * 
+     * @param control may be null
+     */
+    public static Result install (InputStream warStream, String contextPath, File webappsDir, String webappName, boolean createContextXml, boolean incremental, DownloadProgress progress, ContextControl control)
     {
         File webapp = new File (webappsDir, webappName);
         if (warStream != null)
         {
+            File staging = getStagingDir(webappsDir, webappName);
             try
             {
+                Properties oldEntries = (incremental ? loadEntries(webappName) : new Properties());
+                Properties newEntries = new Properties();
+                List<String> staged = new ArrayList<String>();
+                Result result = new Result();
+                
+                //entries are only known as they arrive
+                if (progress != null)
+                    progress.installing(-1);
                 JarInputStream jin = new JarInputStream(warStream);
                 JarEntry entry;
                 while((entry=jin.getNextJarEntry())!=null)
                 {
                     String entryName = entry.getName();             
-                    File file=new File(webapp,entryName);
+                    if (progress != null)
+                        progress.installed(Math.max(0, entry.getSize()));
                     if (entry.isDirectory())
                     {
-                        // Make directory
-                        if (!file.exists())
-                            file.mkdirs();
+                        //made when the entries are committed
+                        resolve(webapp, entryName);
+                        staged.add(entryName);
+                        continue;
                     }
-                    else
+                    
+                    //the crc is known up front if the entry has no data descriptor
+                    if (entry.getCrc()>=0 && isUnchanged(oldEntries, webapp, entryName, entry.getCrc(), entry.getSize()))
+                    {
+                        newEntries.setProperty(entryName, Long.toHexString(entry.getCrc())+","+entry.getSize());
+                        result.skipped++;
+                        result.bytesSkipped += entry.getSize();
+                        continue;
+                    }
+                    
+                    File file = resolve(staging, entryName);
+                    CRC32 crc = new CRC32();
+                    byte[] content = read(jin, file, crc);
+                    long size = (content == null ? file.length() : content.length);
+                    newEntries.setProperty(entryName, Long.toHexString(crc.getValue())+","+size);
+                    if (isUnchanged(oldEntries, webapp, entryName, crc.getValue(), size))
+                    {
+                        if (content == null)
+                            file.delete();
+                        result.skipped++;
+                        result.bytesSkipped += size;
+                        continue;
+                    }
+                    
+                    if (content != null)
                     {
-                        // make directory (some jars don't list dirs)
-                        File dir = new File(file.getParent());
-                        if (!dir.exists())
-                            dir.mkdirs();
-
                         // Make file
+                        file.getParentFile().mkdirs();
                         FileOutputStream fout = null;
                         try
                         {
                             fout = new FileOutputStream(file);
-                            IO.copy(jin,fout);
+                            fout.write(content);
                         }
                         finally
                         {
                             IO.close(fout);
                         }
-
-                        // touch the file.
-                        if (entry.getTime()>=0)
-                            file.setLastModified(entry.getTime());
                     }
+
+                    // touch the file.
+                    if (entry.getTime()>=0)
+                        file.setLastModified(entry.getTime());
+                    staged.add(entryName);
+                    result.written++;
+                    result.bytesWritten += size;
                 }
+                if (result.written+result.skipped == 0)
+                    throw new IOException("No entries in war");
+                
+                //the entries end where the central directory starts, not at the end 
+                //of the war: read on to the end, so that nothing is committed unless
+                //all of the war arrived
+                byte[] buf = new byte[4096];
+                while (warStream.read(buf) >= 0)
+                    continue;
                 IO.close(jin);
 
-                if (createContextXml)
-                    installContextFile (webappName, contextPath);
+                commit(staging, webappsDir, webappName, contextPath, createContextXml, staged, oldEntries, newEntries, result, control);
+                Log.i(TAG, "Installed "+webappName+": "+result);
+                return result;
             }
             catch (Exception e)
             {
+                delete(staging);
                 Log.e(TAG, "Error inflating console.war", e);
             }
         }
         else
             Log.e(TAG, "No war");
+        return null;
+    }
+    
+    
+    /**
+     * @param webappName
+     * @return true if the webapp was installed unpacked, with a record of its
+     * entries that a delta can be applied to
+     */
+    public static boolean hasEntries (String webappName)
+    {
+        return getEntriesFile(webappName).exists();
+    }
+    
+    
+    /**
+     * Apply a delta archive to an unpacked webapp.
+     * 
+     * A delta is a zip with a {@link #__DELTA_PROPERTIES} entry that lists,
+     * for each entry that has changed, its new crc and size as
+     * <code>entry.&lt;name&gt;=crc,size</code>; the entries to delete as
+     * <code>delete.&lt;n&gt;=name</code>; and for each entry that is sent as a
+     * block diff, the crc and size of the installed version it applies to as
+     * <code>base.&lt;name&gt;=crc,size</code>. A changed entry is either sent
+     * whole under its own name, or as a block diff under its name plus 
+     * {@link #__DIFF_SUFFIX}.
+     * 
+     * The delta is checked against the installed entries, and every entry it
+     * produces against its crc, before anything in the webapp is changed. The 
+     * changes are then committed as for an incremental install, with the 
+     * context stopped if a {@link ContextControl} is given. Entry names
+     * that would resolve outside the webapp are rejected.
+     * 
+     * @param deltaFile
+     * @param contextPath
+     * @param webappsDir
+     * @param webappName
+     * @param createContextXml
+     * @return what was written and skipped
+     * @throws IOException if the delta does not apply to the installed webapp
+     */
+    public static Result installDelta (File deltaFile, String contextPath, File webappsDir, String webappName, boolean createContextXml) 
+    throws IOException
+    {
+        return installDelta(deltaFile, contextPath, webappsDir, webappName, createContextXml, null);
+    }
+    
+    
+    /**
+     * As {@link #installDelta(File, String, File, String, boolean)},
+     * stopping the context that serves the webapp while the changes are committed.
+     * 
+     * @param control may be null
+     */
+    public static Result installDelta (File deltaFile, String contextPath, File webappsDir, String webappName, boolean createContextXml, ContextControl control) 
+    throws IOException
+    {
+        File webapp = new File (webappsDir, webappName);
+        Properties oldEntries = loadEntries(webappName);
+        if (oldEntries.isEmpty() || !webapp.isDirectory())
+            throw new IOException("No installed entries for "+webappName);
+        
+        Properties newEntries = new Properties();
+        newEntries.putAll(oldEntries);
+        List<String> staged = new ArrayList<String>();
+        File staging = getStagingDir(webappsDir, webappName);
+        Result result = new Result();
+        
+        ZipFile zip = new ZipFile(deltaFile);
+        try
+        {
+            ZipEntry propertiesEntry = zip.getEntry(__DELTA_PROPERTIES);
+            if (propertiesEntry == null)
+                throw new IOException("Not a delta: "+deltaFile);
+            Properties delta = new Properties();
+            InputStream in = zip.getInputStream(propertiesEntry);
+            try
+            {
+                delta.load(in);
+            }
+            finally
+            {
+                IO.close(in);
+            }
+            
+            //a diff only applies to the version it was made from
+            Enumeration<?> keys = delta.propertyNames();
+            while (keys.hasMoreElements())
+            {
+                String key = (String)keys.nextElement();
+                if (!key.startsWith("base."))
+                    continue;
+                String entryName = key.substring(5);
+                String[] base = delta.getProperty(key).split(",");
+                if (!isUnchanged(oldEntries, webapp, entryName, Long.parseLong(base[0], 16), Long.parseLong(base[1])))
+                    throw new IOException("Delta does not apply to installed "+entryName);
+            }
+            
+            keys = delta.propertyNames();
+            while (keys.hasMoreElements())
+            {
+                String key = (String)keys.nextElement();
+                if (key.startsWith("delete."))
+                {
+                    String entryName = delta.getProperty(key);
+                    if (!isSafe(entryName))
+                        throw new IOException("Bad entry name "+entryName);
+                    newEntries.remove(entryName);
+                }
+                else if (key.startsWith("entry."))
+                {
+                    String entryName = key.substring(6);
+                    String[] target = delta.getProperty(key).split(",");
+                    long expectedCrc = Long.parseLong(target[0], 16);
+                    long expectedSize = Long.parseLong(target[1]);
+                    
+                    File file = resolve(staging, entryName);
+                    file.getParentFile().mkdirs();
+                    CRC32 crc = new CRC32();
+                    ZipEntry entry = zip.getEntry(entryName);
+                    ZipEntry diff = zip.getEntry(entryName+__DIFF_SUFFIX);
+                    if (entry != null)
+                        copy(zip, entry, file, crc);
+                    else if (diff != null)
+                    {
+                        if (delta.getProperty("base."+entryName) == null)
+                            throw new IOException("No base for diff of "+entryName);
+                        patch(resolve(webapp, entryName), zip, diff, file, crc);
+                    }
+                    else
+                        throw new IOException("Delta has no content for "+entryName);
+                    
+                    if (crc.getValue() != expectedCrc || file.length() != expectedSize)
+                        throw new IOException("Bad crc or size for "+entryName);
+                    if (entry != null && entry.getTime() >= 0)
+                        file.setLastModified(entry.getTime());
+                    
+                    newEntries.setProperty(entryName, Long.toHexString(expectedCrc)+","+expectedSize);
+                    staged.add(entryName);
+                    result.written++;
+                    result.bytesWritten += expectedSize;
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            delete(staging);
+            IOException bad = new IOException("Bad delta: "+e);
+            bad.initCause(e);
+            throw bad;
+        }
+        catch (IOException e)
+        {
+            delete(staging);
+            throw e;
+        }
+        finally
+        {
+            zip.close();
+        }
+        
+        result.skipped = newEntries.size() - staged.size();
+        commit(staging, webappsDir, webappName, contextPath, createContextXml, staged, oldEntries, newEntries, result, control);
+        Log.i(TAG, "Applied delta to "+webappName+": "+result);
+        return result;
+    }
+    
+    
+    private static void copy (ZipFile zip, ZipEntry entry, File file, CRC32 crc)
+    throws IOException
+    {
+        InputStream in = new CheckedInputStream(zip.getInputStream(entry), crc);
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(file);
+            IO.copy(in, out);
+        }
+        finally
+        {
+            IO.close(out);
+            IO.close(in);
+        }
+    }
+    
+    
+    /**
+     * Apply a block diff to an installed entry. A diff is the int 
+     * {@link #__DIFF_MAGIC}, then a list of ops: 'C' followed by a long 
+     * offset and an int length copies a block of the installed entry, 'D'
+     * followed by an int length and that many bytes adds new data, and 'E'
+     * ends the diff.
+     */
+    private static void patch (File base, ZipFile zip, ZipEntry diff, File file, CRC32 crc)
+    throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(zip.getInputStream(diff)));
+        RandomAccessFile old = new RandomAccessFile(base, "r");
+        OutputStream out = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(file)), crc);
+        try
+        {
+            if (in.readInt() != __DIFF_MAGIC)
+                throw new IOException("Not a diff: "+diff.getName());
+            
+            byte[] buf = new byte[8192];
+            while (true)
+            {
+                int op = in.read();
+                if (op == 'E')
+                    break;
+                if (op == 'C')
+                {
+                    old.seek(in.readLong());
+                    for (int remaining = in.readInt(); remaining > 0;)
+                    {
+                        int len = Math.min(remaining, buf.length);
+                        old.readFully(buf, 0, len);
+                        out.write(buf, 0, len);
+                        remaining -= len;
+                    }
+                }
+                else if (op == 'D')
+                {
+                    for (int remaining = in.readInt(); remaining > 0;)
+                    {
+                        int len = Math.min(remaining, buf.length);
+                        in.readFully(buf, 0, len);
+                        out.write(buf, 0, len);
+                        remaining -= len;
+                    }
+                }
+                else
+                    throw new IOException("Bad diff op "+op+" in "+diff.getName());
+            }
+        }
+        finally
+        {
+            IO.close(out);
+            old.close();
+            IO.close(in);
+        }
+    }
+    
+    
+    /**
+     * Read an entry, computing its crc. Small entries are held in memory, 
+     * larger ones are written to the staging file as they are read.
+     * 
+     * @return the content of the entry, or null if it was written to the file
+     */
+    private static byte[] read (InputStream in, File file, CRC32 crc)
+    throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream out = buffer;
+        long size = 0;
+        try
+        {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len=in.read(buf))!=-1)
+            {
+                crc.update(buf, 0, len);
+                size += len;
+                if (out == buffer && size > __MAX_BUFFERED)
+                {
+                    file.getParentFile().mkdirs();
+                    out = new FileOutputStream(file);
+                    buffer.writeTo(out);
+                }
+                out.write(buf, 0, len);
+            }
+        }
+        finally
+        {
+            if (out != buffer)
+                IO.close(out);
+        }
+        return (out == buffer ? buffer.toByteArray() : null);
+    }
+    
+    
+    private static boolean isUnchanged (Properties oldEntries, File webapp, String entryName, long crc, long size)
+    throws IOException
+    {
+        if (crc < 0 || size < 0)
+            return false;
+        
+        //also check the installed file, in case it was changed or removed since
+        File file = resolve(webapp, entryName);
+        return (Long.toHexString(crc)+","+size).equals(oldEntries.getProperty(entryName)) && file.exists() && file.length() == size;
+    }
+    
+    
+    /**
+     * @param entryName
+     * @return true if the name is a relative path that stays within the dir
+     * it is unpacked to
+     */
+    private static boolean isSafe (String entryName)
+    {
+        if (entryName.startsWith("/"))
+            return false;
+        String path = URIUtil.canonicalPath(entryName);
+        return path != null && !path.startsWith("..");
+    }
+    
+    
+    /**
+     * Resolve the name of an entry against the dir it is unpacked to.
+     * 
+     * @param dir
+     * @param entryName
+     * @return the file for the entry
+     * @throws IOException if the name would resolve to a file outside the dir
+     */
+    private static File resolve (File dir, String entryName)
+    throws IOException
+    {
+        if (!isSafe(entryName))
+            throw new IOException("Bad entry name "+entryName);
+        
+        //also catches links out of the dir
+        File file = new File(dir, entryName);
+        String root = dir.getCanonicalPath();
+        String path = file.getCanonicalPath();
+        if (!path.equals(root) && !path.startsWith(root+File.separator))
+            throw new IOException("Entry "+entryName+" is outside "+dir);
+        return file;
+    }
+    
+    
+    /**
+     * Commit the staged entries to the webapp, record its entries and write
+     * its context xml file, with the context that serves the webapp stopped
+     * if there is a control. The context is started again whether or not the
+     * commit succeeds, so it serves either the whole new tree, or the whole
+     * old one that a failed commit puts back.
+     */
+    private static void commit (File staging, File webappsDir, String webappName, String contextPath, boolean createContextXml, 
+                                List<String> staged, Properties oldEntries, Properties newEntries, Result result, ContextControl control)
+    throws IOException
+    {
+        boolean stopped;
+        try
+        {
+            stopped = stop(control, webappName);
+        }
+        catch (IOException e)
+        {
+            delete(staging);
+            throw e;
+        }
+        
+        try
+        {
+            File webapp = new File(webappsDir, webappName);
+            webapp.mkdirs();
+            moveStaged(staging, webapp, staged, oldEntries, newEntries, result);
+            saveEntries(webappName, newEntries);
+            
+            //only now that the unpacked webapp is complete, point the context 
+            //away from any packed copy of it, and remove that
+            File packed = new File(webappsDir, webappName+".war");
+            if (createContextXml || (packed.exists() && getContextFile(webappName).exists()))
+                installContextFile(webappName, contextPath);
+            if (packed.exists() && !packed.delete())
+                Log.w(TAG, "Unable to delete "+packed);
+        }
+        finally
+        {
+            if (stopped)
+                start(control, webappName);
+        }
+    }
+    
+    
+    /**
+     * @return true if the control stopped a context serving the webapp
+     * @throws IOException if the context could not be stopped
+     */
+    private static boolean stop (ContextControl control, String webappName)
+    throws IOException
+    {
+        if (control == null)
+            return false;
+        try
+        {
+            return control.stop(webappName);
+        }
+        catch (Exception e)
+        {
+            IOException stop = new IOException("Unable to stop "+webappName);
+            stop.initCause(e);
+            throw stop;
+        }
+    }
+    
+    
+    private static void start (ContextControl control, String webappName)
+    {
+        try
+        {
+            control.start(webappName);
+        }
+        catch (Exception e)
+        {
+            //the files are in place, so the scanner deploys it when the context xml next changes
+            Log.e(TAG, "Unable to start "+webappName, e);
+        }
+    }
+    
+    
+    /**
+     * Move the staged entries into the webapp, and delete the entries that 
+     * were installed last time but are no longer in the war. Each move is a 
+     * rename within the webapps dir, so this is quick however big the entries.
+     * Staged names ending in "/" are dirs, which are made rather than moved.
+     * 
+     * The files that are replaced or deleted are first moved aside to a backup
+     * dir, so if any move fails the webapp is put back as it was.
+     */
+    private static void moveStaged (File staging, File webapp, List<String> staged, Properties oldEntries, Properties newEntries, Result result)
+    throws IOException
+    {
+        File backup = getBackupDir(webapp);
+        List<String> moved = new ArrayList<String>();
+        List<String> replaced = new ArrayList<String>();
+        boolean restored = true;
+        try
+        {
+            for (String entryName : staged)
+            {
+                File file = resolve(webapp, entryName);
+                if (entryName.endsWith("/"))
+                {
+                    file.mkdirs();
+                    continue;
+                }
+                if (file.exists())
+                {
+                    move(file, resolve(backup, entryName));
+                    replaced.add(entryName);
+                }
+                file.getParentFile().mkdirs();
+                move(resolve(staging, entryName), file);
+                moved.add(entryName);
+            }
+
+            int deleted = 0;
+            Enumeration<?> names = oldEntries.propertyNames();
+            while (names.hasMoreElements())
+            {
+                String entryName = (String)names.nextElement();
+                if (newEntries.getProperty(entryName) != null)
+                    continue;
+                File file = resolve(webapp, entryName);
+                if (file.exists())
+                {
+                    move(file, resolve(backup, entryName));
+                    replaced.add(entryName);
+                    deleted++;
+                }
+            }
+            result.deleted = deleted;
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Rolling back "+webapp, e);
+            restored = rollback(webapp, backup, moved, replaced);
+            throw e;
+        }
+        finally
+        {
+            delete(staging);
+            
+            //keep the old files if they could not all be put back
+            if (restored)
+                delete(backup);
+        }
+    }
+    
+    
+    /**
+     * Remove the entries that were moved into the webapp, and put back the
+     * files that were moved aside.
+     * 
+     * @return true if every file was put back
+     */
+    private static boolean rollback (File webapp, File backup, List<String> moved, List<String> replaced)
+    {
+        boolean restored = true;
+        try
+        {
+            for (String entryName : moved)
+                resolve(webapp, entryName).delete();
+            for (String entryName : replaced)
+            {
+                if (!resolve(backup, entryName).renameTo(resolve(webapp, entryName)))
+                {
+                    Log.e(TAG, "Unable to restore "+entryName+" from "+backup);
+                    restored = false;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Unable to restore "+webapp+" from "+backup, e);
+            restored = false;
+        }
+        return restored;
+    }
+    
+    
+    private static void move (File from, File to)
+    throws IOException
+    {
+        to.getParentFile().mkdirs();
+        if (!from.renameTo(to))
+            throw new IOException("mv "+from+" to "+to+" failed");
+    }
+    
+    
+    private static File getStagingDir (File webappsDir, String webappName)
+    {
+        //hidden from the webapp deployer
+        File staging = new File(webappsDir, "."+webappName+".staging");
+        if (staging.exists())
+            delete(staging);
+        return staging;
+    }
+    
+    
+    private static File getBackupDir (File webapp)
+    {
+        File backup = new File(webapp.getParentFile(), "."+webapp.getName()+".backup");
+        if (backup.exists())
+            delete(backup);
+        return backup;
+    }
+    
+    
+    private static File getEntriesFile (String webappName)
+    {
+        return new File (IJetty.__JETTY_DIR+"/"+IJetty.__TMP_DIR, webappName+".entries");
+    }
+    
+    
+    private static Properties loadEntries (String webappName)
+    {
+        Properties entries = new Properties();
+        File file = getEntriesFile(webappName);
+        if (!file.exists())
+            return entries;
+        
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream(file);
+            entries.load(in);
+            
+            //the names are used as paths in the webapp, so drop any that reach outside it
+            Enumeration<?> names = entries.propertyNames();
+            while (names.hasMoreElements())
+            {
+                String entryName = (String)names.nextElement();
+                if (!isSafe(entryName))
+                {
+                    Log.w(TAG, "Ignoring entry "+entryName+" in "+file);
+                    entries.remove(entryName);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            //install everything
+            Log.w(TAG, "Unable to read "+file, e);
+            entries.clear();
+        }
+        finally
+        {
+            IO.close(in);
+        }
+        return entries;
+    }
+    
+    
+    private static void saveEntries (String webappName, Properties entries)
+    {
+        File file = getEntriesFile(webappName);
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(file);
+            entries.store(out, "crc,size of the entries installed in "+webappName);
+        }
+        catch (IOException e)
+        {
+            //next install will be a full one
+            Log.w(TAG, "Unable to write "+file, e);
+            file.delete();
+        }
+        finally
+        {
+            IO.close(out);
+        }
     }
     
     
     public static void installContextFile (String webappName, String contextPath) 
     throws FileNotFoundException
+    {
+        installContextFile(webappName, contextPath, IJettyService.__configurationClasses);
+    }
+    
+    
+    /**
+     * Install a war to be served without unpacking it. Any unpacked copy of 
+     * the webapp is removed.
+     * 
+     * @param warFile
+     * @param contextPath
+     * @param webappsDir
+     * @param webappName
+     * @param createContextXml
+     * @throws IOException
+     */
+    public static void installPacked (File warFile, String contextPath, File webappsDir, String webappName, boolean createContextXml) 
+    throws IOException
+    {
+        installPacked(warFile, contextPath, webappsDir, webappName, createContextXml, null);
+    }
+    
+    
+    /**
+     * As {@link #installPacked(File, String, File, String, boolean)}. The war
+     * is first moved or copied to a hidden file in the webapps dir, then 
+     * renamed over webapps/webappName.war, so the deployer never sees a half
+     * written war. The unpacked copy is only removed once the war is in place
+     * and the context xml file points at it.
+     * 
+     * @param control may be null
+     */
+    public static void installPacked (File warFile, String contextPath, File webappsDir, String webappName, boolean createContextXml, ContextControl control) 
+    throws IOException
+    {
+        File tmp = new File (webappsDir, "."+webappName+".war.tmp");
+        tmp.delete();
+        if (!warFile.renameTo(tmp))
+        {
+            InputStream in = new FileInputStream(warFile);
+            OutputStream out = null;
+            boolean copied = false;
+            try
+            {
+                out = new FileOutputStream(tmp);
+                IO.copy(in, out);
+                copied = true;
+            }
+            finally
+            {
+                IO.close(out);
+                IO.close(in);
+                if (!copied)
+                    tmp.delete();
+            }
+            if (!warFile.delete())
+                Log.w(TAG, "Unable to delete "+warFile);
+        }
+        
+        boolean stopped;
+        try
+        {
+            stopped = stop(control, webappName);
+        }
+        catch (IOException e)
+        {
+            tmp.delete();
+            throw e;
+        }
+        
+        try
+        {
+            File war = new File (webappsDir, webappName+".war");
+            try
+            {
+                move(tmp, war);
+            }
+            catch (IOException e)
+            {
+                tmp.delete();
+                throw e;
+            }
+            Log.i(TAG, "Installed packed "+war);
+            
+            File webapp = new File (webappsDir, webappName);
+            if (createContextXml || (webapp.exists() && getContextFile(webappName).exists()))
+                installContextFile(webappName, contextPath, IJettyService.__configurationClasses, webappName+".war", false);
+            if (webapp.exists())
+                delete(webapp);
+            getEntriesFile(webappName).delete();
+        }
+        finally
+        {
+            if (stopped)
+                start(control, webappName);
+        }
+    }
+    
+    
+    public static void installContextFile (String webappName, String contextPath, String[] configurationClasses) 
+    throws FileNotFoundException
+    {
+        installContextFile(webappName, contextPath, configurationClasses, webappName, true);
+    }
+    
+    
+    /**
+     * @param webappName
+     * @param contextPath
+     * @param configurationClasses
+     * @param war the name of the war or webapp dir in the webapps dir
+     * @param extract false to serve a war without unpacking it
+     * @throws FileNotFoundException
+     */
+    public static void installContextFile (String webappName, String contextPath, String[] configurationClasses, String war, boolean extract) 
+    throws FileNotFoundException
     {
         Log.i(TAG, "Installing "+webappName+".xml");
         contextPath = contextPath == null ? webappName : contextPath;           
@@ -120,9 +1131,9 @@ public class Installer
         
         
         String configurationClassesXml =  "<Array type=\"java.lang.String\">";
-        for (int i=0; i < IJettyService.__configurationClasses.length;i++)
+        for (int i=0; i < configurationClasses.length;i++)
         {
-            configurationClassesXml +="<Item>"+IJettyService.__configurationClasses[i]+"</Item>";
+            configurationClassesXml +="<Item>"+configurationClasses[i]+"</Item>";
         }
         configurationClassesXml += "</Array>";
         
@@ -136,19 +1147,27 @@ public class Installer
         writer.println("<Configure class=\"org.eclipse.jetty.webapp.WebAppContext\">");
         writer.println("<Set name=\"configurationClasses\">"+configurationClassesXml+"</Set>");   
         writer.println("<Set name=\"contextPath\">"+contextPath+"</Set>");
-        writer.println("<Set name=\"war\"><SystemProperty name=\"jetty.home\" default=\".\"/>/webapps/"+webappName+"</Set>");
+        writer.println("<Set name=\"war\"><SystemProperty name=\"jetty.home\" default=\".\"/>/webapps/"+war+"</Set>");
+        if (!extract)
+            writer.println("<Set name=\"extractWAR\">false</Set>");
         writer.println("<Set name=\"defaultsDescriptor\"><SystemProperty name=\"jetty.home\" default=\".\"/>/etc/webdefault.xml</Set>");
        
         writer.println("</Configure>");
         writer.flush();
         writer.close();
-        File contextDir = new File (IJetty.__JETTY_DIR+"/"+IJetty.__CONTEXTS_DIR); 
-        File contextFile = new File (contextDir, webappName+".xml");
+        File contextFile = getContextFile(webappName);
         if (!tmpContextFile.renameTo(contextFile))
             Log.e(TAG, "mv "+tmpContextFile.getAbsolutePath()+" "+contextFile.getAbsolutePath()+" failed");
     }
 
     
+    public static File getContextFile (String webappName)
+    {
+        File contextDir = new File (IJetty.__JETTY_DIR+"/"+IJetty.__CONTEXTS_DIR); 
+        return new File (contextDir, webappName+".xml");
+    }
+
+    
     public static void clean (File warFile)
     {
         String webappName = warFile.getName();
@@ -161,6 +1180,9 @@ public class Installer
         contextFile.delete();
         Log.i("Jetty", "deleted "+IJetty.__JETTY_DIR+"/"+IJetty.__TMP_DIR+"/"+webappName+".xml");
         
+        //forget what was installed, so the next install writes everything
+        getEntriesFile(webappName).delete();
+        
         //delete the real context.xml file (will cause an undeploy if jetty is running)
         File contextDir = new File (IJetty.__JETTY_DIR+"/"+IJetty.__CONTEXTS_DIR); 
         contextFile = new File (contextDir, webappName+".xml");
@@ -175,6 +1197,12 @@ public class Installer
             delete(webapp);
         Log.i(TAG, "deleted "+IJetty.__JETTY_DIR+"/"+IJetty.__WEBAPP_DIR+"/"+webappName);
         
+        //delete the packed webapp
+        new File (webappsDir, webappName+".war").delete();
+        
+        //forget where it was downloaded from
+        DownloadRecord.getRecord(tmpDir, webappName).delete();
+        
         warFile.delete();
         Log.i(TAG, "deleted "+warFile.getAbsolutePath());
     }
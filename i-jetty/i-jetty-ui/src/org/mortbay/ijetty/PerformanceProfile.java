@@ -0,0 +1,197 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PerformanceProfile
+ *
+ * A named set of tuning parameters applied together to the thread pool,
+ * connectors, deployers, realm and the DefaultServlet of every webapp.
+ */
+public class PerformanceProfile
+{
+    public static final String __DEFAULT_SERVLET_PREFIX = "org.eclipse.jetty.servlet.Default.";
+    
+    //battery saver never polls realm.properties and serves pre-compressed content to keep the radio idle,
+    //max throughput skips the per-request lookup of a .gz file because its clients are usually on a fast link
+    public static final PerformanceProfile BATTERY_SAVER = 
+        new PerformanceProfile("battery_saver", 2, 8, 1, 10000, 1000, false, 60, 0, 4000000, 512000, 256, true);
+    
+    public static final PerformanceProfile BALANCED = 
+        new PerformanceProfile("balanced", 4, 32, 1, 30000, 5000, false, 10, 300, 16000000, 2000000, 1024, true);
+    
+    public static final PerformanceProfile MAX_THROUGHPUT = 
+        new PerformanceProfile("max_throughput", 8, 64, 2, 60000, 10000, true, 30, 60, 64000000, 8000000, 4096, false);
+    
+    private static final PerformanceProfile[] __profiles = new PerformanceProfile[] {BATTERY_SAVER, BALANCED, MAX_THROUGHPUT};
+    
+    private final String _name;
+    private final int _minThreads;
+    private final int _maxThreads;
+    private final int _acceptors;
+    private final int _maxIdleTime;
+    private final int _lowResourcesMaxIdleTime;
+    private final boolean _useDirectBuffers;
+    private final int _scanInterval;
+    private final int _realmRefreshInterval;
+    private final int _maxCacheSize;
+    private final int _maxCachedFileSize;
+    private final int _maxCachedFiles;
+    private final boolean _gzip;
+    
+    
+    /**
+     * @param name the name of a profile
+     * @return the profile of that name, or {@link #BALANCED} if there is none
+     */
+    public static PerformanceProfile getProfile (String name)
+    {
+        for (int i=0;i<__profiles.length;i++)
+        {
+            if (__profiles[i].getName().equals(name))
+                return __profiles[i];
+        }
+        return BALANCED;
+    }
+    
+    
+    public PerformanceProfile (String name, 
+                               int minThreads, int maxThreads, 
+                               int acceptors, int maxIdleTime, int lowResourcesMaxIdleTime, boolean useDirectBuffers,
+                               int scanInterval, int realmRefreshInterval,
+                               int maxCacheSize, int maxCachedFileSize, int maxCachedFiles, boolean gzip)
+    {
+        _name = name;
+        _minThreads = minThreads;
+        _maxThreads = maxThreads;
+        _acceptors = acceptors;
+        _maxIdleTime = maxIdleTime;
+        _lowResourcesMaxIdleTime = lowResourcesMaxIdleTime;
+        _useDirectBuffers = useDirectBuffers;
+        _scanInterval = scanInterval;
+        _realmRefreshInterval = realmRefreshInterval;
+        _maxCacheSize = maxCacheSize;
+        _maxCachedFileSize = maxCachedFileSize;
+        _maxCachedFiles = maxCachedFiles;
+        _gzip = gzip;
+    }
+    
+    public String getName()
+    {
+        return _name;
+    }
+
+    public int getMinThreads()
+    {
+        return _minThreads;
+    }
+
+    public int getMaxThreads()
+    {
+        return _maxThreads;
+    }
+
+    public int getAcceptors()
+    {
+        return _acceptors;
+    }
+
+    /**
+     * @return ms a connection may be idle before it is closed
+     */
+    public int getMaxIdleTime()
+    {
+        return _maxIdleTime;
+    }
+
+    /**
+     * @return ms a connection may be idle when the thread pool is low on threads
+     */
+    public int getLowResourcesMaxIdleTime()
+    {
+        return _lowResourcesMaxIdleTime;
+    }
+
+    public boolean isUseDirectBuffers()
+    {
+        return _useDirectBuffers;
+    }
+
+    /**
+     * @return seconds between scans of the contexts dir, 0 disables hot deployment
+     */
+    public int getScanInterval()
+    {
+        return _scanInterval;
+    }
+
+    /**
+     * @return seconds between reloads of realm.properties, 0 disables reloading
+     */
+    public int getRealmRefreshInterval()
+    {
+        return _realmRefreshInterval;
+    }
+
+    public int getMaxCacheSize()
+    {
+        return _maxCacheSize;
+    }
+
+    public int getMaxCachedFileSize()
+    {
+        return _maxCachedFileSize;
+    }
+
+    public int getMaxCachedFiles()
+    {
+        return _maxCachedFiles;
+    }
+
+    /**
+     * @return true if pre-compressed .gz static content should be served
+     */
+    public boolean isGzip()
+    {
+        return _gzip;
+    }
+    
+    
+    /**
+     * The context init parameters that override the DefaultServlet init-params
+     * from webdefault.xml.
+     * 
+     * @return map of init parameter name to value
+     */
+    public Map<String,String> getInitParameters()
+    {
+        Map<String,String> params = new LinkedHashMap<String,String>();
+        params.put(__DEFAULT_SERVLET_PREFIX+"maxCacheSize", String.valueOf(_maxCacheSize));
+        params.put(__DEFAULT_SERVLET_PREFIX+"maxCachedFileSize", String.valueOf(_maxCachedFileSize));
+        params.put(__DEFAULT_SERVLET_PREFIX+"maxCachedFiles", String.valueOf(_maxCachedFiles));
+        params.put(__DEFAULT_SERVLET_PREFIX+"gzip", String.valueOf(_gzip));
+        return params;
+    }
+    
+    
+    public String toString()
+    {
+        return _name;
+    }
+}
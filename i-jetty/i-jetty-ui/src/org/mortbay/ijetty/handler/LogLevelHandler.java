@@ -0,0 +1,114 @@
+package org.mortbay.ijetty.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ByteArrayISO8859Writer;
+import org.eclipse.jetty.util.StringUtil;
+import org.mortbay.ijetty.log.AndroidLog;
+
+/**
+ * LogLevelHandler
+ *
+ * Serves a page at {@link #__LOG_PATH} showing the configured log levels
+ * and the level of every logger. A POST with the parameters
+ * <code>name</code> and <code>level</code> sets the level of a logger and
+ * the loggers below it, or removes it if the level is empty. Levels can only
+ * be seen and changed from the device itself, or through an adb forward.
+ */
+public class LogLevelHandler extends AbstractHandler
+{
+    public static final String __LOG_PATH = "/ijetty-log";
+
+
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        if (response.isCommitted() || baseRequest.isHandled())
+            return;
+
+        if (!__LOG_PATH.equals(request.getRequestURI()))
+            return;
+
+        boolean post = HttpMethods.POST.equals(request.getMethod());
+        if (!post && !HttpMethods.GET.equals(request.getMethod()))
+            return;
+
+        baseRequest.setHandled(true);
+
+        //the logger names tell what is deployed, so are only for the device itself
+        if (!InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress())
+        {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        if (post)
+        {
+            String name = request.getParameter("name");
+            String level = request.getParameter("level");
+            if (name == null)
+            {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No name");
+                return;
+            }
+            try
+            {
+                AndroidLog.setLevel(name.trim(), (level == null || level.trim().length() == 0 ? null : level));
+            }
+            catch (IllegalArgumentException e)
+            {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MimeTypes.TEXT_HTML);
+
+        ByteArrayISO8859Writer writer = new ByteArrayISO8859Writer(2048);
+        writer.write("<HTML>\n<HEAD>\n<TITLE>i-jetty log levels</TITLE>\n</HEAD>\n<BODY>\n<H2>i-jetty log levels</H2>\n");
+
+        writer.write("<H3>Configured</H3>\n<table>\n");
+        for (Map.Entry<String, String> entry : AndroidLog.getLevels().entrySet())
+            row(writer, entry.getKey(), entry.getValue());
+        writer.write("</table>\n");
+
+        writer.write("<H3>Loggers</H3>\n<table>\n");
+        for (Map.Entry<String, AndroidLog> entry : AndroidLog.getLoggers().entrySet())
+            row(writer, entry.getKey(), AndroidLog.toLevelName(entry.getValue().getLevel()));
+        writer.write("</table>\n");
+
+        writer.write("<form method=\"POST\" action=\""+__LOG_PATH+"\">\n");
+        writer.write("Logger <input type=\"text\" name=\"name\"/> Level <input type=\"text\" name=\"level\"/> <input type=\"submit\" value=\"Set\"/>\n</form>\n");
+
+        writer.write("</BODY>\n</HTML>\n");
+        writer.flush();
+        response.setContentLength(writer.size());
+        OutputStream out=response.getOutputStream();
+        writer.writeTo(out);
+        out.close();
+    }
+
+    private void row (ByteArrayISO8859Writer writer, String name, String value) throws IOException
+    {
+        writer.write("<tr><td>"+escape(name)+"</td><td>"+escape(value)+"</td></tr>\n");
+    }
+
+    private static String escape (String text)
+    {
+        text = StringUtil.replace(text, "&", "&amp;");
+        text = StringUtil.replace(text, "<", "&lt;");
+        text = StringUtil.replace(text, ">", "&gt;");
+        return StringUtil.replace(text, "\"", "&quot;");
+    }
+}
@@ -0,0 +1,130 @@
+package org.mortbay.ijetty.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.server.nio.AbstractNIOConnector;
+import org.eclipse.jetty.util.ByteArrayISO8859Writer;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.mortbay.ijetty.PerformanceProfile;
+
+/**
+ * StatusHandler
+ *
+ * Serves a page at {@link #__STATUS_PATH} showing the effective values of
+ * the performance tuning parameters of the running server. The page is
+ * only served to requests from the loopback address.
+ */
+public class StatusHandler extends AbstractHandler
+{
+    public static final String __STATUS_PATH = "/ijetty-status";
+    
+    private final PerformanceProfile _profile;
+    
+    
+    public StatusHandler(PerformanceProfile profile)
+    {
+        super();
+        _profile = profile;
+    }
+
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        if (response.isCommitted() || baseRequest.isHandled())
+            return;
+        
+        if (!HttpMethods.GET.equals(request.getMethod()) || !__STATUS_PATH.equals(request.getRequestURI()))
+            return;
+
+        baseRequest.setHandled(true);
+        
+        //the tuning and thread details are only for the device itself
+        if (!InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress())
+        {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MimeTypes.TEXT_HTML);
+        
+        ByteArrayISO8859Writer writer = new ByteArrayISO8859Writer(2048);
+        writer.write("<HTML>\n<HEAD>\n<TITLE>i-jetty status</TITLE>\n</HEAD>\n<BODY>\n<H2>i-jetty status</H2>\n");
+        
+        writer.write("<H3>Profile: "+_profile.getName()+"</H3>\n<table>\n");
+        
+        Server server = getServer();
+        ThreadPool pool = (server == null ? null : server.getThreadPool());
+        if (pool instanceof QueuedThreadPool)
+        {
+            QueuedThreadPool qtp = (QueuedThreadPool)pool;
+            row(writer, "Min threads", qtp.getMinThreads());
+            row(writer, "Max threads", qtp.getMaxThreads());
+        }
+        if (pool != null)
+        {
+            row(writer, "Threads", pool.getThreads());
+            row(writer, "Idle threads", pool.getIdleThreads());
+        }
+        
+        row(writer, "Deploy scan interval (s)", _profile.getScanInterval());
+        row(writer, "Realm refresh interval (s)", _profile.getRealmRefreshInterval());
+        for (Map.Entry<String,String> entry : _profile.getInitParameters().entrySet())
+            row(writer, entry.getKey().substring(PerformanceProfile.__DEFAULT_SERVLET_PREFIX.length()), entry.getValue());
+        writer.write("</table>\n");
+        
+        Connector[] connectors = (server == null ? null : server.getConnectors());
+        for (int i=0; connectors != null && i<connectors.length; i++)
+        {
+            writer.write("<H3>"+connectors[i]+"</H3>\n<table>\n");
+            if (connectors[i] instanceof AbstractConnector)
+            {
+                AbstractConnector connector = (AbstractConnector)connectors[i];
+                row(writer, "Acceptors", connector.getAcceptors());
+                row(writer, "Max idle time (ms)", connector.getMaxIdleTime());
+                row(writer, "Low resources max idle time (ms)", connector.getLowResourcesMaxIdleTime());
+            }
+            if (connectors[i] instanceof AbstractNIOConnector)
+                row(writer, "Direct buffers", ((AbstractNIOConnector)connectors[i]).getUseDirectBuffers());
+            writer.write("</table>\n");
+        }
+        
+        StatisticsHandler stats = (server == null ? null : (StatisticsHandler)server.getChildHandlerByClass(StatisticsHandler.class));
+        if (stats != null)
+        {
+            writer.write("<H3>Requests</H3>\n<table>\n");
+            row(writer, "Requests", stats.getRequests());
+            row(writer, "Active requests", stats.getRequestsActive());
+            row(writer, "Mean request time (ms)", stats.getRequestTimeMean());
+            row(writer, "Stats since (ms)", stats.getStatsOnMs());
+            writer.write("</table>\n");
+        }
+        
+        writer.write("</BODY>\n</HTML>\n");
+        writer.flush();
+        response.setContentLength(writer.size());
+        OutputStream out=response.getOutputStream();
+        writer.writeTo(out);
+        out.close();
+    }
+    
+    private void row (ByteArrayISO8859Writer writer, String name, Object value) throws IOException
+    {
+        writer.write("<tr><td>"+name+"</td><td>"+value+"</td></tr>\n");
+    }
+}
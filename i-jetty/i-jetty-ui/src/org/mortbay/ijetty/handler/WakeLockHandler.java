@@ -0,0 +1,67 @@
+package org.mortbay.ijetty.handler;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.mortbay.ijetty.util.WakeLockScheduler;
+
+/**
+ * WakeLockHandler
+ *
+ * Tells a {@link WakeLockScheduler} when each request starts and
+ * completes, including requests that are suspended, so that the
+ * wake lock is only held while the server is busy.
+ */
+public class WakeLockHandler extends HandlerWrapper
+{
+    private final WakeLockScheduler _scheduler;
+    
+    private final ContinuationListener _onCompletion = new ContinuationListener()
+    {
+        public void onComplete(Continuation continuation)
+        {
+            _scheduler.requestEnd();
+        }
+
+        public void onTimeout(Continuation continuation)
+        {
+        }
+    };
+
+    public WakeLockHandler(WakeLockScheduler scheduler)
+    {
+        super();
+        _scheduler = scheduler;
+    }
+
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+        boolean initial = continuation.isInitial();
+        if (initial)
+            _scheduler.requestBegin();
+
+        try
+        {
+            super.handle(target,baseRequest,request,response);
+        }
+        finally
+        {
+            if (continuation.isSuspended())
+            {
+                if (initial)
+                    continuation.addContinuationListener(_onCompletion);
+            }
+            else if (initial)
+                _scheduler.requestEnd();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.util;
+
+import android.util.Log;
+
+/**
+ * DownloadProgress
+ *
+ * How much of a war has been received, how fast, and how far its
+ * install has got. Content may arrive on several connections at once, and
+ * entries are installed on another thread, so updates are frequent:
+ * {@link #onUpdate()} is only called every {@link #__UPDATE_INTERVAL} ms.
+ *
+ * When the install is done, a summary of the download and install times is
+ * logged, to compare download sources and storage speeds.
+ */
+public class DownloadProgress
+{
+    private static final String TAG = "Jetty";
+
+    /**
+     * The least time between updates, in ms
+     */
+    public static final long __UPDATE_INTERVAL = 250;
+
+    private final String _url;
+    private long _length;
+    private long _resumed;
+    private long _received;
+    private long _start;
+    private long _downloaded = -1;
+    private long _lastUpdate;
+    private long _lastReceived;
+    private long _rate;
+    private long _installStart = -1;
+    private int _entries;
+    private int _totalEntries = -1;
+    private long _installedBytes;
+
+
+    /**
+     * @param url
+     * @param length the length of the content, or -1 if not known
+     * @param resumed how much of the content was received before
+     */
+    public DownloadProgress (String url, long length, long resumed)
+    {
+        _url = url;
+        _length = length;
+        _resumed = resumed;
+        _start = System.currentTimeMillis();
+        _lastUpdate = _start;
+    }
+
+
+    /**
+     * The content is being sent again from the start.
+     * @param length the length of the content, or -1 if not known
+     */
+    public synchronized void restart (long length)
+    {
+        _length = length;
+        _resumed = 0;
+        _received = 0;
+        _lastReceived = 0;
+    }
+
+
+    public synchronized void setLength (long length)
+    {
+        _length = length;
+    }
+
+
+    public synchronized long getLength ()
+    {
+        return _length;
+    }
+
+
+    /**
+     * @return the bytes of the content received, including any received before
+     */
+    public synchronized long getReceived ()
+    {
+        return _resumed + _received;
+    }
+
+
+    /**
+     * @param bytes received since the last call
+     */
+    public void received (long bytes)
+    {
+        synchronized (this)
+        {
+            _received += bytes;
+        }
+        update(false);
+    }
+
+
+    /**
+     * The content has all been received.
+     */
+    public synchronized void downloaded ()
+    {
+        _downloaded = System.currentTimeMillis();
+    }
+
+
+    /**
+     * @param totalEntries the number of entries to install, or -1 if not known
+     */
+    public void installing (int totalEntries)
+    {
+        synchronized (this)
+        {
+            _installStart = System.currentTimeMillis();
+            _totalEntries = totalEntries;
+        }
+        update(true);
+    }
+
+
+    /**
+     * @param bytes the size of an entry that has been installed or skipped
+     */
+    public void installed (long bytes)
+    {
+        synchronized (this)
+        {
+            _entries++;
+            _installedBytes += bytes;
+        }
+        update(false);
+    }
+
+
+    public synchronized boolean isInstalling ()
+    {
+        return _installStart >= 0;
+    }
+
+
+    public synchronized int getEntries ()
+    {
+        return _entries;
+    }
+
+
+    public synchronized int getTotalEntries ()
+    {
+        return _totalEntries;
+    }
+
+
+    /**
+     * @return true once the content has all been received
+     */
+    public synchronized boolean isDownloaded ()
+    {
+        return _downloaded >= 0;
+    }
+
+
+    /**
+     * A streamed war is installed as it arrives, before the number of its
+     * entries is known, so its progress is that of the download.
+     * @return how far the install, or if its entries are not known the
+     * download, has got, or -1 if that is not known
+     */
+    public synchronized int getPercent ()
+    {
+        if (_installStart >= 0 && _totalEntries > 0)
+            return (int)(_entries * 100L / _totalEntries);
+        if (_length > 0)
+            return (int)(getReceived() * 100 / _length);
+        return -1;
+    }
+
+
+    /**
+     * @return bytes per second received between the last two updates
+     */
+    public synchronized long getRate ()
+    {
+        return _rate;
+    }
+
+
+    /**
+     * @return bytes per second received since the download started
+     */
+    public synchronized long getAverageRate ()
+    {
+        long end = (_downloaded < 0 ? System.currentTimeMillis() : _downloaded);
+        return _received * 1000 / Math.max(1, end - _start);
+    }
+
+
+    /**
+     * The install is done: log a summary.
+     * @param webappName
+     */
+    public synchronized void done (String webappName)
+    {
+        long now = System.currentTimeMillis();
+        if (_downloaded < 0)
+            _downloaded = now;
+        long installStart = (_installStart < 0 ? _downloaded : _installStart);
+        Log.i(TAG, "Installed "+webappName+" from "+_url+": "
+              +_received+" bytes downloaded"+(_resumed > 0 ? " (resumed at "+_resumed+")" : "")
+              +" in "+(_downloaded - _start)+"ms at "+getAverageRate()/1024+"KB/s, "
+              +_entries+" entries ("+_installedBytes+" bytes) installed in "+(now - installStart)+"ms");
+    }
+
+
+    /**
+     * Called at most every {@link #__UPDATE_INTERVAL} ms as the download and
+     * install progress. Called on whichever thread made the progress, while
+     * it waits.
+     */
+    protected void onUpdate ()
+    {
+    }
+
+
+    private void update (boolean force)
+    {
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            if (!force && now - _lastUpdate < __UPDATE_INTERVAL)
+                return;
+            if (now > _lastUpdate)
+                _rate = (_received - _lastReceived) * 1000 / (now - _lastUpdate);
+            _lastUpdate = now;
+            _lastReceived = _received;
+        }
+        onUpdate();
+    }
+}
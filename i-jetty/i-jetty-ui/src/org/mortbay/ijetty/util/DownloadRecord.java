@@ -0,0 +1,204 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.TypeUtil;
+
+import android.util.Log;
+
+/**
+ * DownloadRecord
+ *
+ * Where an installed webapp was downloaded from, the validators the server
+ * sent with it (ETag and Last-Modified) and the SHA-1 of the war. An update
+ * from the same url is made as a conditional request, so an unchanged war is
+ * not downloaded again, and a war that downloads with the same hash is not
+ * installed again.
+ */
+public class DownloadRecord
+{
+    private static final String TAG = "Jetty";
+
+    private final File _file;
+    private final Properties _properties = new Properties();
+
+
+    /**
+     * @param tmpDir
+     * @param webappName
+     * @return the record of the webapp, which is empty if it was not downloaded
+     */
+    public static DownloadRecord getRecord (File tmpDir, String webappName)
+    {
+        DownloadRecord record = new DownloadRecord(new File(tmpDir, webappName+".download"));
+        record.load();
+        return record;
+    }
+
+
+    private DownloadRecord (File file)
+    {
+        _file = file;
+    }
+
+
+    /**
+     * @param url
+     * @return true if the webapp was last downloaded from the url
+     */
+    public boolean isFrom (String url)
+    {
+        return url.equals(_properties.getProperty("url"));
+    }
+
+
+    public String getETag ()
+    {
+        return _properties.getProperty("etag");
+    }
+
+
+    public String getSha1 ()
+    {
+        return _properties.getProperty("sha1");
+    }
+
+
+    /**
+     * Make a request for the url the webapp was downloaded from conditional on
+     * the war having changed since.
+     * @param exchange
+     */
+    public void addConditions (HttpExchange exchange)
+    {
+        String etag = _properties.getProperty("etag");
+        String lastModified = _properties.getProperty("lastModified");
+        if (etag != null)
+            exchange.setRequestHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        if (lastModified != null)
+            exchange.setRequestHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    }
+
+
+    /**
+     * Record a download that has been installed.
+     * @param url
+     * @param etag
+     * @param lastModified
+     * @param sha1
+     */
+    public void update (String url, String etag, String lastModified, String sha1)
+    {
+        _properties.clear();
+        _properties.setProperty("url", url);
+        if (etag != null)
+            _properties.setProperty("etag", etag);
+        if (lastModified != null)
+            _properties.setProperty("lastModified", lastModified);
+        if (sha1 != null)
+            _properties.setProperty("sha1", sha1);
+
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(_file);
+            _properties.store(out, "i-jetty webapp download");
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Unable to write "+_file, e);
+        }
+        finally
+        {
+            IO.close(out);
+        }
+    }
+
+
+    public void delete ()
+    {
+        _file.delete();
+    }
+
+
+    /**
+     * @param file
+     * @return the hex SHA-1 of the file, or null if it cannot be read
+     */
+    public static String sha1 (File file)
+    {
+        InputStream in = null;
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            in = new FileInputStream(file);
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1)
+                digest.update(buf, 0, len);
+            return TypeUtil.toHexString(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.w(TAG, "No digest", e);
+            return null;
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Unable to read "+file, e);
+            return null;
+        }
+        finally
+        {
+            IO.close(in);
+        }
+    }
+
+
+    private void load ()
+    {
+        if (!_file.exists())
+            return;
+
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream(_file);
+            _properties.load(in);
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Unable to read "+_file, e);
+            _properties.clear();
+        }
+        finally
+        {
+            IO.close(in);
+        }
+    }
+}
@@ -15,10 +15,20 @@ public class IJettyToast
         showToast(context,messageId,Toast.LENGTH_LONG);
     }
 
+    public static void showServiceToast(Context context, CharSequence message)
+    {
+        showToast(context,message,Toast.LENGTH_LONG);
+    }
+
     private static void showToast(Context context, int messageId, int duration)
+    {
+        showToast(context,context.getText(messageId),duration);
+    }
+
+    private static void showToast(Context context, CharSequence message, int duration)
     {
         final View view = LayoutInflater.from(context).inflate(R.layout.service_toast,null);
-        ((TextView)view.findViewById(R.id.message)).setText(messageId);
+        ((TextView)view.findViewById(R.id.message)).setText(message);
 
         Toast toast = new Toast(context);
         toast.setDuration(duration);
@@ -0,0 +1,412 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.jetty.util.IO;
+
+import android.util.Log;
+
+/**
+ * PartialDownload
+ *
+ * A download into a .part file next to the war, that can be resumed with
+ * ranged requests after the download is interrupted. The url, the
+ * validators of the content (ETag and Last-Modified) and how much of each
+ * segment has been received are kept in a .part.properties file, so a
+ * download can also be resumed after the activity has been destroyed.
+ *
+ * The download is made up of one or more segments, each of which can be
+ * fetched over its own connection.
+ */
+public class PartialDownload
+{
+    private static final String TAG = "Jetty";
+
+    /**
+     * Segment
+     *
+     * A range of the content, and how much of it has been received.
+     */
+    public static class Segment
+    {
+        private final long _start;
+        private long _end;
+        private long _received;
+
+        private Segment (long start, long end, long received)
+        {
+            _start = start;
+            _end = end;
+            _received = received;
+        }
+
+        /**
+         * @return the offset of the next byte to receive
+         */
+        public long getPosition ()
+        {
+            return _start + _received;
+        }
+
+        /**
+         * @return the last byte of the segment, or -1 if the length of the
+         * content is not known
+         */
+        public long getEnd ()
+        {
+            return _end;
+        }
+
+        public long getReceived ()
+        {
+            return _received;
+        }
+
+        public boolean isComplete ()
+        {
+            return _end >= 0 && getPosition() > _end;
+        }
+
+        /**
+         * @return the value of the Range header to fetch the rest of the segment
+         */
+        public String getRange ()
+        {
+            return "bytes="+getPosition()+"-"+(_end < 0 ? "" : String.valueOf(_end));
+        }
+
+        public String toString ()
+        {
+            return _start+"-"+_end+":"+_received;
+        }
+    }
+
+
+    private final File _part;
+    private final File _stateFile;
+    private final String _url;
+    private String _etag;
+    private String _lastModified;
+    private long _length = -1;
+    private List<Segment> _segments = new ArrayList<Segment>();
+    private RandomAccessFile _file;
+
+
+    /**
+     * @param warFile the file the download is completed to
+     * @param url
+     * @return the interrupted download of the url to the file, or a new download
+     * if there is none
+     */
+    public static PartialDownload getPartialDownload (File warFile, String url)
+    {
+        PartialDownload download = new PartialDownload(warFile, url);
+        if (!download.load())
+        {
+            download.delete();
+            download = new PartialDownload(warFile, url);
+            download._segments.add(new Segment(0, -1, 0));
+        }
+        return download;
+    }
+
+
+    private PartialDownload (File warFile, String url)
+    {
+        _part = new File(warFile.getParentFile(), warFile.getName()+".part");
+        _stateFile = new File(warFile.getParentFile(), warFile.getName()+".part.properties");
+        _url = url;
+    }
+
+
+    /**
+     * @return true if some of the content has already been received
+     */
+    public synchronized boolean isResumed ()
+    {
+        for (Segment segment : _segments)
+        {
+            if (segment.getReceived() > 0)
+                return true;
+        }
+        return false;
+    }
+
+
+    public synchronized List<Segment> getSegments ()
+    {
+        return new ArrayList<Segment>(_segments);
+    }
+
+
+    public synchronized long getLength ()
+    {
+        return _length;
+    }
+
+
+    public synchronized long getReceived ()
+    {
+        long received = 0;
+        for (Segment segment : _segments)
+            received += segment.getReceived();
+        return received;
+    }
+
+
+    /**
+     * @return the validator to send in an If-Range header, or null if there is none.
+     * Weak ETags cannot be used for ranges.
+     */
+    public synchronized String getValidator ()
+    {
+        if (_etag != null && !_etag.startsWith("W/"))
+            return _etag;
+        return _lastModified;
+    }
+
+
+    public synchronized String getETag ()
+    {
+        return _etag;
+    }
+
+
+    public synchronized String getLastModified ()
+    {
+        return _lastModified;
+    }
+
+
+    public synchronized void setValidators (String etag, String lastModified)
+    {
+        _etag = etag;
+        _lastModified = lastModified;
+    }
+
+
+    /**
+     * Split a download that has not started into segments of about the same size.
+     * @param length the length of the content
+     * @param segments the number of segments
+     */
+    public synchronized void split (long length, int segments)
+    {
+        _length = length;
+        _segments.clear();
+        long size = (length + segments - 1) / segments;
+        for (long start = 0; start < length; start += size)
+            _segments.add(new Segment(start, Math.min(start + size, length) - 1, 0));
+        if (_segments.isEmpty())
+            _segments.add(new Segment(0, -1, 0));
+    }
+
+
+    /**
+     * Throw away what has been received, because the content has changed or
+     * the server cannot send ranges. The first segment is kept, as a response
+     * to its request may carry the whole content.
+     */
+    public synchronized void reset ()
+    {
+        Log.i(TAG, "Restarting download of "+_url);
+        close();
+        _part.delete();
+        _stateFile.delete();
+        _etag = null;
+        _lastModified = null;
+        _length = -1;
+        Segment first = (_segments.isEmpty() ? new Segment(0, -1, 0) : _segments.get(0));
+        first._end = -1;
+        first._received = 0;
+        _segments.clear();
+        _segments.add(first);
+    }
+
+
+    /**
+     * Write content received for a segment, at the segment's position.
+     * @param segment
+     * @param content
+     * @throws IOException
+     */
+    public synchronized void write (Segment segment, byte[] content) throws IOException
+    {
+        if (_file == null)
+            _file = new RandomAccessFile(_part, "rw");
+        _file.seek(segment.getPosition());
+        _file.write(content);
+        segment._received += content.length;
+    }
+
+
+    /**
+     * The response for a segment of unknown length has completed.
+     * @param segment
+     */
+    public synchronized void end (Segment segment)
+    {
+        if (segment._end < 0)
+            segment._end = segment.getPosition() - 1;
+    }
+
+
+    public synchronized boolean isComplete ()
+    {
+        for (Segment segment : _segments)
+        {
+            if (!segment.isComplete())
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Move the completed download to the war file.
+     * @param warFile
+     * @throws IOException
+     */
+    public synchronized void complete (File warFile) throws IOException
+    {
+        close();
+        warFile.delete();
+        if (!_part.renameTo(warFile))
+            throw new IOException("mv "+_part+" "+warFile+" failed");
+        _stateFile.delete();
+    }
+
+
+    public synchronized void close ()
+    {
+        try
+        {
+            if (_file != null)
+                _file.close();
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Error closing "+_part, e);
+        }
+        finally
+        {
+            _file = null;
+        }
+    }
+
+
+    public synchronized void delete ()
+    {
+        close();
+        _part.delete();
+        _stateFile.delete();
+    }
+
+
+    /**
+     * Remember how much has been received, so the download can be resumed.
+     */
+    public synchronized void save ()
+    {
+        close();
+        Properties properties = new Properties();
+        properties.setProperty("url", _url);
+        if (_etag != null)
+            properties.setProperty("etag", _etag);
+        if (_lastModified != null)
+            properties.setProperty("lastModified", _lastModified);
+        properties.setProperty("length", String.valueOf(_length));
+        for (int i=0; i<_segments.size(); i++)
+        {
+            Segment segment = _segments.get(i);
+            properties.setProperty("segment."+i, segment._start+","+segment._end+","+segment._received);
+        }
+
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(_stateFile);
+            properties.store(out, "i-jetty partial download");
+            Log.i(TAG, "Saved partial download of "+_url+": "+_segments);
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Unable to save "+_stateFile, e);
+        }
+        finally
+        {
+            IO.close(out);
+        }
+    }
+
+
+    /**
+     * @return true if there is a resumable download of the url, that
+     * can be validated with the server
+     */
+    private boolean load ()
+    {
+        if (!_part.exists() || !_stateFile.exists())
+            return false;
+
+        Properties properties = new Properties();
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream(_stateFile);
+            properties.load(in);
+
+            if (!_url.equals(properties.getProperty("url")))
+                return false;
+            _etag = properties.getProperty("etag");
+            _lastModified = properties.getProperty("lastModified");
+            _length = Long.parseLong(properties.getProperty("length", "-1"));
+            for (int i=0; properties.getProperty("segment."+i) != null; i++)
+            {
+                String[] segment = properties.getProperty("segment."+i).split(",");
+                _segments.add(new Segment(Long.parseLong(segment[0]), Long.parseLong(segment[1]), Long.parseLong(segment[2])));
+            }
+        }
+        catch (Exception e)
+        {
+            Log.w(TAG, "Unable to read "+_stateFile, e);
+            return false;
+        }
+        finally
+        {
+            IO.close(in);
+        }
+
+        //check what was received was written
+        for (Segment segment : _segments)
+        {
+            if (segment.getReceived() > 0 && _part.length() < segment.getPosition())
+                return false;
+        }
+        
+        //without a validator, we cannot be sure the rest is of the same content
+        return !_segments.isEmpty() && getValidator() != null;
+    }
+}
@@ -0,0 +1,157 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * StreamPipe
+ *
+ * Hands chunks of content from the thread receiving them to a thread reading
+ * them as an InputStream. At most a fixed number of chunks are queued, so a
+ * slow reader holds up the writer rather than filling memory.
+ *
+ * Unlike a PipedInputStream, the writer may be any thread, and closing the
+ * InputStream reads the rest of the content, so the writer is never left
+ * blocked by a reader that has stopped early.
+ */
+public class StreamPipe
+{
+    private static final byte[] __EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> _chunks;
+    private volatile IOException _failure;
+
+    private final InputStream _in = new InputStream()
+    {
+        private byte[] _chunk;
+        private int _offset;
+        private boolean _eof;
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            int len = read(b, 0, 1);
+            return (len < 0 ? -1 : (b[0] & 0xff));
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (!fill())
+                return -1;
+            len = Math.min(len, _chunk.length - _offset);
+            System.arraycopy(_chunk, _offset, b, off, len);
+            _offset += len;
+            return len;
+        }
+
+        public int available()
+        {
+            return (_chunk == null ? 0 : _chunk.length - _offset);
+        }
+
+        public void close() throws IOException
+        {
+            while (fill())
+                _offset = _chunk.length;
+        }
+
+        private boolean fill() throws IOException
+        {
+            while (!_eof && (_chunk == null || _offset == _chunk.length))
+            {
+                try
+                {
+                    _chunk = _chunks.take();
+                    _offset = 0;
+                }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException();
+                }
+                _eof = (_chunk == __EOF);
+            }
+
+            if (_eof && _failure != null)
+                throw _failure;
+            return !_eof;
+        }
+    };
+
+
+    /**
+     * @param maxChunks the most chunks to queue before the writer blocks
+     */
+    public StreamPipe (int maxChunks)
+    {
+        _chunks = new ArrayBlockingQueue<byte[]>(maxChunks);
+    }
+
+
+    public InputStream getInputStream ()
+    {
+        return _in;
+    }
+
+
+    /**
+     * @param chunk content to pass to the reader, which must not be changed after
+     * @throws IOException
+     */
+    public void write (byte[] chunk) throws IOException
+    {
+        if (chunk.length > 0)
+            put(chunk);
+    }
+
+
+    /**
+     * The content is complete: the reader will see the end of the stream.
+     */
+    public void close () throws IOException
+    {
+        put(__EOF);
+    }
+
+
+    /**
+     * The content is incomplete: the reader will see the failure at the end
+     * of the content received so far.
+     * @param failure
+     */
+    public void fail (IOException failure) throws IOException
+    {
+        _failure = failure;
+        put(__EOF);
+    }
+
+
+    private void put (byte[] chunk) throws IOException
+    {
+        try
+        {
+            _chunks.put(chunk);
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * WakeLockScheduler
+ *
+ * Holds a partial wake lock only while there is activity on the server, or
+ * within an idle window after the last activity ended, so that the cpu can
+ * sleep when no requests are arriving.
+ * 
+ * Must be created on a thread with a Looper, as the delayed release is
+ * posted to a Handler.
+ */
+public class WakeLockScheduler
+{
+    private static final String TAG = "Jetty";
+    
+    private final PowerManager.WakeLock _wakeLock;
+    private final Handler _handler;
+    private final long _idleWindow;
+    private final AtomicInteger _active = new AtomicInteger();
+    private final AtomicInteger _served = new AtomicInteger();
+    private boolean _held;
+    private boolean _stopped;
+    private long _heldSince;
+    private long _heldTime;
+    
+    private final Runnable _release = new Runnable()
+    {
+        public void run()
+        {
+            synchronized (WakeLockScheduler.this)
+            {
+                if (_active.get() == 0)
+                    release();
+            }
+        }
+    };
+    
+    
+    /**
+     * @param powerManager
+     * @param idleWindow ms to keep the lock after the last activity ends
+     */
+    public WakeLockScheduler (PowerManager powerManager, long idleWindow)
+    {
+        _wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "IJetty");
+        _wakeLock.setReferenceCounted(false);
+        _handler = new Handler();
+        _idleWindow = idleWindow;
+    }
+    
+    
+    /**
+     * Activity has started: make sure the lock is held.
+     */
+    public void begin ()
+    {
+        if (_active.getAndIncrement() == 0)
+        {
+            synchronized (this)
+            {
+                _handler.removeCallbacks(_release);
+                if (!_held && !_stopped)
+                {
+                    _wakeLock.acquire();
+                    _held = true;
+                    _heldSince = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Activity has ended: release the lock once the idle window
+     * passes without any further activity.
+     */
+    public void end ()
+    {
+        if (_active.decrementAndGet() == 0)
+        {
+            if (_idleWindow > 0)
+                _handler.postDelayed(_release, _idleWindow);
+            else
+                _release.run();
+        }
+    }
+    
+    
+    public void requestBegin ()
+    {
+        begin();
+    }
+    
+    
+    public void requestEnd ()
+    {
+        _served.incrementAndGet();
+        end();
+    }
+
+    
+    /**
+     * Release the lock for good.
+     */
+    public synchronized void stop ()
+    {
+        _stopped = true;
+        _handler.removeCallbacks(_release);
+        release();
+        Log.i(TAG, "Wake lock held for "+_heldTime+"ms serving "+_served.get()+" requests");
+    }
+    
+    
+    /**
+     * @return the total ms the wake lock has been held, including any current hold
+     */
+    public synchronized long getHeldTime ()
+    {
+        if (_held)
+            return _heldTime + (System.currentTimeMillis() - _heldSince);
+        return _heldTime;
+    }
+    
+    
+    /**
+     * @return the number of requests completed
+     */
+    public int getRequestsServed ()
+    {
+        return _served.get();
+    }
+    
+    
+    public boolean isHeld ()
+    {
+        return _held;
+    }
+    
+    
+    private void release ()
+    {
+        if (_held)
+        {
+            _wakeLock.release();
+            _held = false;
+            _heldTime += System.currentTimeMillis() - _heldSince;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package android.content;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Context
+ *
+ * Stands in for the android Context when the tests run on the jvm. It only
+ * has the strings of the app: the name of the id in R.string of the package
+ * of the context is looked up in res/values/strings.xml of the module.
+ */
+public abstract class Context
+{
+    public final String getString (int resId)
+    {
+        String name = getResourceName(resId);
+        try
+        {
+            NodeList strings = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new File("res/values/strings.xml")).getElementsByTagName("string");
+            for (int i = 0; i < strings.getLength(); i++)
+            {
+                Element string = (Element)strings.item(i);
+                if (name.equals(string.getAttribute("name")))
+                    return string.getTextContent();
+            }
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException("Cannot read strings", e);
+        }
+        throw new IllegalArgumentException("No string "+name);
+    }
+
+
+    private String getResourceName (int resId)
+    {
+        try
+        {
+            for (Field field : Class.forName(getClass().getPackage().getName()+".R$string").getFields())
+            {
+                if (field.getInt(null) == resId)
+                    return field.getName();
+            }
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException("Cannot read R.string", e);
+        }
+        throw new IllegalArgumentException("No string id "+resId);
+    }
+}
@@ -0,0 +1,32 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package android.os;
+
+import java.io.File;
+
+/**
+ * Environment
+ *
+ * Stands in for the android Environment when the tests run on the jvm: the
+ * sd card is a dir under java.io.tmpdir.
+ */
+public class Environment
+{
+    public static File getExternalStorageDirectory ()
+    {
+        return new File(System.getProperty("java.io.tmpdir"), "ijetty-sdcard");
+    }
+}
@@ -0,0 +1,111 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handler
+ *
+ * Stands in for the android Handler when the tests run on the jvm, where
+ * there is no UI thread to handle messages on. Every message sent is kept
+ * for the test to check instead.
+ */
+public class Handler
+{
+    private static final List<Message> __messages = new ArrayList<Message>();
+
+
+    /**
+     * @return the messages sent since the last {@link #clear()}
+     */
+    public static List<Message> getMessages ()
+    {
+        synchronized (__messages)
+        {
+            return new ArrayList<Message>(__messages);
+        }
+    }
+
+
+    public static void clear ()
+    {
+        synchronized (__messages)
+        {
+            __messages.clear();
+        }
+    }
+
+
+    /**
+     * @param what
+     * @param timeout in ms
+     * @return the first message sent since the last {@link #clear()} that is
+     * one of what, or null if there is none within the timeout
+     * @throws InterruptedException
+     */
+    public static Message waitForMessage (long timeout, int... what) throws InterruptedException
+    {
+        long end = System.currentTimeMillis()+timeout;
+        synchronized (__messages)
+        {
+            while (true)
+            {
+                for (Message message : __messages)
+                {
+                    for (int w : what)
+                    {
+                        if (message.what == w)
+                            return message;
+                    }
+                }
+                long wait = end-System.currentTimeMillis();
+                if (wait <= 0)
+                    return null;
+                __messages.wait(wait);
+            }
+        }
+    }
+
+
+    public void handleMessage (Message msg)
+    {
+    }
+
+
+    public final Message obtainMessage (int what)
+    {
+        return Message.obtain(this, what);
+    }
+
+
+    public final Message obtainMessage (int what, Object obj)
+    {
+        return Message.obtain(this, what, obj);
+    }
+
+
+    public final boolean sendMessage (Message msg)
+    {
+        synchronized (__messages)
+        {
+            __messages.add(msg);
+            __messages.notifyAll();
+        }
+        return true;
+    }
+}
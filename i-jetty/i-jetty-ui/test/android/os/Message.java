@@ -0,0 +1,56 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package android.os;
+
+/**
+ * Message
+ *
+ * Stands in for the android Message when the tests run on the jvm.
+ */
+public final class Message
+{
+    public int what;
+    public Object obj;
+    private Handler _target;
+
+
+    public static Message obtain (Handler h, int what)
+    {
+        return obtain(h, what, null);
+    }
+
+
+    public static Message obtain (Handler h, int what, Object obj)
+    {
+        Message message = new Message();
+        message._target = h;
+        message.what = what;
+        message.obj = obj;
+        return message;
+    }
+
+
+    public Handler getTarget ()
+    {
+        return _target;
+    }
+
+
+    public String toString ()
+    {
+        return "{what="+what+" obj="+obj+"}";
+    }
+}
@@ -0,0 +1,89 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package android.preference;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * PreferenceManager
+ *
+ * Stands in for the android PreferenceManager when the tests run on the
+ * jvm. The default preferences are held in memory and shared by every
+ * context, and nothing has been set in them, so each reads as its default.
+ */
+public class PreferenceManager
+{
+    private static final SharedPreferences __preferences = new SharedPreferences()
+    {
+        public Map<String, ?> getAll ()
+        {
+            return new HashMap<String, Object>();
+        }
+
+        public String getString (String key, String defValue)
+        {
+            return defValue;
+        }
+
+        public int getInt (String key, int defValue)
+        {
+            return defValue;
+        }
+
+        public long getLong (String key, long defValue)
+        {
+            return defValue;
+        }
+
+        public float getFloat (String key, float defValue)
+        {
+            return defValue;
+        }
+
+        public boolean getBoolean (String key, boolean defValue)
+        {
+            return defValue;
+        }
+
+        public boolean contains (String key)
+        {
+            return false;
+        }
+
+        public Editor edit ()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void registerOnSharedPreferenceChangeListener (OnSharedPreferenceChangeListener listener)
+        {
+        }
+
+        public void unregisterOnSharedPreferenceChangeListener (OnSharedPreferenceChangeListener listener)
+        {
+        }
+    };
+
+
+    public static SharedPreferences getDefaultSharedPreferences (Context context)
+    {
+        return __preferences;
+    }
+}
@@ -0,0 +1,527 @@
+//========================================================================
+//$Id$
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.ijetty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.IO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mortbay.ijetty.util.DownloadRecord;
+import org.mortbay.ijetty.util.PartialDownload;
+
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * InstallerTest
+ *
+ * Applies deltas to a webapp installed under the stand-in sd card of
+ * android.os.Environment, and checks that a delta that does not apply
+ * leaves the webapp as it was. IJettyDownloader runs against the stand-ins
+ * of the android classes under test/android.
+ */
+public class InstallerTest
+{
+    private static final String __NAME = "test";
+    private static final String __OLD_INDEX = "<html>hello world</html>";
+    private static final String __NEW_INDEX = "<html>hello there world</html>";
+
+    private File _webapps;
+    private File _webapp;
+    private File _tmp;
+
+
+    @Before
+    public void setUp () throws Exception
+    {
+        Installer.delete(IJetty.__JETTY_DIR);
+        _webapps = new File(IJetty.__JETTY_DIR, IJetty.__WEBAPP_DIR);
+        _webapps.mkdirs();
+        _tmp = new File(IJetty.__JETTY_DIR, IJetty.__TMP_DIR);
+        _tmp.mkdirs();
+        new File(IJetty.__JETTY_DIR, IJetty.__CONTEXTS_DIR).mkdirs();
+        _webapp = new File(_webapps, __NAME);
+
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("index.html", __OLD_INDEX.getBytes("UTF-8"));
+        entries.put("b.txt", "bbb".getBytes("UTF-8"));
+        entries.put("c.txt", "ccc".getBytes("UTF-8"));
+        File war = write("test.war", zip(entries));
+        Installer.install(war, "/"+__NAME, _webapps, __NAME, false, true);
+        assertTrue(Installer.hasEntries(__NAME));
+    }
+
+
+    @After
+    public void tearDown ()
+    {
+        Installer.delete(IJetty.__JETTY_DIR);
+    }
+
+
+    @Test
+    public void testDeltaApplied () throws Exception
+    {
+        Installer.Result result = Installer.installDelta(write("test.delta", newDelta()), "/"+__NAME, _webapps, __NAME, false);
+
+        assertEquals(__NEW_INDEX, read(new File(_webapp, "index.html")));
+        assertEquals("bbb", read(new File(_webapp, "b.txt")));
+        assertEquals("ddd", read(new File(_webapp, "d.txt")));
+        assertFalse(new File(_webapp, "c.txt").exists());
+        assertEquals(2, result.written);
+        assertEquals(1, result.deleted);
+        assertFalse(new File(_webapps, "."+__NAME+".staging").exists());
+        assertFalse(new File(_webapps, "."+__NAME+".backup").exists());
+
+        //the entries now describe the new version, so the same delta no longer applies
+        try
+        {
+            Installer.installDelta(write("test.delta", newDelta()), "/"+__NAME, _webapps, __NAME, false);
+            fail("Applied twice");
+        }
+        catch (IOException e)
+        {
+            assertEquals(__NEW_INDEX, read(new File(_webapp, "index.html")));
+        }
+    }
+
+
+    @Test
+    public void testBaseCrcMismatch () throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty("base.index.html", crc("<html>goodbye world</html>".getBytes("UTF-8")));
+        properties.setProperty("entry.index.html", crc(__NEW_INDEX.getBytes("UTF-8")));
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("index.html"+Installer.__DIFF_SUFFIX, newDiff());
+
+        assertNotApplied(delta(properties, entries), "does not apply");
+    }
+
+
+    @Test
+    public void testInvalidOpStream () throws Exception
+    {
+        //an unknown op
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(Installer.__DIFF_MAGIC);
+        out.write('C');
+        out.writeLong(0);
+        out.writeInt(6);
+        out.write('X');
+        out.close();
+        assertNotApplied(diffDelta(bytes.toByteArray()), "Bad diff op");
+
+        //data cut short
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeInt(Installer.__DIFF_MAGIC);
+        out.write('D');
+        out.writeInt(100);
+        out.write("abc".getBytes("UTF-8"));
+        out.close();
+        assertNotApplied(diffDelta(bytes.toByteArray()), null);
+
+        //a copy past the end of the installed entry
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeInt(Installer.__DIFF_MAGIC);
+        out.write('C');
+        out.writeLong(0);
+        out.writeInt(1000);
+        out.write('E');
+        out.close();
+        assertNotApplied(diffDelta(bytes.toByteArray()), null);
+
+        //no magic
+        assertNotApplied(diffDelta("not a diff".getBytes("UTF-8")), "Not a diff");
+    }
+
+
+    @Test
+    public void testEntryOutsideWebapp () throws Exception
+    {
+        byte[] evil = "evil".getBytes("UTF-8");
+        Properties properties = new Properties();
+        properties.setProperty("entry.../evil.txt", crc(evil));
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("../evil.txt", evil);
+        assertNotApplied(delta(properties, entries), "Bad entry name");
+        assertFalse(new File(_webapps, "evil.txt").exists());
+
+        properties = new Properties();
+        properties.setProperty("delete.0", "../../"+IJetty.__TMP_DIR+"/"+__NAME+".entries");
+        assertNotApplied(delta(properties, new LinkedHashMap<String, byte[]>()), "Bad entry name");
+        assertTrue(Installer.hasEntries(__NAME));
+    }
+
+
+    @Test
+    public void testBadDeltaKeepsCause () throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty("base.index.html", "not a crc");
+        try
+        {
+            Installer.installDelta(write("test.delta", delta(properties, new LinkedHashMap<String, byte[]>())), "/"+__NAME, _webapps, __NAME, false);
+            fail("Applied a bad delta");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().startsWith("Bad delta"));
+            assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+    }
+
+
+    @Test
+    public void testContextStoppedDuringCommit () throws Exception
+    {
+        final List<String> events = new ArrayList<String>();
+        Installer.ContextControl control = new Installer.ContextControl()
+        {
+            public boolean stop (String webappName) throws Exception
+            {
+                //nothing has been moved into the webapp yet
+                events.add("stop "+webappName+" "+read(new File(_webapp, "index.html")));
+                return true;
+            }
+
+            public void start (String webappName) throws Exception
+            {
+                events.add("start "+webappName+" "+read(new File(_webapp, "index.html"))+" "+new File(_webapp, "c.txt").exists());
+            }
+        };
+
+        Installer.installDelta(write("test.delta", newDelta()), "/"+__NAME, _webapps, __NAME, false, control);
+        assertEquals(2, events.size());
+        assertEquals("stop "+__NAME+" "+__OLD_INDEX, events.get(0));
+        assertEquals("start "+__NAME+" "+__NEW_INDEX+" false", events.get(1));
+
+        //a delta that does not apply does not take the context out of service
+        events.clear();
+        try
+        {
+            Installer.installDelta(write("test.delta", newDelta()), "/"+__NAME, _webapps, __NAME, false, control);
+            fail("Applied twice");
+        }
+        catch (IOException e)
+        {
+            assertTrue(events.isEmpty());
+        }
+    }
+
+
+    @Test
+    public void testInstallPacked () throws Exception
+    {
+        File war = write("test.war", zip(newEntries()));
+        Installer.installPacked(war, "/"+__NAME, _webapps, __NAME, false);
+
+        File packed = new File(_webapps, __NAME+".war");
+        assertTrue(packed.exists());
+        assertFalse(war.exists());
+        assertFalse(new File(_webapps, "."+__NAME+".war.tmp").exists());
+        assertFalse(_webapp.exists());
+        assertFalse(Installer.hasEntries(__NAME));
+    }
+
+
+    @Test
+    public void testFailedInstallKeepsPackedWar () throws Exception
+    {
+        Installer.installPacked(write("test.war", zip(newEntries())), "/"+__NAME, _webapps, __NAME, false);
+        File packed = new File(_webapps, __NAME+".war");
+
+        try
+        {
+            Installer.install(write("test.war", "not a zip".getBytes("UTF-8")), "/"+__NAME, _webapps, __NAME, false, true);
+            fail("Installed a bad war");
+        }
+        catch (IOException e)
+        {
+            assertTrue(packed.exists());
+        }
+
+        //the packed war is only removed once the unpacked webapp is complete
+        Installer.install(write("test.war", zip(newEntries())), "/"+__NAME, _webapps, __NAME, false, true);
+        assertFalse(packed.exists());
+        assertEquals(__NEW_INDEX, read(new File(_webapp, "index.html")));
+    }
+
+
+    /**
+     * IJettyDownloader asks a server for a delta and is sent one that does
+     * not apply, so falls back to downloading and installing the whole war.
+     */
+    @Test
+    public void testFallbackToFullDownload () throws Exception
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("index.html", __NEW_INDEX.getBytes("UTF-8"));
+        entries.put("b.txt", "bbb".getBytes("UTF-8"));
+        final byte[] war = zip(entries);
+        final byte[] badDelta = diffDelta("not a diff".getBytes("UTF-8"));
+        final List<String> requests = new ArrayList<String>();
+
+        Server server = new Server();
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler()
+        {
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException
+            {
+                baseRequest.setHandled(true);
+                String aim = request.getHeader(IJettyDownloader.__A_IM);
+                synchronized (requests)
+                {
+                    requests.add(String.valueOf(aim));
+                }
+                byte[] content = war;
+                if (IJettyDownloader.__IJETTY_DELTA.equals(aim))
+                {
+                    response.setStatus(IJettyDownloader.__IM_USED_226);
+                    response.setHeader(IJettyDownloader.__IM, IJettyDownloader.__IJETTY_DELTA);
+                    content = badDelta;
+                }
+                response.setContentLength(content.length);
+                response.getOutputStream().write(content);
+            }
+        });
+        server.start();
+
+        IJettyDownloader downloader = new IJettyDownloader();
+        downloader.client = new HttpClient();
+        downloader.client.setConnectorType(HttpClient.CONNECTOR_SOCKET);
+        downloader.client.start();
+        Handler.clear();
+        try
+        {
+            String url = "http://localhost:"+connector.getLocalPort()+"/"+__NAME+".war";
+            File warFile = new File(_tmp, __NAME+".war");
+            downloader.sendSegments(url, warFile, "/"+__NAME, PartialDownload.getPartialDownload(warFile, url), true);
+
+            Message message = Handler.waitForMessage(10000, IJettyDownloader.__MSG_DOWNLOAD_SUCCEEDED, IJettyDownloader.__MSG_DOWNLOAD_FAILED);
+            assertNotNull("Not installed", message);
+            assertEquals(String.valueOf(message.obj), IJettyDownloader.__MSG_DOWNLOAD_SUCCEEDED, message.what);
+            assertEquals(__NEW_INDEX, read(new File(_webapp, "index.html")));
+            assertEquals("bbb", read(new File(_webapp, "b.txt")));
+            assertFalse(new File(_webapp, "c.txt").exists());
+            assertTrue(Installer.getContextFile(__NAME).exists());
+            assertTrue(DownloadRecord.getRecord(_tmp, __NAME).isFrom(url));
+            synchronized (requests)
+            {
+                assertEquals(2, requests.size());
+                assertEquals(IJettyDownloader.__IJETTY_DELTA, requests.get(0));
+                assertEquals("null", requests.get(1));
+            }
+        }
+        finally
+        {
+            downloader.client.stop();
+            server.stop();
+        }
+    }
+
+
+    /**
+     * Check a delta is rejected, and the webapp and its entries are as installed.
+     * @param delta
+     * @param message part of the message of the exception, or null for any
+     */
+    private void assertNotApplied (byte[] delta, String message) throws Exception
+    {
+        try
+        {
+            Installer.installDelta(write("test.delta", delta), "/"+__NAME, _webapps, __NAME, false);
+            fail("Applied a bad delta");
+        }
+        catch (IOException e)
+        {
+            if (message != null)
+                assertTrue(e.getMessage(), e.getMessage().indexOf(message) >= 0);
+        }
+        assertEquals(__OLD_INDEX, read(new File(_webapp, "index.html")));
+        assertEquals("ccc", read(new File(_webapp, "c.txt")));
+        assertFalse(new File(_webapp, "d.txt").exists());
+        assertFalse(new File(_webapps, "."+__NAME+".staging").exists());
+    }
+
+
+    /**
+     * @return a delta that patches index.html, adds d.txt and deletes c.txt
+     */
+    private byte[] newDelta () throws Exception
+    {
+        byte[] d = "ddd".getBytes("UTF-8");
+        Properties properties = new Properties();
+        properties.setProperty("base.index.html", crc(__OLD_INDEX.getBytes("UTF-8")));
+        properties.setProperty("entry.index.html", crc(__NEW_INDEX.getBytes("UTF-8")));
+        properties.setProperty("entry.d.txt", crc(d));
+        properties.setProperty("delete.0", "c.txt");
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("index.html"+Installer.__DIFF_SUFFIX, newDiff());
+        entries.put("d.txt", d);
+        return delta(properties, entries);
+    }
+
+
+    /**
+     * @return the entries of the new version of the webapp as a whole war
+     */
+    private Map<String, byte[]> newEntries () throws Exception
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("index.html", __NEW_INDEX.getBytes("UTF-8"));
+        entries.put("b.txt", "bbb".getBytes("UTF-8"));
+        entries.put("d.txt", "ddd".getBytes("UTF-8"));
+        return entries;
+    }
+
+
+    /**
+     * @return a diff from the old index.html to the new one
+     */
+    private byte[] newDiff () throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(Installer.__DIFF_MAGIC);
+        out.write('C');
+        out.writeLong(0);
+        out.writeInt("<html>hello ".length());
+        byte[] data = "there ".getBytes("UTF-8");
+        out.write('D');
+        out.writeInt(data.length);
+        out.write(data);
+        out.write('C');
+        out.writeLong("<html>hello ".length());
+        out.writeInt("world</html>".length());
+        out.write('E');
+        out.close();
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * @return a delta that patches index.html with a diff
+     */
+    private byte[] diffDelta (byte[] diff) throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty("base.index.html", crc(__OLD_INDEX.getBytes("UTF-8")));
+        properties.setProperty("entry.index.html", crc(__NEW_INDEX.getBytes("UTF-8")));
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("index.html"+Installer.__DIFF_SUFFIX, diff);
+        return delta(properties, entries);
+    }
+
+
+    private byte[] delta (Properties properties, Map<String, byte[]> entries) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        properties.store(bytes, null);
+        Map<String, byte[]> delta = new LinkedHashMap<String, byte[]>();
+        delta.put(Installer.__DELTA_PROPERTIES, bytes.toByteArray());
+        delta.putAll(entries);
+        return zip(delta);
+    }
+
+
+    private byte[] zip (Map<String, byte[]> entries) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        for (Map.Entry<String, byte[]> entry : entries.entrySet())
+        {
+            out.putNextEntry(new ZipEntry(entry.getKey()));
+            out.write(entry.getValue());
+            out.closeEntry();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+
+    private String crc (byte[] content)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return Long.toHexString(crc.getValue())+","+content.length;
+    }
+
+
+    private File write (String name, byte[] content) throws Exception
+    {
+        File file = new File(_tmp, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(content);
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+
+    private String read (File file) throws Exception
+    {
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            return IO.toString(in, "UTF-8");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}